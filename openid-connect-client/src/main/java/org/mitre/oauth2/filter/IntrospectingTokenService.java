@@ -15,6 +15,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.mitre.util.http.PooledHttpClientFactory;
 import org.slf4j.LoggerFactory;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
@@ -38,6 +39,9 @@ public class IntrospectingTokenService implements ResourceServerTokenServices {
     private String clientSecret;
     private String introspectionUrl;
     
+    // shares its connection pool with the other outbound calls
+    private RestTemplate restTemplate = PooledHttpClientFactory.getShared().createRestTemplate();
+    
     // Inner class to store in the hash map
     private class TokenCacheObject { OAuth2AccessToken token; OAuth2Authentication auth;
         private TokenCacheObject(OAuth2AccessToken token, OAuth2Authentication auth) {
@@ -55,6 +59,13 @@ public class IntrospectingTokenService implements ResourceServerTokenServices {
         this.introspectionUrl = introspectionUrl;
     }
 
+    /**
+     * @param httpClientFactory the pool to make introspection calls through, instead of the shared one
+     */
+    public void setHttpClientFactory(PooledHttpClientFactory httpClientFactory) {
+        this.restTemplate = httpClientFactory.createRestTemplate();
+    }
+
     public String getClientId() {
         return clientId;
     }
@@ -109,7 +120,6 @@ public class IntrospectingTokenService implements ResourceServerTokenServices {
         String validatedToken = null;
         // Use the SpringFramework RestTemplate to send the request to the endpoint
         
-        RestTemplate restTemplate = new RestTemplate();
         MultiValueMap<String, String> form = new LinkedMultiValueMap<String, String>();
         form.add("token",accessToken);
         form.add("client_id", this.clientId);
@@ -28,6 +28,12 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -36,9 +42,7 @@ import javax.servlet.http.HttpSession;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.utils.URLEncodedUtils;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicNameValuePair;
 import org.mitre.jwt.model.JwtClaims;
 import org.mitre.jwt.signer.JwsAlgorithm;
@@ -49,7 +53,8 @@ import org.mitre.jwt.signer.service.impl.DefaultJwtSigningAndValidationService;
 import org.mitre.key.fetch.KeyFetcher;
 import org.mitre.openid.connect.config.OIDCServerConfiguration;
 import org.mitre.openid.connect.model.IdToken;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.mitre.openid.connect.model.UserInfo;
+import org.mitre.util.http.PooledHttpClientFactory;
 import org.springframework.security.authentication.AuthenticationServiceException;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
@@ -75,6 +80,9 @@ public class AbstractOIDCAuthenticationFilter extends
 
 	protected static final String REDIRECT_URI_SESION_VARIABLE = "redirect_uri";
 	protected static final String STATE_SESSION_VARIABLE = "state";
+	
+	// the JWT header naming the key a token was signed with
+	protected static final String KEY_ID = "kid";
 	protected final static String NONCE_SESSION_VARIABLE = "nonce";
 	protected final static int HTTP_SOCKET_TIMEOUT = 30000;
 	protected final static String DEFAULT_SCOPE = "openid";
@@ -84,8 +92,15 @@ public class AbstractOIDCAuthenticationFilter extends
 	// Allow for time sync issues by having a window of X seconds.
 	private int timeSkewAllowance = 300;
 	
+	// validators by issuer, each along with the key it was built for
+	private ConcurrentMap<String, IssuerValidator> validators = new ConcurrentHashMap<String, IssuerValidator>();
+	
+	// validators configured up front, used in place of ones built from the server's keys
 	private Map<OIDCServerConfiguration, JwtSigningAndValidationService> validationServices = new HashMap<OIDCServerConfiguration, JwtSigningAndValidationService>();
 	
+	// shares its key cache with every other KeyFetcher
+	private KeyFetcher keyFetcher = new KeyFetcher();
+	
 	/**
 	 * Builds the redirect_uri that will be sent to the Authorization Endpoint.
 	 * By default returns the URL of the current request minus zero or more
@@ -173,6 +188,16 @@ public class AbstractOIDCAuthenticationFilter extends
 
 	protected int httpSocketTimeout = HTTP_SOCKET_TIMEOUT;
 
+	protected PooledHttpClientFactory httpClientFactory = PooledHttpClientFactory.getShared();
+	
+	// for talking to the token endpoint, built from the httpClientFactory at startup
+	private RestTemplate restTemplate;
+	
+	// if set, the UserInfo request is started on this as soon as the access token arrives
+	protected Executor userInfoPrefetchExecutor;
+	
+	protected UserInfoFetcher userInfoFetcher = new UserInfoFetcher();
+
 	/**
 	 * OpenIdConnectAuthenticationFilter constructor
 	 */
@@ -188,6 +213,8 @@ public class AbstractOIDCAuthenticationFilter extends
 
 		// prepend the spec necessary DEFAULT_SCOPE
 		setScope((scope != null && !scope.isEmpty()) ? DEFAULT_SCOPE + " " + scope : DEFAULT_SCOPE);
+		
+		restTemplate = httpClientFactory.createRestTemplate(httpSocketTimeout);
 	}
 
 	/*
@@ -237,10 +264,7 @@ public class AbstractOIDCAuthenticationFilter extends
 			}
 		}
 		
-		// Handle Token Endpoint interaction
-		HttpClient httpClient = new DefaultHttpClient();
-
-		httpClient.getParams().setParameter("http.socket.timeout", new Integer(httpSocketTimeout));
+		// Handle Token Endpoint interaction, over the pooled connections set up in afterPropertiesSet()
 
 		//
 		// TODO: basic auth is untested (it wasn't working last I
@@ -253,10 +277,6 @@ public class AbstractOIDCAuthenticationFilter extends
 		// credentials);
 		//
 
-		HttpComponentsClientHttpRequestFactory factory = new HttpComponentsClientHttpRequestFactory(httpClient);
-
-		RestTemplate restTemplate = new RestTemplate(factory);
-
 		MultiValueMap<String, String> form = new LinkedMultiValueMap<String, String>();
 		form.add("grant_type", "authorization_code");
 		form.add("code", authorizationCode);
@@ -339,83 +359,35 @@ public class AbstractOIDCAuthenticationFilter extends
 				refreshTokenValue = tokenResponse.get("refresh_token").getAsString();
 			}
 			
-			IdToken idToken = IdToken.parse(idTokenValue); // TODO: catch parsing errors?
-
-			// validate our ID Token over a number of tests
-			JwtClaims idClaims = idToken.getClaims();
-			
-			// check the signature
-			JwtSigningAndValidationService jwtValidator = getValidatorForServer(serverConfig); 
-			if (jwtValidator != null) {
-				if(!jwtValidator.validateSignature(idToken.toString())) {
-					throw new AuthenticationServiceException("Signature validation failed");
-				}
-			} else {
-				logger.info("No validation service found. Skipping signature validation");
-			}
-			
-			// check the issuer
-			if (idClaims.getIssuer() == null) {
-				throw new AuthenticationServiceException("Id Token Issuer is null");
-			} else if (!idClaims.getIssuer().equals(serverConfig.getIssuer())){
-				throw new AuthenticationServiceException("Issuers do not match, expected " + serverConfig.getIssuer() + " got " + idClaims.getIssuer());
+			// start on the UserInfo now so it overlaps with validating the id token, the
+			// provider checks its sub. If validation fails the fetch is cancelled.
+			FutureTask<UserInfo> pendingUserInfo = null;
+			if (userInfoPrefetchExecutor != null) {
+				final OIDCServerConfiguration config = serverConfig;
+				final String accessToken = accessTokenValue;
+				pendingUserInfo = new FutureTask<UserInfo>(new Callable<UserInfo>() {
+					@Override
+					public UserInfo call() {
+						return userInfoFetcher.loadUserInfo(config, accessToken);
+					}
+				});
+				userInfoPrefetchExecutor.execute(pendingUserInfo);
 			}
 			
-			// check expiration
-			if (idClaims.getExpiration() == null) {
-				throw new AuthenticationServiceException("Id Token does not have required expiration claim");
-			} else {
-				// it's not null, see if it's expired
-				Date now = new Date(System.currentTimeMillis() - (timeSkewAllowance * 1000));
-				if (now.after(idClaims.getExpiration())) {
-					throw new AuthenticationServiceException("Id Token is expired: " + idClaims.getExpiration());
-				}
-			}
-			
-			// check not before
-			if (idClaims.getNotBefore() != null) {
-				Date now = new Date(System.currentTimeMillis() + (timeSkewAllowance * 1000));
-				if (now.before(idClaims.getNotBefore())){
-					throw new AuthenticationServiceException("Id Token not valid untill: " + idClaims.getNotBefore());
-				}
-			}
-			
-			// check audience
-			if (idClaims.getAudience() == null) {
-				throw new AuthenticationServiceException("Id token audience is null");
-			} else if (!idClaims.getAudience().equals(serverConfig.getClientId())) {
-				throw new AuthenticationServiceException("Audience does not match, expected " + serverConfig.getClientId() + " got " + idClaims.getAudience());
-			}
-			
-			// check issued at
-			if (idClaims.getIssuedAt() == null) {
-				throw new AuthenticationServiceException("Id Token does not have required issued-at claim");				
-			} else {
-				// since it's not null, see if it was issued in the future
-				Date now = new Date(System.currentTimeMillis() + (timeSkewAllowance * 1000));
-				if (now.before(idClaims.getIssuedAt())) {
-					throw new AuthenticationServiceException("Id Token was issued in the future: " + idClaims.getIssuedAt());
+			IdToken idToken;
+			try {
+				idToken = IdToken.parse(idTokenValue); // TODO: catch parsing errors?
+
+				validateIdToken(idToken, serverConfig, session);
+			} catch (RuntimeException e) {
+				// the login is rejected, so stop fetching the UserInfo that went with it
+				if (pendingUserInfo != null) {
+					pendingUserInfo.cancel(true);
 				}
+				throw e;
 			}
 
-			// compare the nonce to our stored claim
-			String nonce = idClaims.getNonce();			
-			if (StringUtils.isBlank(nonce)) {
-				
-				logger.error("ID token did not contain a nonce claim.");
-
-				throw new AuthenticationServiceException("ID token did not contain a nonce claim.");
-			}
-
-			String storedNonce = getStoredNonce(session);
-			if (!nonce.equals(storedNonce)) {
-				logger.error("Possible replay attack detected! The comparison of the nonce in the returned "
-						+ "ID Token to the session " + NONCE_SESSION_VARIABLE + " failed. Expected " + storedNonce + " got " + nonce + ".");
-
-				throw new AuthenticationServiceException(
-						"Possible replay attack detected! The comparison of the nonce in the returned "
-								+ "ID Token to the session " + NONCE_SESSION_VARIABLE + " failed. Expected " + storedNonce + " got " + nonce + ".");
-			}
+			JwtClaims idClaims = idToken.getClaims();
 
 			// pull the subject (user id) out as a claim on the id_token
 			
@@ -423,7 +395,7 @@ public class AbstractOIDCAuthenticationFilter extends
 			
 			// construct an OIDCAuthenticationToken and return a Authentication object w/the userId and the idToken
 			
-			OIDCAuthenticationToken token = new OIDCAuthenticationToken(userId, idClaims.getIssuer(), serverConfig, idTokenValue, accessTokenValue, refreshTokenValue);
+			OIDCAuthenticationToken token = new OIDCAuthenticationToken(userId, idClaims.getIssuer(), serverConfig, idTokenValue, accessTokenValue, refreshTokenValue, pendingUserInfo);
 
 			Authentication authentication = this.getAuthenticationManager().authenticate(token);
 
@@ -434,6 +406,97 @@ public class AbstractOIDCAuthenticationFilter extends
 		}
 	}
 
+	/**
+	 * Check the id token's signature and claims against the server it came from
+	 * and the nonce stored in the session.
+	 * 
+	 * @throws AuthenticationServiceException if any of the checks fail
+	 */
+	private void validateIdToken(IdToken idToken, OIDCServerConfiguration serverConfig, HttpSession session) {
+
+		// validate our ID Token over a number of tests
+		JwtClaims idClaims = idToken.getClaims();
+	
+		// check the signature
+		String keyId = idToken.getHeader().getClaimAsString(KEY_ID);
+		JwtSigningAndValidationService jwtValidator = getValidatorForServer(serverConfig, keyId); 
+		if (hasKeyUrl(serverConfig)) {
+			// the server publishes keys, so the token must be signed by one of them
+			if (jwtValidator == null || !jwtValidator.validateSignature(idToken.toString())) {
+				// the server may have rotated its key since we last fetched it, look again and retry once
+				jwtValidator = refreshValidatorForServer(serverConfig, keyId);
+				if (jwtValidator == null || !jwtValidator.validateSignature(idToken.toString())) {
+					throw new AuthenticationServiceException("Signature validation failed");
+				}
+			}
+		} else {
+			logger.info("No validation service found. Skipping signature validation");
+		}
+	
+		// check the issuer
+		if (idClaims.getIssuer() == null) {
+			throw new AuthenticationServiceException("Id Token Issuer is null");
+		} else if (!idClaims.getIssuer().equals(serverConfig.getIssuer())){
+			throw new AuthenticationServiceException("Issuers do not match, expected " + serverConfig.getIssuer() + " got " + idClaims.getIssuer());
+		}
+	
+		// check expiration
+		if (idClaims.getExpiration() == null) {
+			throw new AuthenticationServiceException("Id Token does not have required expiration claim");
+		} else {
+			// it's not null, see if it's expired
+			Date now = new Date(System.currentTimeMillis() - (timeSkewAllowance * 1000));
+			if (now.after(idClaims.getExpiration())) {
+				throw new AuthenticationServiceException("Id Token is expired: " + idClaims.getExpiration());
+			}
+		}
+	
+		// check not before
+		if (idClaims.getNotBefore() != null) {
+			Date now = new Date(System.currentTimeMillis() + (timeSkewAllowance * 1000));
+			if (now.before(idClaims.getNotBefore())){
+				throw new AuthenticationServiceException("Id Token not valid untill: " + idClaims.getNotBefore());
+			}
+		}
+	
+		// check audience
+		if (idClaims.getAudience() == null) {
+			throw new AuthenticationServiceException("Id token audience is null");
+		} else if (!idClaims.getAudience().equals(serverConfig.getClientId())) {
+			throw new AuthenticationServiceException("Audience does not match, expected " + serverConfig.getClientId() + " got " + idClaims.getAudience());
+		}
+	
+		// check issued at
+		if (idClaims.getIssuedAt() == null) {
+			throw new AuthenticationServiceException("Id Token does not have required issued-at claim");				
+		} else {
+			// since it's not null, see if it was issued in the future
+			Date now = new Date(System.currentTimeMillis() + (timeSkewAllowance * 1000));
+			if (now.before(idClaims.getIssuedAt())) {
+				throw new AuthenticationServiceException("Id Token was issued in the future: " + idClaims.getIssuedAt());
+			}
+		}
+
+		// compare the nonce to our stored claim
+		String nonce = idClaims.getNonce();			
+		if (StringUtils.isBlank(nonce)) {
+		
+			logger.error("ID token did not contain a nonce claim.");
+
+			throw new AuthenticationServiceException("ID token did not contain a nonce claim.");
+		}
+
+		String storedNonce = getStoredNonce(session);
+		if (!nonce.equals(storedNonce)) {
+			logger.error("Possible replay attack detected! The comparison of the nonce in the returned "
+					+ "ID Token to the session " + NONCE_SESSION_VARIABLE + " failed. Expected " + storedNonce + " got " + nonce + ".");
+
+			throw new AuthenticationServiceException(
+					"Possible replay attack detected! The comparison of the nonce in the returned "
+							+ "ID Token to the session " + NONCE_SESSION_VARIABLE + " failed. Expected " + storedNonce + " got " + nonce + ".");
+		}
+	}
+
 	/**
 	 * Initiate an Authorization request
 	 * 
@@ -528,6 +591,29 @@ public class AbstractOIDCAuthenticationFilter extends
 	public void setScope(String scope) {
 		this.scope = scope;
 	}
+
+	/**
+	 * Fetch the UserInfo in parallel with validating the id token during login.
+	 * 
+	 * @param userInfoPrefetchExecutor where to run the UserInfo requests, or null to leave fetching to the authentication provider
+	 */
+	public void setUserInfoPrefetchExecutor(Executor userInfoPrefetchExecutor) {
+		this.userInfoPrefetchExecutor = userInfoPrefetchExecutor;
+	}
+
+	/**
+	 * @param userInfoFetcher the fetcher to prefetch the UserInfo with
+	 */
+	public void setUserInfoFetcher(UserInfoFetcher userInfoFetcher) {
+		this.userInfoFetcher = userInfoFetcher;
+	}
+
+	/**
+	 * @param httpClientFactory the connection pool to call the token endpoint through, instead of the shared one
+	 */
+	public void setHttpClientFactory(PooledHttpClientFactory httpClientFactory) {
+		this.httpClientFactory = httpClientFactory;
+	}
 	
 
 	/**
@@ -598,62 +684,147 @@ public class AbstractOIDCAuthenticationFilter extends
 	
 	
 	protected JwtSigningAndValidationService getValidatorForServer(OIDCServerConfiguration serverConfig) {
+		return getValidatorForServer(serverConfig, null);
+	}
+	
+	/**
+	 * Get the validator for the server's current signing key (the one with the
+	 * given key ID, if any). Keys come out of the shared key cache, which
+	 * coalesces fetches and refreshes them in the background, so looking one up
+	 * here is cheap; the validator built around it is only rebuilt when the key
+	 * changes.
+	 * 
+	 * @return the validator, or null if the server has no keys to check signatures with
+	 */
+	protected JwtSigningAndValidationService getValidatorForServer(OIDCServerConfiguration serverConfig, String keyId) {
 
-		if(getValidationServices().containsKey(serverConfig)){
+		if (validationServices.containsKey(serverConfig)) {
 			return validationServices.get(serverConfig);
+		}
+		
+		PublicKey signingKey = null;
+		
+		if (serverConfig.getJwkSigningUrl() != null) {
+			// prefer the JWK
+			signingKey = keyFetcher.retrieveJwkKey(serverConfig.getJwkSigningUrl(), keyId);
+		} else if (serverConfig.getX509SigningUrl() != null) {
+			// use the x509 only if JWK isn't configured
+			signingKey = keyFetcher.retrieveX509Key(serverConfig.getX509SigningUrl());				
 		} else {
-						
-			KeyFetcher keyFetch = new KeyFetcher();
-			PublicKey signingKey = null;
-			
-			if (serverConfig.getJwkSigningUrl() != null) {
-				// prefer the JWK
-				signingKey = keyFetch.retrieveJwkKey(serverConfig.getJwkSigningUrl());
-			} else if (serverConfig.getX509SigningUrl() != null) {
-				// use the x509 only if JWK isn't configured
-				signingKey = keyFetch.retrieveX509Key(serverConfig.getX509SigningUrl());				
-			} else {
-				// no keys configured
-				logger.warn("No server key URLs configured for " + serverConfig.getIssuer());
+			// no keys configured
+			logger.warn("No server key URLs configured for " + serverConfig.getIssuer());
+		}
+		
+		return getValidatorForKey(serverConfig, signingKey);
+	}
+
+	/**
+	 * Fetch the server's keys again after a signature failed to verify (unless
+	 * they were fetched very recently) and get the validator for the new key.
+	 */
+	protected JwtSigningAndValidationService refreshValidatorForServer(OIDCServerConfiguration serverConfig, String keyId) {
+
+		if (validationServices.containsKey(serverConfig)) {
+			// nothing to fetch
+			return validationServices.get(serverConfig);
+		}
+		
+		PublicKey signingKey = null;
+		
+		if (serverConfig.getJwkSigningUrl() != null) {
+			signingKey = keyFetcher.refreshJwkKey(serverConfig.getJwkSigningUrl(), keyId);
+		} else if (serverConfig.getX509SigningUrl() != null) {
+			signingKey = keyFetcher.refreshX509Key(serverConfig.getX509SigningUrl());
+		}
+		
+		return getValidatorForKey(serverConfig, signingKey);
+	}
+	
+	/**
+	 * @return true if the server has a JWK or X.509 URL configured to check signatures against,
+	 * or a validator configured for it
+	 */
+	private boolean hasKeyUrl(OIDCServerConfiguration serverConfig) {
+		return serverConfig.getJwkSigningUrl() != null || serverConfig.getX509SigningUrl() != null
+				|| validationServices.containsKey(serverConfig);
+	}
+	
+	private JwtSigningAndValidationService getValidatorForKey(OIDCServerConfiguration serverConfig, PublicKey signingKey) {
+		
+		if (signingKey == null) {
+			// no key matched or no URLs are configured to fetch them, the caller decides whether that fails the token
+			return null;
+		}
+		
+		String issuer = serverConfig.getIssuer();
+		
+		while (true) {
+			IssuerValidator cached = validators.get(issuer);
+			if (cached != null && cached.signingKey.equals(signingKey)) {
+				return cached.get();
 			}
 			
-			if (signingKey != null) {
+			// only one of the threads that miss at once builds the validator, the rest wait for it
+			IssuerValidator created = new IssuerValidator(signingKey, buildValidator(issuer, signingKey));
+			boolean won = cached == null ? validators.putIfAbsent(issuer, created) == null : validators.replace(issuer, cached, created);
+			if (won) {
+				return created.get();
+			}
+			// another thread changed the entry first, look again
+		}
+	}
+	
+	/**
+	 * @return a task that builds a validator around the given key
+	 */
+	private FutureTask<JwtSigningAndValidationService> buildValidator(final String issuer, final PublicKey signingKey) {
+		return new FutureTask<JwtSigningAndValidationService>(new Callable<JwtSigningAndValidationService>() {
+			@Override
+			public JwtSigningAndValidationService call() {
 				Map<String, JwtSigner> signers = new HashMap<String, JwtSigner>();
 				
 				if (signingKey instanceof RSAPublicKey) {
 					
 					RSAPublicKey rsaKey = (RSAPublicKey)signingKey;
 					
-					// build an RSA signer
+					// build an RSA signer for each algorithm, the validator picks the one named in the token's header
 					RsaSigner signer256 = new RsaSigner(JwsAlgorithm.RS256.getJwaName(), rsaKey, null);
 					RsaSigner signer384 = new RsaSigner(JwsAlgorithm.RS384.getJwaName(), rsaKey, null);
 					RsaSigner signer512 = new RsaSigner(JwsAlgorithm.RS512.getJwaName(), rsaKey, null);
-
-					signers.put(serverConfig.getIssuer() + JwsAlgorithm.RS256.getJwaName(), signer256);
-					signers.put(serverConfig.getIssuer() + JwsAlgorithm.RS384.getJwaName(), signer384);
-					signers.put(serverConfig.getIssuer() + JwsAlgorithm.RS512.getJwaName(), signer512);
+		
+					signers.put(issuer + JwsAlgorithm.RS256.getJwaName(), signer256);
+					signers.put(issuer + JwsAlgorithm.RS384.getJwaName(), signer384);
+					signers.put(issuer + JwsAlgorithm.RS512.getJwaName(), signer512);
 				}
-
-                JwtSigningAndValidationService signingAndValidationService = new DefaultJwtSigningAndValidationService(signers);
-				
-				validationServices.put(serverConfig, signingAndValidationService);
-				
-				return signingAndValidationService;
-				
-			} else {
-				// there were either no keys returned or no URLs configured to fetch them, assume no checking on key signatures
-				return null;
+		
+				return new DefaultJwtSigningAndValidationService(signers);
 			}
-		}
-
+		});
 	}
-
+	
+	/**
+	 * Forget the validators built for every server, so they're rebuilt on next use.
+	 */
+	public void clearValidators() {
+		validators.clear();
+	}
+	
+	/**
+	 * @return the validators configured for particular servers
+	 * @deprecated validators are built from each server's published keys and rebuilt when they change
+	 */
+	@Deprecated
 	public Map<OIDCServerConfiguration, JwtSigningAndValidationService> getValidationServices() {
 		return validationServices;
 	}
-
-	public void setValidationServices(
-			Map<OIDCServerConfiguration, JwtSigningAndValidationService> validationServices) {
+	
+	/**
+	 * @param validationServices validators to use for particular servers, in place of
+	 * ones built from their published keys
+	 * @deprecated validators are built from each server's published keys and rebuilt when they change
+	 */
+	@Deprecated
+	public void setValidationServices(Map<OIDCServerConfiguration, JwtSigningAndValidationService> validationServices) {
 		this.validationServices = validationServices;
 	}
 	
@@ -665,4 +836,34 @@ public class AbstractOIDCAuthenticationFilter extends
 		this.timeSkewAllowance = timeSkewAllowance;
 	}	
 	
+	/**
+	 * A validator, possibly still being built, along with the key it checks signatures with.
+	 */
+	private static class IssuerValidator {
+		
+		private final PublicKey signingKey;
+		private final FutureTask<JwtSigningAndValidationService> service;
+		
+		private IssuerValidator(PublicKey signingKey, FutureTask<JwtSigningAndValidationService> service) {
+			this.signingKey = signingKey;
+			this.service = service;
+		}
+		
+		/**
+		 * Build the validator if nobody has started to, otherwise wait for it.
+		 */
+		private JwtSigningAndValidationService get() {
+			// does nothing if the task has already run or is running
+			service.run();
+			try {
+				return service.get();
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("Unable to build a validator", e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new AuthenticationServiceException("Interrupted while building a validator");
+			}
+		}
+	}
+	
 }
@@ -16,10 +16,18 @@
 package org.mitre.openid.connect.client;
 
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.mitre.openid.connect.model.UserInfo;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.security.authentication.AuthenticationProvider;
+import org.springframework.security.authentication.AuthenticationServiceException;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
@@ -40,6 +48,16 @@ public class OIDCAuthenticationProvider implements
 	private UserInfoFetcher userInfoFetcher = new UserInfoFetcher();
 	
 	private GrantedAuthoritiesMapper authoritiesMapper = new NullAuthoritiesMapper();
+	
+	// how long to wait for a UserInfo request the filter started
+	private long userInfoTimeoutMillis = 30 * 1000L;
+	
+	// UserInfo from recent logins, by issuer and sub; off unless userInfoCacheSeconds is set
+	private int userInfoCacheSeconds = 0;
+	
+	private int userInfoCacheSize = 10000;
+	
+	private ConcurrentMap<String, CachedUserInfo> userInfoCache = new ConcurrentHashMap<String, CachedUserInfo>();
 
 	/*
 	 * (non-Javadoc)
@@ -73,14 +91,26 @@ public class OIDCAuthenticationProvider implements
 			
 			OIDCAuthenticationToken token = (OIDCAuthenticationToken) authentication;
 
-			UserInfo userInfo = userInfoFetcher.loadUserInfo(token);
-
-			if (userInfo == null) {
-				// TODO: user Info not found -- error?
-			} else {			
-				if (!Strings.isNullOrEmpty(userInfo.getSub()) && !userInfo.getSub().equals(token.getUserId())) {
-					// the userinfo came back and the user_id fields don't match what was in the id_token
-					throw new UsernameNotFoundException("user_id mismatch between id_token and user_info call: " + userInfo.getSub() + " / " + token.getUserId());
+			String cacheKey = token.getIssuer() + " " + token.getUserId();
+			UserInfo userInfo = getCachedUserInfo(cacheKey);
+			
+			if (userInfo != null) {
+				// we won't need the one the filter started, if any
+				if (token.getPendingUserInfo() != null) {
+					token.getPendingUserInfo().cancel(true);
+				}
+			} else {
+				userInfo = loadUserInfo(token);
+	
+				if (userInfo == null) {
+					// TODO: user Info not found -- error?
+				} else {			
+					if (!Strings.isNullOrEmpty(userInfo.getSub()) && !userInfo.getSub().equals(token.getUserId())) {
+						// the userinfo came back and the user_id fields don't match what was in the id_token
+						throw new UsernameNotFoundException("user_id mismatch between id_token and user_info call: " + userInfo.getSub() + " / " + token.getUserId());
+					}
+					
+					cacheUserInfo(cacheKey, userInfo);
 				}
 			}
 			
@@ -93,6 +123,108 @@ public class OIDCAuthenticationProvider implements
 		return null;
 	}
 
+	/**
+	 * Get the UserInfo, waiting for the request the filter started if there is one.
+	 */
+	private UserInfo loadUserInfo(OIDCAuthenticationToken token) {
+		
+		Future<UserInfo> pending = token.getPendingUserInfo();
+		if (pending == null) {
+			return userInfoFetcher.loadUserInfo(token);
+		}
+		
+		try {
+			return pending.get(userInfoTimeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new AuthenticationServiceException("Unable to load UserInfo", e.getCause());
+		} catch (TimeoutException e) {
+			pending.cancel(true);
+			throw new AuthenticationServiceException("Timed out waiting for UserInfo");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AuthenticationServiceException("Interrupted waiting for UserInfo");
+		}
+	}
+	
+	private UserInfo getCachedUserInfo(String key) {
+		if (userInfoCacheSeconds <= 0) {
+			return null;
+		}
+		
+		CachedUserInfo cached = userInfoCache.get(key);
+		if (cached == null) {
+			return null;
+		} else if (cached.expiresAt <= System.currentTimeMillis()) {
+			userInfoCache.remove(key, cached);
+			return null;
+		} else {
+			return cached.userInfo;
+		}
+	}
+	
+	private void cacheUserInfo(String key, UserInfo userInfo) {
+		if (userInfoCacheSeconds <= 0) {
+			return;
+		}
+		
+		long now = System.currentTimeMillis();
+		
+		if (userInfoCache.size() >= userInfoCacheSize) {
+			// make room by dropping whatever has expired, and give up if that's not enough
+			for (Iterator<CachedUserInfo> it = userInfoCache.values().iterator(); it.hasNext();) {
+				if (it.next().expiresAt <= now) {
+					it.remove();
+				}
+			}
+			if (userInfoCache.size() >= userInfoCacheSize) {
+				return;
+			}
+		}
+		
+		userInfoCache.put(key, new CachedUserInfo(userInfo, now + userInfoCacheSeconds * 1000L));
+	}
+	
+	private static class CachedUserInfo {
+		private final UserInfo userInfo;
+		private final long expiresAt;
+		
+		private CachedUserInfo(UserInfo userInfo, long expiresAt) {
+			this.userInfo = userInfo;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * @param userInfoFetcher the fetcher to load the UserInfo with when the filter hasn't already started on it
+	 */
+	public void setUserInfoFetcher(UserInfoFetcher userInfoFetcher) {
+		this.userInfoFetcher = userInfoFetcher;
+	}
+
+	/**
+	 * @param userInfoTimeoutMillis how long to wait for a UserInfo request the filter started
+	 */
+	public void setUserInfoTimeoutMillis(long userInfoTimeoutMillis) {
+		this.userInfoTimeoutMillis = userInfoTimeoutMillis;
+	}
+
+	/**
+	 * @param userInfoCacheSeconds how long to reuse a user's UserInfo for their next logins, or 0 to always fetch it
+	 */
+	public void setUserInfoCacheSeconds(int userInfoCacheSeconds) {
+		this.userInfoCacheSeconds = userInfoCacheSeconds;
+	}
+
+	/**
+	 * @param userInfoCacheSize the most users to keep a UserInfo for
+	 */
+	public void setUserInfoCacheSize(int userInfoCacheSize) {
+		this.userInfoCacheSize = userInfoCacheSize;
+	}
+
 	/**
 	 * @param authoritiesMapper
 	 */
@@ -17,6 +17,7 @@ package org.mitre.openid.connect.client;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.Future;
 
 import org.mitre.openid.connect.config.OIDCServerConfiguration;
 import org.mitre.openid.connect.model.UserInfo;
@@ -43,6 +44,7 @@ public class OIDCAuthenticationToken extends AbstractAuthenticationToken {
 
 	private final transient OIDCServerConfiguration serverConfiguration; // server configuration used to fulfill this token, don't serialize it
 	private final transient UserInfo userInfo; // user info container, don't serialize it b/c it might be huge and can be re-fetched
+	private final transient Future<UserInfo> pendingUserInfo; // user info request started by the filter, if any
 	
 	/**
 	 * Constructs OIDCAuthenticationToken with a full set of authorities, marking this as authenticated.
@@ -70,6 +72,7 @@ public class OIDCAuthenticationToken extends AbstractAuthenticationToken {
 		this.refreshTokenValue = refreshTokenValue;
 
 		this.serverConfiguration = null; // we don't need a server config anymore
+		this.pendingUserInfo = null;
 		
 		setAuthenticated(true);
 	}
@@ -86,6 +89,22 @@ public class OIDCAuthenticationToken extends AbstractAuthenticationToken {
 	public OIDCAuthenticationToken(String userId, String issuer, 
 			OIDCServerConfiguration serverConfiguration, 
 			String idTokenValue, String accessTokenValue, String refreshTokenValue) {
+		
+		this(userId, issuer, serverConfiguration, idTokenValue, accessTokenValue, refreshTokenValue, null);
+	}
+
+	/**
+	 * Constructs OIDCAuthenticationToken for use as a data shuttle from the filter to the auth provider,
+	 * carrying a UserInfo request that the filter has already started.
+	 * 
+	 * Set to not-authenticated.
+	 * 
+	 * @param pendingUserInfo	the UserInfo request under way, or null if there isn't one
+	 */
+	public OIDCAuthenticationToken(String userId, String issuer, 
+			OIDCServerConfiguration serverConfiguration, 
+			String idTokenValue, String accessTokenValue, String refreshTokenValue,
+			Future<UserInfo> pendingUserInfo) {
 
 		super(new ArrayList<GrantedAuthority>(0));
 
@@ -97,6 +116,7 @@ public class OIDCAuthenticationToken extends AbstractAuthenticationToken {
 		this.refreshTokenValue = refreshTokenValue;
 
 		this.userInfo = null; // we don't have a UserInfo yet
+		this.pendingUserInfo = pendingUserInfo;
 		
 		this.serverConfiguration = serverConfiguration;
 		
@@ -170,6 +190,13 @@ public class OIDCAuthenticationToken extends AbstractAuthenticationToken {
     public UserInfo getUserInfo() {
     	return userInfo;
     }
+
+	/**
+     * @return the UserInfo request the filter started while it validated the id token, or null
+     */
+    public Future<UserInfo> getPendingUserInfo() {
+    	return pendingUserInfo;
+    }
 	
 	
 }
\ No newline at end of file
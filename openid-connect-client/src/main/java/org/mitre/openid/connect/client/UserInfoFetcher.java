@@ -1,10 +1,9 @@
 package org.mitre.openid.connect.client;
 
-import org.apache.http.client.HttpClient;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.mitre.openid.connect.config.OIDCServerConfiguration;
 import org.mitre.openid.connect.model.DefaultUserInfo;
 import org.mitre.openid.connect.model.UserInfo;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.mitre.util.http.PooledHttpClientFactory;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.client.RestTemplate;
@@ -14,19 +13,27 @@ import com.google.gson.JsonParser;
 
 public class UserInfoFetcher {
 
+	private RestTemplate restTemplate;
+	
+	public UserInfoFetcher() {
+		this(PooledHttpClientFactory.getShared());
+	}
+	
+	public UserInfoFetcher(PooledHttpClientFactory httpClientFactory) {
+		restTemplate = httpClientFactory.createRestTemplate();
+	}
+	
 	public UserInfo loadUserInfo(OIDCAuthenticationToken token) {
+		return loadUserInfo(token.getServerConfiguration(), token.getAccessTokenValue());
+	}
+	
+	public UserInfo loadUserInfo(OIDCServerConfiguration serverConfig, String accessTokenValue) {
 		
-		HttpClient httpClient = new DefaultHttpClient();
-
-		HttpComponentsClientHttpRequestFactory factory = new HttpComponentsClientHttpRequestFactory(httpClient);
-
-		RestTemplate restTemplate = new RestTemplate(factory);
-
 		MultiValueMap<String, String> form = new LinkedMultiValueMap<String, String>();
-		form.add("access_token", token.getAccessTokenValue());
+		form.add("access_token", accessTokenValue);
 		form.add("schema", "openid");
 		
-		String userInfoString = restTemplate.postForObject(token.getServerConfiguration().getUserInfoUrl(), form, String.class);
+		String userInfoString = restTemplate.postForObject(serverConfig.getUserInfoUrl(), form, String.class);
 		
 		JsonObject userInfoJson = new JsonParser().parse(userInfoString).getAsJsonObject();
 		
@@ -81,11 +81,20 @@ public class Jwe extends Jwt {
 
 	@Override
 	public String getSignatureBase() {
+		String c64 = new String(Base64.encodeBase64URLSafe(getCiphertext()));
+		
+		return getHeaderAndKeyBase() + "." + c64;	
+	}
+	
+	/**
+	 * The header in Base64, a period ".", and the encrypted key in Base64. This is the additional
+	 * data that authenticated encryption methods protect along with the ciphertext.
+	 */
+	public String getHeaderAndKeyBase() {
 		String h64 = new String(Base64.encodeBase64URLSafe(getHeader().toJsonString().getBytes()));
 		String e64 = new String(Base64.encodeBase64URLSafe(getEncryptedKey()));
-		String c64 = new String(Base64.encodeBase64URLSafe(getCiphertext()));
 		
-		return h64 + "." + e64 + "." + c64;	
+		return h64 + "." + e64;
 	}
 	
 	
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.jwt.encryption;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.mitre.jwt.signer.JwsAlgorithm;
+
+/**
+ * Content encryption and integrity primitives shared by the JWE encrypters and
+ * decrypters, so that the whole-payload and streaming paths produce and accept
+ * exactly the same tokens.
+ */
+public class JweCrypto {
+
+	// how much of a payload is handled at once when streaming, a multiple of both the AES block and a base64 group
+	public static final int CHUNK_SIZE = 8 * 1024;
+
+	// GCM nonces are 96 bits and authentication tags 128 bits
+	public static final int GCM_IV_LENGTH = 12;
+	public static final int GCM_TAG_LENGTH = 16;
+
+	// thread-safe, and seeding a new one for every key and IV would be slow
+	private static final SecureRandom random = new SecureRandom();
+
+	// Java 6 has no GCM of its own, so use BouncyCastle's directly; an instance
+	// can be reinitialized for every message, so each thread keeps one around
+	private static final ThreadLocal<GCMBlockCipher> gcmCiphers = new ThreadLocal<GCMBlockCipher>() {
+		@Override
+		protected GCMBlockCipher initialValue() {
+			return new GCMBlockCipher(new AESEngine());
+		}
+	};
+
+	private JweCrypto() {
+		// static helpers only
+	}
+
+	/**
+	 * @return true if the encryption method protects integrity itself (AES-GCM),
+	 * rather than needing a separate integrity key and MAC
+	 */
+	public static boolean isAuthenticatedEncryption(String encMethod) {
+		return "A128GCM".equals(encMethod) || "A256GCM".equals(encMethod);
+	}
+
+	/**
+	 * @return the length in bytes of the key for an authenticated encryption method,
+	 * which is used directly as the content encryption key
+	 */
+	public static int getAuthenticatedKeyLength(String encMethod) {
+		if ("A128GCM".equals(encMethod)) {
+			return 16;
+		} else if ("A256GCM".equals(encMethod)) {
+			return 32;
+		} else {
+			throw new IllegalArgumentException(encMethod + " is not an authenticated encryption method");
+		}
+	}
+
+	/**
+	 * Get cryptographically strong random bytes, for keys and IVs.
+	 */
+	public static byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Encrypt and authenticate the plaintext with AES-GCM in a single pass.
+	 * 
+	 * @param aad	additional data covered by the authentication tag but not encrypted
+	 * @return		the ciphertext followed by the GCM_TAG_LENGTH byte authentication tag
+	 */
+	public static byte[] encryptGcm(byte[] contentEncryptionKey, byte[] iv, byte[] aad, byte[] plaintext) {
+		GCMBlockCipher gcm = gcmCiphers.get();
+		gcm.init(true, new AEADParameters(new KeyParameter(contentEncryptionKey), GCM_TAG_LENGTH * 8, iv, aad));
+
+		byte[] out = new byte[gcm.getOutputSize(plaintext.length)];
+		int len = gcm.processBytes(plaintext, 0, plaintext.length, out, 0);
+		try {
+			gcm.doFinal(out, len);
+		} catch (InvalidCipherTextException e) {
+			// only decryption checks a tag
+			throw new IllegalStateException(e);
+		}
+		return out;
+	}
+
+	/**
+	 * Check the authentication tag on and decrypt AES-GCM ciphertext in a single pass.
+	 * 
+	 * @param ciphertextAndTag	the ciphertext followed by its authentication tag
+	 * @throws BadPaddingException if the tag doesn't match
+	 */
+	public static byte[] decryptGcm(byte[] contentEncryptionKey, byte[] iv, byte[] aad, byte[] ciphertextAndTag) throws BadPaddingException {
+		GCMBlockCipher gcm = gcmCiphers.get();
+		gcm.init(false, new AEADParameters(new KeyParameter(contentEncryptionKey), GCM_TAG_LENGTH * 8, iv, aad));
+
+		byte[] out = new byte[gcm.getOutputSize(ciphertextAndTag.length)];
+		int len = gcm.processBytes(ciphertextAndTag, 0, ciphertextAndTag.length, out, 0);
+		try {
+			len += gcm.doFinal(out, len);
+		} catch (InvalidCipherTextException e) {
+			throw new BadPaddingException("JWE integrity value does not match");
+		}
+
+		if (len == out.length) {
+			return out;
+		} else {
+			byte[] trimmed = new byte[len];
+			System.arraycopy(out, 0, trimmed, 0, len);
+			return trimmed;
+		}
+	}
+
+	/**
+	 * Create an AES cipher for the given JWE encryption method, initialized with the content encryption key and IV.
+	 * 
+	 * @param encMethod		the "enc" value from the JWE header
+	 * @param opmode		Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+	 */
+	public static Cipher createContentCipher(String encMethod, int opmode, byte[] contentEncryptionKey, byte[] iv) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+		// the GCM methods go through encryptGcm and decryptGcm instead
+		if ("A128CBC".equals(encMethod) || "A256CBC".equals(encMethod)) {
+
+			String mode = JweAlgorithms.getByName(encMethod);
+
+			Cipher cipher = Cipher.getInstance("AES/" + mode + "/PKCS5Padding");
+			cipher.init(opmode, new SecretKeySpec(contentEncryptionKey, "AES"), new IvParameterSpec(iv));
+			return cipher;
+
+		} else {
+			throw new IllegalArgumentException(encMethod + " is not a supported encryption method");
+		}
+	}
+
+	/**
+	 * Create the MAC for the integrity value of a JWE, keyed with the content integrity key.
+	 * 
+	 * @param integrityAlg	the "int" value from the JWE header, which must be an HMAC algorithm
+	 */
+	public static Mac createIntegrityMac(String integrityAlg, byte[] contentIntegrityKey) throws NoSuchAlgorithmException, InvalidKeyException {
+		if ("HS256".equals(integrityAlg) || "HS384".equals(integrityAlg) || "HS512".equals(integrityAlg)) {
+
+			String standardName = JwsAlgorithm.getByJwaName(integrityAlg).getStandardName();
+
+			Mac mac = Mac.getInstance(standardName);
+			mac.init(new SecretKeySpec(contentIntegrityKey, standardName));
+			return mac;
+
+		} else {
+			throw new IllegalArgumentException(integrityAlg + " is not a valid integrity value algorithm for signing.");
+		}
+	}
+
+}
@@ -1,97 +1,388 @@
 package org.mitre.jwt.encryption.impl;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.codec.binary.Base64;
 import org.mitre.jwe.model.Jwe;
+import org.mitre.jwe.model.JweHeader;
 import org.mitre.jwt.encryption.AbstractJweDecrypter;
 import org.mitre.jwt.encryption.JweAlgorithms;
+import org.mitre.jwt.encryption.JweCrypto;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 
 public class RsaDecrypter extends AbstractJweDecrypter {
 	
+	// the header and encrypted key are buffered whole, so cap their size
+	private static final int MAX_SEGMENT_LENGTH = 64 * 1024;
+	
+	// every way a JWE can fail to decrypt reports the same thing, whatever its encryption method, so they can't be told apart
+	private static final String DECRYPTION_FAILED = "JWE could not be decrypted";
+	
 	private PublicKey publicKey;
 	private PrivateKey privateKey;
 	
+	// an RSA cipher isn't thread-safe, so each thread keeps its own, initialized with the private key
+	private final ThreadLocal<KeyedCipher> rsaCiphers = new ThreadLocal<KeyedCipher>();
+	
+	// keys recovered from encrypted keys seen recently; off unless given a size
+	private int contentKeyCacheSize = 0;
+	private int contentKeyCacheSeconds = 60;
+	private volatile Cache<ContentKeyId, ContentKeys> contentKeyCache = null;
+	
 	@Override
-	public Jwe decrypt(String encryptedJwe) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+	public Jwe decrypt(String encryptedJwe) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException, SignatureException {
 		
 		Jwe jwe = Jwe.parse(encryptedJwe);
 		
 		String alg = jwe.getHeader().getAlgorithm();
 		if(alg.equals("RSA1_5") || alg.equals("RSA-OAEP")) {
 			
-			//decrypt to get cmk to be used for cek and cik
-			jwe.setEncryptedKey(decryptEncryptionKey(jwe));
+			if (JweCrypto.isAuthenticatedEncryption(jwe.getHeader().getEncryptionMethod())) {
+				return decryptAuthenticated(encryptedJwe, jwe);
+			}
+			
+			//decrypt to get cmk to be used for cek and cik, and generate them
+			ContentKeys keys;
+			try {
+				keys = getContentKeys(alg, jwe.getEncryptedKey(), getKeyBitLength(jwe.getHeader()));
+			} catch (BadPaddingException e) {
+				throw new SignatureException(DECRYPTION_FAILED);
+			} catch (IllegalBlockSizeException e) {
+				throw new SignatureException(DECRYPTION_FAILED);
+			}
+			jwe.setEncryptedKey(keys.contentMasterKey.clone());
+			byte[] contentEncryptionKey = keys.contentEncryptionKey;
 			
-			//generation of cek and cik
-			byte[] contentEncryptionKey = null;
-			//check what the key length is
-			String kdf = jwe.getHeader().getKeyDerivationFunction();
-			String keyLength = JweAlgorithms.getByName(kdf);
-			int keyBitLength = Integer.parseInt(keyLength);
-			//generate cek and cik
-			contentEncryptionKey = generateContentKey(jwe.getEncryptedKey(), keyBitLength, "Encryption".getBytes());
+			// check the integrity value before the padding is looked at, as the streaming path does
+			int integrityStart = encryptedJwe.lastIndexOf('.');
+			Mac mac = JweCrypto.createIntegrityMac(jwe.getHeader().getIntegrity(), keys.contentIntegrityKey);
+			byte[] expected = Base64.encodeBase64URLSafe(mac.doFinal(encryptedJwe.substring(0, integrityStart).getBytes(Charset.forName("US-ASCII"))));
+			if (!MessageDigest.isEqual(expected, encryptedJwe.substring(integrityStart + 1).getBytes(Charset.forName("US-ASCII")))) {
+				throw new SignatureException(DECRYPTION_FAILED);
+			}
 			
 			//decrypt ciphertext to get claims
-			jwe.setCiphertext(decryptCipherText(jwe, contentEncryptionKey));
+			try {
+				jwe.setCiphertext(decryptCipherText(jwe, contentEncryptionKey));
+			} catch (BadPaddingException e) {
+				throw new SignatureException(DECRYPTION_FAILED);
+			} catch (IllegalBlockSizeException e) {
+				throw new SignatureException(DECRYPTION_FAILED);
+			}
 			
 		} else {
 			throw new IllegalArgumentException(jwe.getHeader().getEncryptionMethod() + " is not a valid decrypting algorithm");
 		}
 		return jwe;
 	}
+	
+	/**
+	 * Check and decrypt an AES-GCM JWE in a single pass. The decrypted key is
+	 * the content encryption key as it is, and must be the size the encryption
+	 * method calls for. The integrity value is the authentication tag, and the
+	 * header and encrypted key exactly as they were sent are authenticated along
+	 * with the ciphertext.
+	 */
+	private Jwe decryptAuthenticated(String encryptedJwe, Jwe jwe) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, SignatureException {
+		
+		// there's nothing to derive
+		byte[] contentEncryptionKey;
+		try {
+			contentEncryptionKey = getContentKeys(jwe.getHeader().getAlgorithm(), jwe.getEncryptedKey(), 0).contentEncryptionKey;
+		} catch (BadPaddingException e) {
+			throw new SignatureException(DECRYPTION_FAILED);
+		} catch (IllegalBlockSizeException e) {
+			throw new SignatureException(DECRYPTION_FAILED);
+		}
+		jwe.setEncryptedKey(contentEncryptionKey.clone());
+		
+		int keyEnd = encryptedJwe.indexOf('.', encryptedJwe.indexOf('.') + 1);
+		byte[] aad = encryptedJwe.substring(0, keyEnd).getBytes(Charset.forName("US-ASCII"));
+		
+		byte[] iv = Base64.decodeBase64(jwe.getHeader().getInitializationVector());
+		
+		// the key size is whatever the sender wrapped, so hold it to the one the header names
+		String enc = jwe.getHeader().getEncryptionMethod();
+		if (contentEncryptionKey.length != JweCrypto.getAuthenticatedKeyLength(enc) || iv == null || iv.length != JweCrypto.GCM_IV_LENGTH) {
+			throw new SignatureException(DECRYPTION_FAILED);
+		}
+		
+		byte[] tag = Base64.decodeBase64(jwe.getSignature());
+		byte[] cipherTextAndTag = Arrays.copyOf(jwe.getCiphertext(), jwe.getCiphertext().length + tag.length);
+		System.arraycopy(tag, 0, cipherTextAndTag, jwe.getCiphertext().length, tag.length);
+		
+		try {
+			jwe.setCiphertext(JweCrypto.decryptGcm(contentEncryptionKey, iv, aad, cipherTextAndTag));
+		} catch (BadPaddingException e) {
+			throw new SignatureException(DECRYPTION_FAILED);
+		}
+		
+		return jwe;
+	}
+	
+	/**
+	 * Decrypt the serialized JWE read from the given stream and write its
+	 * plaintext to the output stream. The ciphertext is base64url-decoded,
+	 * decrypted and run through the integrity MAC a chunk at a time as it's read,
+	 * so memory use doesn't grow with the size of the payload. Only the CBC
+	 * encryption methods can be streamed.
+	 * 
+	 * Plaintext is written out before the integrity value at the end of the JWE
+	 * can be checked; if this throws, whatever was written must be discarded. The
+	 * final block, which holds the padding, is only decrypted once the integrity
+	 * value has been checked.
+	 * 
+	 * @param encryptedJwe	the JWE to decrypt, read to its end but not closed
+	 * @param plaintext		where to write the payload, flushed but not closed
+	 * @return				the JWE's header
+	 * @throws SignatureException if the encrypted key, the integrity value or the
+	 * 						padding is bad, without saying which
+	 */
+	public JweHeader decrypt(InputStream encryptedJwe, OutputStream plaintext) throws IOException, GeneralSecurityException {
+		
+		InputStream in = new BufferedInputStream(encryptedJwe, JweCrypto.CHUNK_SIZE);
+		
+		byte[] h64 = readSegment(in, true);
+		byte[] e64 = readSegment(in, true);
+		
+		JweHeader header = new JweHeader(new String(h64, "US-ASCII"));
+		
+		String alg = header.getAlgorithm();
+		if (!alg.equals("RSA1_5") && !alg.equals("RSA-OAEP")) {
+			throw new IllegalArgumentException(header.getEncryptionMethod() + " is not a valid decrypting algorithm");
+		}
+		if (JweCrypto.isAuthenticatedEncryption(header.getEncryptionMethod())) {
+			throw new IllegalArgumentException(header.getEncryptionMethod() + " is not supported for streaming");
+		}
+		
+		ContentKeys keys;
+		try {
+			keys = getContentKeys(alg, Base64.decodeBase64(e64), getKeyBitLength(header));
+		} catch (BadPaddingException e) {
+			throw new SignatureException(DECRYPTION_FAILED);
+		} catch (IllegalBlockSizeException e) {
+			throw new SignatureException(DECRYPTION_FAILED);
+		}
+		byte[] contentEncryptionKey = keys.contentEncryptionKey;
+		byte[] contentIntegrityKey = keys.contentIntegrityKey;
+		
+		Mac mac = JweCrypto.createIntegrityMac(header.getIntegrity(), contentIntegrityKey);
+		mac.update(h64);
+		mac.update((byte) '.');
+		mac.update(e64);
+		mac.update((byte) '.');
+		
+		Cipher cipher = JweCrypto.createContentCipher(header.getEncryptionMethod(), Cipher.DECRYPT_MODE, contentEncryptionKey, 
+				Base64.decodeBase64(header.getInitializationVector()));
+		
+		// the chunk size is a multiple of four, so every full chunk decodes on its own
+		byte[] chunk = new byte[JweCrypto.CHUNK_SIZE];
+		int n = 0;
+		int b;
+		while ((b = in.read()) != -1 && b != '.') {
+			chunk[n++] = (byte) b;
+			if (n == chunk.length) {
+				mac.update(chunk);
+				write(plaintext, cipher.update(Base64.decodeBase64(chunk)));
+				n = 0;
+			}
+		}
+		if (b == -1) {
+			throw new IllegalArgumentException("Invalid JWE format.");
+		}
+		mac.update(chunk, 0, n);
+		
+		// check the integrity value before the padding is looked at, so a tampered
+		// ciphertext can't be used to learn whether its padding was good
+		byte[] i64 = readSegment(in, false);
+		byte[] expected = Base64.encodeBase64URLSafe(mac.doFinal());
+		if (!MessageDigest.isEqual(expected, i64)) {
+			throw new SignatureException(DECRYPTION_FAILED);
+		}
+		
+		try {
+			write(plaintext, cipher.update(Base64.decodeBase64(Arrays.copyOf(chunk, n))));
+			write(plaintext, cipher.doFinal());
+		} catch (BadPaddingException e) {
+			throw new SignatureException(DECRYPTION_FAILED);
+		} catch (IllegalBlockSizeException e) {
+			throw new SignatureException(DECRYPTION_FAILED);
+		}
+		
+		plaintext.flush();
+		
+		return header;
+	}
 
 	@Override
 	public byte[] decryptCipherText(Jwe jwe, byte[] contentEncryptionKey) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
 		
-		byte[] iv = new byte[16];
-		iv = Base64.decodeBase64(jwe.getHeader().getInitializationVector());
+		byte[] iv = Base64.decodeBase64(jwe.getHeader().getInitializationVector());
 		
-		String encMethod = jwe.getHeader().getEncryptionMethod();
-		//TODO: should also check for A128GCM and A256GCM, but Cipher.getInstance() does not support the GCM mode. For now, don't use them
-		if(encMethod.equals("A128CBC") || encMethod.equals("A256CBC")) {
-
-			String mode = JweAlgorithms.getByName(encMethod);
-			
-			Cipher cipher = Cipher.getInstance("AES/" + mode + "/PKCS5Padding");
-			cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(contentEncryptionKey, "AES"), new IvParameterSpec(iv));
-			byte[] clearText = cipher.doFinal(jwe.getCiphertext());
-			
-			return clearText;
-			
-		} else {
-			throw new IllegalArgumentException(jwe.getHeader().getEncryptionMethod() + " is not an implemented encryption method");
-		}
-
+		Cipher cipher = JweCrypto.createContentCipher(jwe.getHeader().getEncryptionMethod(), Cipher.DECRYPT_MODE, contentEncryptionKey, iv);
+		byte[] clearText = cipher.doFinal(jwe.getCiphertext());
+		
+		return clearText;
 		
 	}
 
 	@Override
 	public byte[] decryptEncryptionKey(Jwe jwe) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+		return decryptEncryptionKey(jwe.getHeader().getAlgorithm(), jwe.getEncryptedKey());
+	}
+	
+	private byte[] decryptEncryptionKey(String alg, byte[] encryptedKey) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
 		
-		if(jwe.getHeader().getAlgorithm().equals("RSA1_5")){
-			Cipher cipher = Cipher.getInstance("RSA");
-			cipher.init(Cipher.DECRYPT_MODE, getPrivateKey());
-			byte[] contentMasterKey = cipher.doFinal(jwe.getEncryptedKey());
+		if(alg.equals("RSA1_5")){
+			Cipher cipher = getRsaCipher();
+			byte[] contentMasterKey = cipher.doFinal(encryptedKey);
 		
 			return contentMasterKey;
 		} else {
-			throw new IllegalArgumentException(jwe.getHeader().getAlgorithm() + " is not an implemented algorithm");
+			throw new IllegalArgumentException(alg + " is not an implemented algorithm");
 		}
 
 	}
+	
+	/**
+	 * Get this thread's RSA cipher for the current private key. doFinal leaves
+	 * a cipher ready for its next use, so it's only initialized once.
+	 */
+	private Cipher getRsaCipher() throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+		PrivateKey key = getPrivateKey();
+		
+		KeyedCipher keyed = rsaCiphers.get();
+		if (keyed == null || keyed.key != key) {
+			Cipher cipher = Cipher.getInstance("RSA");
+			cipher.init(Cipher.DECRYPT_MODE, key);
+			keyed = new KeyedCipher(key, cipher);
+			rsaCiphers.set(keyed);
+		}
+		return keyed.cipher;
+	}
+	
+	/**
+	 * Recover the content master key from the encrypted key and derive the
+	 * content encryption and integrity keys from it, or find them in the cache.
+	 * 
+	 * @param keyBitLength	the key derivation length, or 0 if the master key is used for encryption as it is
+	 */
+	private ContentKeys getContentKeys(String alg, byte[] encryptedKey, int keyBitLength) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+		
+		Cache<ContentKeyId, ContentKeys> cache = contentKeyCache;
+		if (cache == null) {
+			return deriveContentKeys(alg, encryptedKey, keyBitLength);
+		}
+		
+		Throwable cause;
+		try {
+			return cache.get(new ContentKeyId(alg, encryptedKey, keyBitLength));
+		} catch (ExecutionException e) {
+			cause = e.getCause();
+		} catch (UncheckedExecutionException e) {
+			cause = e.getCause();
+		}
+		
+		Throwables.propagateIfInstanceOf(cause, NoSuchAlgorithmException.class);
+		Throwables.propagateIfInstanceOf(cause, NoSuchPaddingException.class);
+		Throwables.propagateIfInstanceOf(cause, InvalidKeyException.class);
+		Throwables.propagateIfInstanceOf(cause, IllegalBlockSizeException.class);
+		Throwables.propagateIfInstanceOf(cause, BadPaddingException.class);
+		throw Throwables.propagate(cause);
+	}
+	
+	private ContentKeys deriveContentKeys(String alg, byte[] encryptedKey, int keyBitLength) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+		
+		byte[] contentMasterKey = decryptEncryptionKey(alg, encryptedKey);
+		
+		if (keyBitLength == 0) {
+			return new ContentKeys(contentMasterKey, contentMasterKey, null);
+		}
+		
+		byte[] contentEncryptionKey = generateContentKey(contentMasterKey, keyBitLength, "Encryption".getBytes());
+		byte[] contentIntegrityKey = generateContentKey(contentMasterKey, keyBitLength, "Integrity".getBytes());
+		
+		return new ContentKeys(contentMasterKey, contentEncryptionKey, contentIntegrityKey);
+	}
+	
+	private void buildContentKeyCache() {
+		if (contentKeyCacheSize > 0) {
+			contentKeyCache = CacheBuilder.newBuilder()
+					.maximumSize(contentKeyCacheSize)
+					.expireAfterWrite(contentKeyCacheSeconds, TimeUnit.SECONDS)
+					.build(new CacheLoader<ContentKeyId, ContentKeys>() {
+						@Override
+						public ContentKeys load(ContentKeyId id) throws Exception {
+							return deriveContentKeys(id.alg, id.encryptedKey, id.keyBitLength);
+						}
+					});
+		} else {
+			contentKeyCache = null;
+		}
+	}
+	
+	private int getKeyBitLength(JweHeader header) {
+		String kdf = header.getKeyDerivationFunction();
+		String keyLength = JweAlgorithms.getByName(kdf);
+		return Integer.parseInt(keyLength);
+	}
+	
+	/**
+	 * Read one of the short segments of a serialized JWE, up to the next period
+	 * (if dotted) or the end of the stream (if not).
+	 */
+	private static byte[] readSegment(InputStream in, boolean dotted) throws IOException {
+		ByteArrayOutputStream segment = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1 && b != '.') {
+			if (segment.size() >= MAX_SEGMENT_LENGTH) {
+				throw new IllegalArgumentException("Invalid JWE format.");
+			}
+			segment.write(b);
+		}
+		if (dotted && b == -1) {
+			throw new IllegalArgumentException("Invalid JWE format.");
+		}
+		if (!dotted && b != -1) {
+			throw new IllegalArgumentException("Invalid JWE format.");
+		}
+		return segment.toByteArray();
+	}
+	
+	private static void write(OutputStream out, byte[] bytes) throws IOException {
+		// Cipher.update returns null when it's holding on to a partial block
+		if (bytes != null) {
+			out.write(bytes);
+		}
+	}
 
 	public PublicKey getPublicKey() {
 		return publicKey;
@@ -107,6 +398,99 @@ public class RsaDecrypter extends AbstractJweDecrypter {
 
 	public void setPrivateKey(PrivateKey privateKey) {
 		this.privateKey = privateKey;
+		// keys recovered with the old private key are no longer any good
+		buildContentKeyCache();
+	}
+
+	/**
+	 * @return the maximum number of recovered content keys to keep, 0 if they aren't kept
+	 */
+	public int getContentKeyCacheSize() {
+		return contentKeyCacheSize;
+	}
+
+	/**
+	 * @param contentKeyCacheSize the maximum number of recovered content keys to keep,
+	 * so that JWEs sent with the same encrypted key skip the RSA operation; 0 to not keep them
+	 */
+	public void setContentKeyCacheSize(int contentKeyCacheSize) {
+		this.contentKeyCacheSize = contentKeyCacheSize;
+		buildContentKeyCache();
+	}
+
+	/**
+	 * @return how long to keep a recovered content key, in seconds
+	 */
+	public int getContentKeyCacheSeconds() {
+		return contentKeyCacheSeconds;
+	}
+
+	/**
+	 * @param contentKeyCacheSeconds how long to keep a recovered content key, in seconds
+	 */
+	public void setContentKeyCacheSeconds(int contentKeyCacheSeconds) {
+		this.contentKeyCacheSeconds = contentKeyCacheSeconds;
+		buildContentKeyCache();
+	}
+	
+	/**
+	 * An RSA cipher along with the key it was initialized with.
+	 */
+	private static class KeyedCipher {
+		private final PrivateKey key;
+		private final Cipher cipher;
+		
+		private KeyedCipher(PrivateKey key, Cipher cipher) {
+			this.key = key;
+			this.cipher = cipher;
+		}
+	}
+	
+	/**
+	 * Identifies an encrypted key by its digest, and carries the key itself
+	 * along so the cache can recover it.
+	 */
+	private static class ContentKeyId {
+		private final String alg;
+		private final byte[] digest;
+		private final int keyBitLength;
+		private final byte[] encryptedKey;
+		
+		private ContentKeyId(String alg, byte[] encryptedKey, int keyBitLength) throws NoSuchAlgorithmException {
+			this.alg = alg;
+			this.digest = MessageDigest.getInstance("SHA-256").digest(encryptedKey);
+			this.keyBitLength = keyBitLength;
+			this.encryptedKey = encryptedKey;
+		}
+		
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(digest) * 31 + keyBitLength;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ContentKeyId)) {
+				return false;
+			}
+			ContentKeyId other = (ContentKeyId) obj;
+			return keyBitLength == other.keyBitLength && alg.equals(other.alg) && Arrays.equals(digest, other.digest);
+		}
+	}
+	
+	/**
+	 * The keys recovered from an encrypted key. The arrays are shared, so they mustn't be changed.
+	 */
+	private static class ContentKeys {
+		private final byte[] contentMasterKey;
+		private final byte[] contentEncryptionKey;
+		private final byte[] contentIntegrityKey;
+		
+		private ContentKeys(byte[] contentMasterKey, byte[] contentEncryptionKey, byte[] contentIntegrityKey) {
+			this.contentMasterKey = contentMasterKey;
+			this.contentEncryptionKey = contentEncryptionKey;
+			this.contentIntegrityKey = contentIntegrityKey;
+		}
 	}
 
 }
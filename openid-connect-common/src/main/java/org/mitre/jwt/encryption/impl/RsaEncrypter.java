@@ -1,28 +1,37 @@
 package org.mitre.jwt.encryption.impl;
 
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
-import java.util.Random;
+import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.codec.binary.Base64;
 import org.mitre.jwe.model.Jwe;
+import org.mitre.jwe.model.JweHeader;
 import org.mitre.jwt.encryption.AbstractJweEncrypter;
 import org.mitre.jwt.encryption.JweAlgorithms;
-import org.mitre.jwt.signer.impl.HmacSigner;
+import org.mitre.jwt.encryption.JweCrypto;
+import org.mitre.util.Base64UrlOutputStream;
 
 public class RsaEncrypter extends AbstractJweEncrypter {
 	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
 	private PublicKey publicKey;
 	private PrivateKey privateKey;
 
@@ -33,15 +42,16 @@ public class RsaEncrypter extends AbstractJweEncrypter {
 		
 		if(alg.equals("RSA1_5") || alg.equals("RSA-OAEP")) {
 			
+			if (JweCrypto.isAuthenticatedEncryption(jwe.getHeader().getEncryptionMethod())) {
+				return encryptAuthenticated(jwe);
+			}
+			
 			//generate random content master key
 
 			//check what the key length is
-			String kdf = jwe.getHeader().getKeyDerivationFunction();
-			String keyLength = JweAlgorithms.getByName(kdf);
-			int keyBitLength = Integer.parseInt(keyLength);
+			int keyBitLength = getKeyBitLength(jwe.getHeader());
 			
-			byte[] contentMasterKey = new byte[keyBitLength];
-			new Random().nextBytes(contentMasterKey);
+			byte[] contentMasterKey = generateContentMasterKey(keyBitLength);
 
 			byte[] contentEncryptionKey = null;
 			byte[] contentIntegrityKey = null;
@@ -54,15 +64,10 @@ public class RsaEncrypter extends AbstractJweEncrypter {
 			jwe.setCiphertext(encryptClaims(jwe, contentEncryptionKey));
 			jwe.setEncryptedKey(encryptKey(jwe, contentMasterKey));
 			
-			//Signer must be hmac
-			if(integrityAlg.equals("HS256") || integrityAlg.equals("HS384") || integrityAlg.equals("HS512")){
-			
-				HmacSigner hmacSigner = new HmacSigner(contentIntegrityKey); 
-				jwe = (Jwe) hmacSigner.sign(jwe);
-				
-			} else {
-				throw new IllegalArgumentException(integrityAlg + " is not a valid integrity value algorithm for signing.");
-			}
+			//integrity value is an hmac over the signature base, keyed with the cik
+			Mac mac = JweCrypto.createIntegrityMac(integrityAlg, contentIntegrityKey);
+			byte[] integrityValue = mac.doFinal(jwe.getSignatureBase().getBytes(UTF8));
+			jwe.setSignature(new String(Base64.encodeBase64URLSafe(integrityValue)));
 			
 		} else {
 			throw new IllegalArgumentException(alg + " is not a valid encrypting algorithm.");
@@ -70,10 +75,95 @@ public class RsaEncrypter extends AbstractJweEncrypter {
 		
 		return jwe;
 	}
+	
+	/**
+	 * Encrypt with AES-GCM, which protects the ciphertext, header and encrypted
+	 * key in a single pass. The random key is used for encryption as it is, and
+	 * the authentication tag becomes the integrity value. Any IV already in the
+	 * header is replaced, since reusing a GCM nonce with the same key gives the
+	 * plaintext away.
+	 */
+	private Jwe encryptAuthenticated(Jwe jwe) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+		
+		String encMethod = jwe.getHeader().getEncryptionMethod();
+		
+		byte[] contentEncryptionKey = JweCrypto.randomBytes(JweCrypto.getAuthenticatedKeyLength(encMethod));
+		byte[] iv = createIv(jwe.getHeader(), JweCrypto.GCM_IV_LENGTH);
+		
+		jwe.setEncryptedKey(encryptKey(jwe, contentEncryptionKey));
+		
+		byte[] aad = jwe.getHeaderAndKeyBase().getBytes(UTF8);
+		byte[] cipherTextAndTag = JweCrypto.encryptGcm(contentEncryptionKey, iv, aad, jwe.getCiphertext());
+		
+		int tagStart = cipherTextAndTag.length - JweCrypto.GCM_TAG_LENGTH;
+		jwe.setCiphertext(Arrays.copyOf(cipherTextAndTag, tagStart));
+		jwe.setSignature(new String(Base64.encodeBase64URLSafe(Arrays.copyOfRange(cipherTextAndTag, tagStart, cipherTextAndTag.length))));
+		
+		return jwe;
+	}
+	
+	/**
+	 * Encrypt the plaintext read from the given stream and write the serialized
+	 * JWE to the output stream. The ciphertext is encrypted, base64url-encoded
+	 * and run through the integrity MAC a chunk at a time as it's written, so
+	 * memory use doesn't grow with the size of the payload. Only the CBC
+	 * encryption methods can be streamed.
+	 * 
+	 * @param header		the JWE header, which gets a fresh IV if it doesn't have one
+	 * @param plaintext		the payload to encrypt, read to its end but not closed
+	 * @param out			where to write the JWE, flushed but not closed
+	 */
+	public void encryptAndSign(JweHeader header, InputStream plaintext, OutputStream out) throws IOException, GeneralSecurityException {
+		
+		String alg = header.getAlgorithm();
+		if (!alg.equals("RSA1_5") && !alg.equals("RSA-OAEP")) {
+			throw new IllegalArgumentException(alg + " is not a valid encrypting algorithm.");
+		}
+		if (JweCrypto.isAuthenticatedEncryption(header.getEncryptionMethod())) {
+			throw new IllegalArgumentException(header.getEncryptionMethod() + " is not supported for streaming");
+		}
+		
+		int keyBitLength = getKeyBitLength(header);
+		byte[] contentMasterKey = generateContentMasterKey(keyBitLength);
+		byte[] contentEncryptionKey = generateContentKey(contentMasterKey, keyBitLength, "Encryption".getBytes());
+		byte[] contentIntegrityKey = generateContentKey(contentMasterKey, keyBitLength, "Integrity".getBytes());
+		
+		// set everything up before writing anything, so a bad header doesn't leave half a token behind
+		Mac mac = JweCrypto.createIntegrityMac(header.getIntegrity(), contentIntegrityKey);
+		Cipher cipher = JweCrypto.createContentCipher(header.getEncryptionMethod(), Cipher.ENCRYPT_MODE, contentEncryptionKey, getOrCreateIv(header, 16));
+		byte[] encryptedKey = encryptKey(alg, contentMasterKey);
+		
+		// everything before the integrity value goes through the mac on its way out
+		MacOutputStream signed = new MacOutputStream(out, mac);
+		signed.write(Base64.encodeBase64URLSafe(header.toJsonString().getBytes(UTF8)));
+		signed.write('.');
+		signed.write(Base64.encodeBase64URLSafe(encryptedKey));
+		signed.write('.');
+		
+		Base64UrlOutputStream c64 = new Base64UrlOutputStream(signed);
+		byte[] buf = new byte[JweCrypto.CHUNK_SIZE];
+		int n;
+		while ((n = plaintext.read(buf)) != -1) {
+			byte[] cipherText = cipher.update(buf, 0, n);
+			if (cipherText != null) {
+				c64.write(cipherText);
+			}
+		}
+		c64.write(cipher.doFinal());
+		c64.finish();
+		
+		out.write('.');
+		out.write(Base64.encodeBase64URLSafe(mac.doFinal()));
+		out.flush();
+	}
 
 	public byte[] encryptKey(Jwe jwe, byte[] contentMasterKey) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+		return encryptKey(jwe.getHeader().getAlgorithm(), contentMasterKey);
+	}
+	
+	private byte[] encryptKey(String alg, byte[] contentMasterKey) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
 		
-		if(jwe.getHeader().getAlgorithm().equals("RSA1_5")){
+		if(alg.equals("RSA1_5")){
 		
 			Cipher cipher = Cipher.getInstance("RSA");
 			cipher.init(Cipher.ENCRYPT_MODE, getPublicKey());
@@ -81,37 +171,51 @@ public class RsaEncrypter extends AbstractJweEncrypter {
 			return encryptedKey;
 		
 		} else {
-			throw new IllegalArgumentException(jwe.getHeader().getAlgorithm() + " is not a supported algorithm");
+			throw new IllegalArgumentException(alg + " is not a supported algorithm");
 		}
 		
 	}
 
 	public byte[] encryptClaims(Jwe jwe, byte[] contentEncryptionKey) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException, InvalidKeySpecException {
 		
-		byte[] iv = new byte[16];
-		//look for iv value in header, if not there make one
-		if(jwe.getHeader().getInitializationVector() != null){
-			iv = Base64.decodeBase64(jwe.getHeader().getInitializationVector());
-		} else {
-			new Random().nextBytes(iv);
-			jwe.getHeader().setIv(Base64.encodeBase64String(iv));
-		}
+		byte[] iv = getOrCreateIv(jwe.getHeader(), 16);
 		
-		String encMethod = jwe.getHeader().getEncryptionMethod();
-		//TODO: should also check for A128GCM and A256GCM, but Cipher.getInstance() does not support the GCM mode. For now, don't use them
-		if(encMethod.equals("A128CBC") || encMethod.equals("A256CBC")) {
-			
-			String mode = JweAlgorithms.getByName(encMethod);
-			
-			Cipher cipher = Cipher.getInstance("AES/" + mode + "/PKCS5Padding");
-			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(contentEncryptionKey, "AES"), new IvParameterSpec(iv));
-			byte[] cipherText = cipher.doFinal(jwe.getCiphertext());
-			return cipherText;
+		Cipher cipher = JweCrypto.createContentCipher(jwe.getHeader().getEncryptionMethod(), Cipher.ENCRYPT_MODE, contentEncryptionKey, iv);
+		byte[] cipherText = cipher.doFinal(jwe.getCiphertext());
+		return cipherText;
 
+	}
+	
+	/**
+	 * Look for the IV in the header, and if it's not there make one and put it there.
+	 */
+	private byte[] getOrCreateIv(JweHeader header, int length) {
+		byte[] iv = null;
+		if(header.getInitializationVector() != null){
+			iv = Base64.decodeBase64(header.getInitializationVector());
 		} else {
-			throw new IllegalArgumentException(jwe.getHeader().getEncryptionMethod() + " is not a supported encryption method");
+			iv = createIv(header, length);
 		}
-
+		return iv;
+	}
+	
+	/**
+	 * Make a fresh IV and put it in the header, in place of any that's there.
+	 */
+	private byte[] createIv(JweHeader header, int length) {
+		byte[] iv = JweCrypto.randomBytes(length);
+		header.setIv(Base64.encodeBase64String(iv));
+		return iv;
+	}
+	
+	private byte[] generateContentMasterKey(int keyBitLength) {
+		return JweCrypto.randomBytes(keyBitLength);
+	}
+	
+	private int getKeyBitLength(JweHeader header) {
+		String kdf = header.getKeyDerivationFunction();
+		String keyLength = JweAlgorithms.getByName(kdf);
+		return Integer.parseInt(keyLength);
 	}
 
 	public PublicKey getPublicKey() {
@@ -129,4 +233,29 @@ public class RsaEncrypter extends AbstractJweEncrypter {
 	public void setPrivateKey(PrivateKey privateKey) {
 		this.privateKey = privateKey;
 	}
+	
+	/**
+	 * Passes everything written through to the underlying stream and into a MAC.
+	 */
+	private static class MacOutputStream extends FilterOutputStream {
+		
+		private final Mac mac;
+		
+		private MacOutputStream(OutputStream out, Mac mac) {
+			super(out);
+			this.mac = mac;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			mac.update((byte) b);
+			out.write(b);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			mac.update(b, off, len);
+			out.write(b, off, len);
+		}
+	}
 }
@@ -26,6 +26,7 @@ public class JwtHeader extends ClaimSet {
 	public static final String ALGORITHM = "alg";
 	public static final String ENCRYPTION_METHOD = "enc";
 	public static final String CONTENT_TYPE = "cty";
+	public static final String KEY_ID = "kid";
 
 	/**
 	 * Make an empty header
@@ -126,6 +127,21 @@ public class JwtHeader extends ClaimSet {
     	setClaim(ENCRYPTION_METHOD, encryptionMethod);
     }
 
+	/**
+     * @return the id of the key that signed the JWT
+     */
+    public String getKeyId() {
+    	return getClaimAsString(KEY_ID);
+    }
+
+
+	/**
+     * @param keyId the id of the key that signed the JWT, as published in the key set
+     */
+    public void setKeyId(String keyId) {
+    	setClaim(KEY_ID, keyId);
+    }
+
 	public static String getContentType() {
 		return CONTENT_TYPE;
 	}
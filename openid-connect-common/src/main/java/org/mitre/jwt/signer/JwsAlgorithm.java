@@ -36,7 +36,11 @@ public enum JwsAlgorithm {
 	// RSA
 	RS256("SHA256withRSA", "RS256"), 
 	RS384("SHA384withRSA", "RS384"), 
-	RS512("SHA512withRSA", "RS512");
+	RS512("SHA512withRSA", "RS512"),
+	// ECDSA
+	ES256("SHA256withECDSA", "ES256"),
+	ES384("SHA384withECDSA", "ES384"),
+	ES512("SHA512withECDSA", "ES512");
 	
 
 	private static final Map<String, JwsAlgorithm> jwaLookup = new HashMap<String, JwsAlgorithm>();
@@ -0,0 +1,429 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.jwt.signer.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.ECPrivateKey;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Base64;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.mitre.jwt.encryption.impl.KeyStore;
+import org.mitre.jwt.signer.AbstractJwtSigner;
+import org.mitre.jwt.signer.JwsAlgorithm;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+
+/**
+ * JWT Signer using ECDSA with the P-256 and SHA-256, P-384 and SHA-384, or
+ * P-521 and SHA-512 curve and hash algorithms.
+ * 
+ * JCE produces and expects ECDSA signatures as a DER sequence of two integers,
+ * whereas JWS carries the two integers as fixed-length big-endian octets one
+ * after the other, so signatures are converted on the way in and out.
+ */
+public class EcSigner extends AbstractJwtSigner implements InitializingBean {
+
+	private static Logger logger = LoggerFactory.getLogger(EcSigner.class);
+
+	public static final String KEYPAIR_ALGORITHM = "EC";
+	public static final String DEFAULT_PASSWORD = "changeit";
+
+	public static final JwsAlgorithm DEFAULT_ALGORITHM = JwsAlgorithm.ES256;
+
+	// used when the JRE has no ECDSA of its own, as Java 6 doesn't
+	private static final Provider FALLBACK_PROVIDER = new BouncyCastleProvider();
+
+	private KeyStore keystore;
+	private String alias;
+	private String password = DEFAULT_PASSWORD;
+
+	private PrivateKey privateKey;
+	private PublicKey publicKey;
+
+	// whether the keys have been read out of the keystore yet
+	private volatile boolean keysLoaded = false;
+
+	// a Signature isn't thread-safe, so each thread keeps its own
+	private final ThreadLocal<Signature> signatures = new ThreadLocal<Signature>();
+
+	/**
+	 * Default constructor
+	 */
+	public EcSigner() {
+		super(DEFAULT_ALGORITHM);
+	}
+
+	/**
+	 * Creates an EcSigner from an algorithm name, a Java Keystore, an alias
+	 * for the key pair, and the password to access. The key pair's curve must
+	 * match the algorithm.
+	 * 
+	 * @param algorithmName
+	 *            The JWA algorithm name
+	 * @param keystore
+	 *            A Java Keystore containing the key pair
+	 * @param alias
+	 *            The alias for the key pair
+	 * @param password
+	 *            The password used to access and retrieve the key pair.
+	 * @throws GeneralSecurityException
+	 */
+	public EcSigner(String algorithmName, KeyStore keystore, String alias, String password) throws GeneralSecurityException {
+		super(JwsAlgorithm.getByJwaName(algorithmName));
+
+		setKeystore(keystore);
+		setAlias(alias);
+		setPassword(password);
+
+		loadKeysFromKeystore();
+	}
+
+	/**
+	 * Creates an EcSigner from an algorithm name, and key pair. The key pair's
+	 * curve must match the algorithm.
+	 * 
+	 * @param algorithmName
+	 *            The JWA algorithm name
+	 * @param publicKey
+	 *            The public key
+	 * @param privateKey
+	 *            The private key
+	 */
+	public EcSigner(String algorithmName, PublicKey publicKey, PrivateKey privateKey) {
+		super(JwsAlgorithm.getByJwaName(algorithmName));
+
+		checkCurve(publicKey);
+		checkCurve(privateKey);
+
+		this.publicKey = publicKey;
+		this.privateKey = privateKey;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	@Override
+	public void afterPropertiesSet() throws NoSuchAlgorithmException, GeneralSecurityException {
+		initializeSigner();
+	}
+
+	/**
+	 * Load the public and private keys from the keystore, identified with the configured alias and accessed with the configured password.
+	 */
+	private void loadKeysFromKeystore() {
+		Assert.notNull(keystore, "An keystore must be supplied");
+		Assert.notNull(alias, "A alias must be supplied");
+		Assert.notNull(password, "A password must be supplied");
+
+		KeyPair keyPair = null;
+		try {
+			keyPair = keystore.getKeyPairForAlias(alias, password);
+		} catch (GeneralSecurityException e) {
+			logger.error("GeneralSecurityException in EcSigner.java: ", e);
+		}
+
+		Assert.notNull(keyPair, "Either alias and/or password is not correct for keystore");
+		Assert.isInstanceOf(ECPrivateKey.class, keyPair.getPrivate(), "The key pair for alias " + alias + " is not an EC key pair");
+		checkCurve(keyPair.getPublic());
+		checkCurve(keyPair.getPrivate());
+
+		publicKey = keyPair.getPublic();
+		privateKey = keyPair.getPrivate();
+		keysLoaded = true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.mitre.jwt.signer.AbstractJwtSigner#generateSignature(java.lang.String
+	 * )
+	 */
+	@Override
+	public String generateSignature(String signatureBase) throws NoSuchAlgorithmException {
+
+		String sig = null;
+
+		initializeSigner();
+		Signature signer = getSignature();
+
+		try {
+			signer.initSign(privateKey);
+			signer.update(signatureBase.getBytes("UTF-8"));
+
+			byte[] sigBytes = derToConcatenated(signer.sign(), getSignatureLength());
+
+			sig = (new String(Base64.encodeBase64URLSafe(sigBytes))).replace("=", "");
+		} catch (GeneralSecurityException e) {
+			logger.error("GeneralSecurityException in EcSigner.java: ", e);
+		} catch (UnsupportedEncodingException e) {
+			logger.error("UnsupportedEncodingException in EcSigner.java: ", e);
+		}
+
+		return sig;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.mitre.jwt.signer.AbstractJwtSigner#verify(java.lang.String)
+	 */
+	@Override
+	public boolean verify(String jwtString) {
+
+		boolean value = false;
+
+		// split on the dots
+		List<String> parts = Lists.newArrayList(Splitter.on(".").split(jwtString));
+
+		if (parts.size() != 3) {
+			throw new IllegalArgumentException("Invalid JWT format.");
+		}
+
+		String h64 = parts.get(0);
+		String c64 = parts.get(1);
+		String s64 = parts.get(2);
+
+		String signingInput = h64 + "." + c64;
+
+		byte[] sigBytes = Base64.decodeBase64(s64);
+		if (sigBytes.length != getSignatureLength()) {
+			// not one of ours, and not worth converting
+			return false;
+		}
+
+		try {
+			initializeSigner();
+			Signature verifier = getSignature();
+			verifier.initVerify(publicKey);
+			verifier.update(signingInput.getBytes("UTF-8"));
+			value = verifier.verify(concatenatedToDer(sigBytes));
+		} catch (GeneralSecurityException e) {
+			logger.error("GeneralSecurityException in EcSigner.java: ", e);
+		} catch (UnsupportedEncodingException e) {
+			logger.error("UnsupportedEncodingException in EcSigner.java: ", e);
+		}
+
+		return value;
+	}
+
+	/**
+	 * Make sure the given key, if there is one, is an EC key on the curve the
+	 * configured algorithm calls for, since a signature made with a smaller
+	 * curve would just be zero-padded out to the wrong length.
+	 */
+	private void checkCurve(Key key) {
+		if (key == null) {
+			return;
+		}
+		Assert.isInstanceOf(ECKey.class, key, "The key for " + getAlgorithm().getJwaName() + " is not an EC key");
+
+		int fieldSize = ((ECKey) key).getParams().getCurve().getField().getFieldSize();
+		Assert.isTrue(fieldSize == getFieldSize(), "A key on a " + fieldSize + " bit curve can't be used for " + getAlgorithm().getJwaName()
+				+ ", which needs a " + getFieldSize() + " bit curve");
+	}
+
+	/**
+	 * @return the size in bits of the curve the configured algorithm calls for
+	 */
+	private int getFieldSize() {
+		switch (getAlgorithm()) {
+			case ES384:
+				return 384;
+			case ES512:
+				return 521;
+			default:
+				return 256;
+		}
+	}
+
+	/**
+	 * @return the length in bytes of a JWS signature for the configured algorithm: twice the size of the curve
+	 */
+	private int getSignatureLength() {
+		return 2 * ((getFieldSize() + 7) / 8);
+	}
+
+	/**
+	 * Convert a DER encoded ECDSA signature into the two integers R and S, each
+	 * left-padded to half the given length.
+	 */
+	static byte[] derToConcatenated(byte[] der, int length) throws SignatureException {
+		// SEQUENCE, with a one or two byte length
+		if (der.length < 8 || der[0] != 0x30) {
+			throw new SignatureException("Invalid ECDSA signature encoding");
+		}
+		int offset = (der[1] & 0x80) != 0 ? 3 : 2;
+
+		byte[] concatenated = new byte[length];
+
+		// INTEGER R, then INTEGER S
+		for (int i = 0; i < 2; i++) {
+			if (offset + 2 > der.length || der[offset] != 0x02) {
+				throw new SignatureException("Invalid ECDSA signature encoding");
+			}
+			int intLength = der[offset + 1] & 0xff;
+			int start = offset + 2;
+			offset = start + intLength;
+			if (offset > der.length) {
+				throw new SignatureException("Invalid ECDSA signature encoding");
+			}
+
+			// drop the leading zeros DER adds to keep the integer positive
+			while (intLength > 0 && der[start] == 0) {
+				start++;
+				intLength--;
+			}
+			if (intLength > length / 2) {
+				throw new SignatureException("ECDSA signature is too long for " + length / 2 + " byte integers");
+			}
+
+			System.arraycopy(der, start, concatenated, (i + 1) * length / 2 - intLength, intLength);
+		}
+
+		return concatenated;
+	}
+
+	/**
+	 * Convert the two concatenated integers R and S of a JWS signature into a DER encoded ECDSA signature.
+	 */
+	static byte[] concatenatedToDer(byte[] concatenated) {
+		int half = concatenated.length / 2;
+
+		byte[] r = new BigInteger(1, copyOfRange(concatenated, 0, half)).toByteArray();
+		byte[] s = new BigInteger(1, copyOfRange(concatenated, half, concatenated.length)).toByteArray();
+
+		int sequenceLength = 2 + r.length + 2 + s.length;
+
+		ByteArrayOutputStream der = new ByteArrayOutputStream(sequenceLength + 3);
+		der.write(0x30);
+		if (sequenceLength >= 0x80) {
+			der.write(0x81);
+		}
+		der.write(sequenceLength);
+		der.write(0x02);
+		der.write(r.length);
+		der.write(r, 0, r.length);
+		der.write(0x02);
+		der.write(s.length);
+		der.write(s, 0, s.length);
+
+		return der.toByteArray();
+	}
+
+	private static byte[] copyOfRange(byte[] bytes, int from, int to) {
+		byte[] copy = new byte[to - from];
+		System.arraycopy(bytes, from, copy, 0, copy.length);
+		return copy;
+	}
+
+	public String getAlias() {
+		return alias;
+	}
+
+	public KeyStore getKeystore() {
+		return keystore;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	public PrivateKey getPrivateKey() {
+		return privateKey;
+	}
+
+	public PublicKey getPublicKey() {
+		return publicKey;
+	}
+
+	public void setAlias(String alias) {
+		this.alias = alias;
+		keysLoaded = false;
+	}
+
+	public void setKeystore(KeyStore keyStore) {
+		this.keystore = keyStore;
+		keysLoaded = false;
+	}
+
+	public void setPassword(String password) {
+		this.password = password;
+		keysLoaded = false;
+	}
+
+	private void initializeSigner() throws NoSuchAlgorithmException {
+		if (!keysLoaded && this.keystore != null && this.alias != null && this.password != null) {
+			// if it looks like we're configured with a keystore, load it here, once
+			loadKeysFromKeystore();
+		}
+
+		// make sure the algorithm is available before it's needed
+		getSignature();
+	}
+
+	/**
+	 * Get this thread's Signature for the configured algorithm, creating it if need be.
+	 */
+	private Signature getSignature() throws NoSuchAlgorithmException {
+		String standardName = getAlgorithm().getStandardName();
+
+		Signature signature = signatures.get();
+		if (signature == null || !signature.getAlgorithm().equals(standardName)) {
+			try {
+				signature = Signature.getInstance(standardName);
+			} catch (NoSuchAlgorithmException e) {
+				signature = Signature.getInstance(standardName, FALLBACK_PROVIDER);
+			}
+			signatures.set(signature);
+		}
+		return signature;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		// leave out the password and private key, this ends up in logs
+		return "EcSigner [keystore=" + keystore + ", alias=" + alias
+				+ ", publicKey=" + publicKey + "]";
+	}
+
+}
@@ -187,6 +187,7 @@ public class HmacSigner extends AbstractJwtSigner implements InitializingBean {
 	 */
 	@Override
 	public String toString() {
-		return "HmacSigner [mac=" + mac + ", passphrase=" + passphrase + "]";
+		// leave out the passphrase, this ends up in logs
+		return "HmacSigner [mac=" + mac + "]";
 	}
 }
@@ -58,7 +58,12 @@ public class RsaSigner extends AbstractJwtSigner implements InitializingBean {
 
 	private PrivateKey privateKey;
 	private PublicKey publicKey;
-	private Signature signer;
+
+	// whether the keys have been read out of the keystore yet
+	private volatile boolean keysLoaded = false;
+
+	// a Signature isn't thread-safe, so each thread keeps its own
+	private final ThreadLocal<Signature> signatures = new ThreadLocal<Signature>();
 
 	/**
 	 * Default constructor
@@ -160,6 +165,7 @@ public class RsaSigner extends AbstractJwtSigner implements InitializingBean {
 		
 		publicKey = keyPair.getPublic();
 		privateKey = keyPair.getPrivate();
+		keysLoaded = true;
     }
 
 	/*
@@ -175,6 +181,7 @@ public class RsaSigner extends AbstractJwtSigner implements InitializingBean {
 		String sig = null;
 
 		initializeSigner();
+		Signature signer = getSignature();
 		
 		try {
 			signer.initSign(privateKey);
@@ -214,14 +221,17 @@ public class RsaSigner extends AbstractJwtSigner implements InitializingBean {
 
 	public void setAlias(String alias) {
 		this.alias = alias;
+		this.keysLoaded = false;
 	}
 
 	public void setKeystore(KeyStore keyStore) {
 		this.keystore = keyStore;
+		this.keysLoaded = false;
 	}
 
 	public void setPassword(String password) {
 		this.password = password;
+		this.keysLoaded = false;
 	}
 
 	public void setPrivateKey(RSAPrivateKey privateKey) {
@@ -229,14 +239,27 @@ public class RsaSigner extends AbstractJwtSigner implements InitializingBean {
 	}
 	
 	private void initializeSigner() throws NoSuchAlgorithmException{
-		if (this.keystore != null && this.alias != null && this.password != null) {
-			// if it looks like we're configured with a keystore, load it here
+		if (!keysLoaded && this.keystore != null && this.alias != null && this.password != null) {
+			// if it looks like we're configured with a keystore, load it here, once
 			loadKeysFromKeystore();
 		}
 		
-		if (signer == null) {
-			signer = Signature.getInstance(getAlgorithm().getStandardName());
+		// make sure the algorithm is available before it's needed
+		getSignature();
+	}
+	
+	/**
+	 * Get this thread's Signature for the configured algorithm, creating it if need be.
+	 */
+	private Signature getSignature() throws NoSuchAlgorithmException {
+		String standardName = getAlgorithm().getStandardName();
+		
+		Signature signature = signatures.get();
+		if (signature == null || !signature.getAlgorithm().equals(standardName)) {
+			signature = Signature.getInstance(standardName);
+			signatures.set(signature);
 		}
+		return signature;
 	}
 
 	/*
@@ -246,9 +269,9 @@ public class RsaSigner extends AbstractJwtSigner implements InitializingBean {
 	 */
 	@Override
 	public String toString() {
+		// leave out the password and private key, this ends up in logs
 		return "RsaSigner [keystore=" + keystore + ", alias=" + alias
-				+ ", password=" + password + ", privateKey=" + privateKey
-				+ ", publicKey=" + publicKey + ", signer=" + signer + "]";
+				+ ", publicKey=" + publicKey + "]";
 	}
 
 	/*
@@ -277,9 +300,10 @@ public class RsaSigner extends AbstractJwtSigner implements InitializingBean {
 
 		try {
 			initializeSigner();
-			signer.initVerify(publicKey);
-			signer.update(signingInput.getBytes("UTF-8"));
-			value = signer.verify(Base64.decodeBase64(s64));
+			Signature verifier = getSignature();
+			verifier.initVerify(publicKey);
+			verifier.update(signingInput.getBytes("UTF-8"));
+			value = verifier.verify(Base64.decodeBase64(s64));
 		} catch (GeneralSecurityException e) {
 			logger.error("GeneralSecurityException in RsaSigner.java: ", e);
 		} catch (UnsupportedEncodingException e) {
@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.jwt.signer.service;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.mitre.jwt.model.Jwt;
+import org.mitre.jwt.signer.JwsAlgorithm;
+
+/**
+ * Signs JWTs on a dedicated pool of worker threads, so that CPU-bound signing
+ * doesn't tie up the threads that call it.
+ */
+public interface AsyncJwtSigningService {
+
+	/**
+	 * Queue a jwt to be signed in place with the default signer.
+	 * 
+	 * @param jwt the jwt to sign
+	 * @return a Future for the signed jwt
+	 * @throws RejectedExecutionException if the queue is full
+	 */
+	public Future<Jwt> signJwtAsync(Jwt jwt);
+
+	/**
+	 * Queue a jwt to be signed in place with the given algorithm.
+	 * 
+	 * @param jwt the jwt to sign
+	 * @param alg the algorithm to use
+	 * @return a Future for the signed jwt, which fails with NoSuchAlgorithmException if there's no signer for the algorithm
+	 * @throws RejectedExecutionException if the queue is full
+	 */
+	public Future<Jwt> signJwtAsync(Jwt jwt, JwsAlgorithm alg);
+
+	/**
+	 * @return the number of jwts waiting for a worker
+	 */
+	public int getQueueDepth();
+
+	/**
+	 * @return the number of jwts the queue can hold
+	 */
+	public int getQueueCapacity();
+
+	/**
+	 * @return the number of jwts turned away because the queue was full
+	 */
+	public long getRejectedCount();
+
+}
@@ -19,6 +19,7 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Map;
 
 import org.mitre.jwt.model.Jwt;
+import org.mitre.jwt.signer.JwsAlgorithm;
 import org.mitre.jwt.signer.JwtSigner;
 
 public interface JwtSigningAndValidationService {
@@ -54,15 +55,14 @@ public interface JwtSigningAndValidationService {
 	public void signJwt(Jwt jwt) throws NoSuchAlgorithmException;
 	
 	/**
-	 * Sign a jwt using the selected algorithm. The algorithm is selected using the String parameter values specified
-	 * in the JWT spec, section 6. I.E., "HS256" means HMAC with SHA-256 and corresponds to our HmacSigner class.
+	 * Sign a jwt in place using the selected algorithm, for a client that has registered one. I.E., HS256 means
+	 * HMAC with SHA-256 and corresponds to our HmacSigner class, ES256 means ECDSA on P-256 and our EcSigner.
 	 * 
 	 * @param jwt the jwt to sign
-	 * @param alg the name of the algorithm to use, as specified in JWS s.6
-	 * @return the signed jwt
+	 * @param alg the algorithm to use
+	 * @throws NoSuchAlgorithmException if no signer is configured for the algorithm
 	 */
-	//TODO: implement later; only need signJwt(Jwt jwt) for now
-	//public Jwt signJwt(Jwt jwt, String alg);
+	public void signJwt(Jwt jwt, JwsAlgorithm alg) throws NoSuchAlgorithmException;
 	
 	/**
 	 * TODO: method to sign a jwt using a specified algorithm and a key id
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.jwt.signer.service.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mitre.jwt.model.Jwt;
+import org.mitre.jwt.signer.JwsAlgorithm;
+import org.mitre.jwt.signer.service.AsyncJwtSigningService;
+import org.mitre.jwt.signer.service.JwtSigningAndValidationService;
+import org.mitre.metrics.service.MetricsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * AsyncJwtSigningService that hands jwts to a JwtSigningAndValidationService on
+ * a fixed pool of worker threads, one per core by default, fed by a bounded queue.
+ * 
+ * A full queue means the workers are already behind, so rather than making the
+ * caller wait, new jwts are rejected straight away; callers that must have the
+ * token can catch the RejectedExecutionException and sign inline.
+ * 
+ * The time each jwt waits in the queue is recorded with the MetricsService, next
+ * to the time spent signing it.
+ */
+public class DefaultAsyncJwtSigningService implements AsyncJwtSigningService, InitializingBean, DisposableBean {
+
+	private static Logger logger = LoggerFactory.getLogger(DefaultAsyncJwtSigningService.class);
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+	private JwtSigningAndValidationService signingService;
+
+	@Autowired(required = false)
+	private MetricsService metricsService;
+
+	private int poolSize = Runtime.getRuntime().availableProcessors();
+
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+	private ThreadPoolExecutor executor;
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	@Override
+	public void afterPropertiesSet() {
+		if (signingService == null) {
+			throw new IllegalArgumentException("signingService must be set");
+		}
+
+		executor = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "jwt-signer-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	@Override
+	public void destroy() {
+		if (executor != null) {
+			executor.shutdown();
+
+			logger.info("JWT signing pool stopped: " + executor.getCompletedTaskCount() + " signed, " + rejected.get() + " rejected");
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.mitre.jwt.signer.service.AsyncJwtSigningService#signJwtAsync(org.mitre.jwt.model.Jwt)
+	 */
+	@Override
+	public Future<Jwt> signJwtAsync(Jwt jwt) {
+		return submit(jwt, null);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.mitre.jwt.signer.service.AsyncJwtSigningService#signJwtAsync(org.mitre.jwt.model.Jwt, org.mitre.jwt.signer.JwsAlgorithm)
+	 */
+	@Override
+	public Future<Jwt> signJwtAsync(Jwt jwt, JwsAlgorithm alg) {
+		return submit(jwt, alg);
+	}
+
+	private Future<Jwt> submit(final Jwt jwt, final JwsAlgorithm alg) {
+		final long queued = System.nanoTime();
+		try {
+			return executor.submit(new Callable<Jwt>() {
+				@Override
+				public Jwt call() throws Exception {
+					if (metricsService != null) {
+						metricsService.record(MetricsService.SIGN_JWT_QUEUE_WAIT, System.nanoTime() - queued);
+					}
+
+					if (alg != null) {
+						signingService.signJwt(jwt, alg);
+					} else {
+						signingService.signJwt(jwt);
+					}
+					return jwt;
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			throw e;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.mitre.jwt.signer.service.AsyncJwtSigningService#getQueueDepth()
+	 */
+	@Override
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.mitre.jwt.signer.service.AsyncJwtSigningService#getQueueCapacity()
+	 */
+	@Override
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.mitre.jwt.signer.service.AsyncJwtSigningService#getRejectedCount()
+	 */
+	@Override
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return the signingService
+	 */
+	public JwtSigningAndValidationService getSigningService() {
+		return signingService;
+	}
+
+	/**
+	 * @param signingService the service that does the signing
+	 */
+	public void setSigningService(JwtSigningAndValidationService signingService) {
+		this.signingService = signingService;
+	}
+
+	/**
+	 * @return the metricsService
+	 */
+	public MetricsService getMetricsService() {
+		return metricsService;
+	}
+
+	/**
+	 * @param metricsService the metricsService to set
+	 */
+	public void setMetricsService(MetricsService metricsService) {
+		this.metricsService = metricsService;
+	}
+
+	/**
+	 * @return the poolSize
+	 */
+	public int getPoolSize() {
+		return poolSize;
+	}
+
+	/**
+	 * @param poolSize the number of worker threads, the number of cores by default
+	 */
+	public void setPoolSize(int poolSize) {
+		this.poolSize = poolSize;
+	}
+
+	/**
+	 * @param queueCapacity the number of jwts that can wait for a worker before new ones are rejected
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+}
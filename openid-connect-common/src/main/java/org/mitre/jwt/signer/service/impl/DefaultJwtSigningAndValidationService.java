@@ -15,26 +15,74 @@
  ******************************************************************************/
 package org.mitre.jwt.signer.service.impl;
 
+import java.io.UnsupportedEncodingException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.mitre.jwt.model.Jwt;
+import org.mitre.jwt.model.JwtClaims;
+import org.mitre.jwt.model.JwtHeader;
+import org.mitre.jwt.signer.JwsAlgorithm;
 import org.mitre.jwt.signer.JwtSigner;
 import org.mitre.jwt.signer.service.JwtSigningAndValidationService;
+import org.mitre.metrics.service.MetricsService;
 import org.mitre.openid.connect.config.ConfigurationPropertiesBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Signs with the default signer and validates with whichever signers match the
+ * JWT's algorithm. The signers can be replaced while the service is in use (see
+ * SigningKeySetManager): every change publishes a new immutable SignerSet, so
+ * signing and validation only ever read a volatile field and never take a lock.
+ * 
+ * JWTs that pass validation are remembered, by a digest of the whole serialized
+ * JWT, until they expire or for verificationCacheSeconds at most, so a token that
+ * is presented again is checked with a hash lookup instead of a public key
+ * operation. Nothing that fails validation is remembered, and a change to the
+ * signers starts over.
+ */
 public class DefaultJwtSigningAndValidationService implements JwtSigningAndValidationService, InitializingBean {
 
 	@Autowired 
 	private ConfigurationPropertiesBean configBean;
 	
-	// map of identifier to signer
-	private Map<String, ? extends JwtSigner> signers = new HashMap<String, JwtSigner>();
+	@Autowired(required = false)
+	private MetricsService metricsService;
+	
+	public static final int DEFAULT_VERIFICATION_CACHE_SIZE = 10000;
+	public static final int DEFAULT_VERIFICATION_CACHE_SECONDS = 60 * 60;
+
+	// the current signers; replaced as a whole, never modified
+	private volatile SignerSet signerSet = new SignerSet(new HashMap<String, JwtSigner>(), null);
+
+	private int verificationCacheSize = DEFAULT_VERIFICATION_CACHE_SIZE;
+	private int verificationCacheSeconds = DEFAULT_VERIFICATION_CACHE_SECONDS;
+
+	// digests of verified JWTs to the signers that verified them and the time they expire
+	private volatile Cache<VerifiedJwtId, VerifiedJwt> verifiedJwts = buildVerificationCache();
 
 	private static Logger logger = LoggerFactory.getLogger(DefaultJwtSigningAndValidationService.class);
 
@@ -63,7 +111,7 @@ public class DefaultJwtSigningAndValidationService implements JwtSigningAndValid
 	@Override
 	public void afterPropertiesSet(){
 		// used for debugging...
-		if (!signers.isEmpty()) {
+		if (!signerSet.signers.isEmpty()) {
 			logger.info(this.toString());
 		}
 
@@ -84,19 +132,79 @@ public class DefaultJwtSigningAndValidationService implements JwtSigningAndValid
 
 		Map<String, JwtSigner> map = new HashMap<String, JwtSigner>();
 
-		map.putAll(signers);
+		map.putAll(signerSet.signers);
 
 		return map;
 	}
 
 	/**
-	 * Set the JwtSigners associated with this service
+	 * Set the JwtSigners associated with this service. A signer activated with
+	 * activateSigner stays active if it is still among them.
 	 * 
 	 * @param signers
 	 *            List of JwtSigners to associate with this service
 	 */
-	public void setSigners(Map<String, ? extends JwtSigner> signers) {
-		this.signers = signers;
+	public synchronized void setSigners(Map<String, ? extends JwtSigner> signers) {
+		String activeSignerId = signerSet.activeSignerId;
+		if (activeSignerId != null && !signers.containsKey(activeSignerId)) {
+			activeSignerId = null;
+		}
+
+		signerSet = new SignerSet(signers, activeSignerId);
+	}
+
+	/**
+	 * Add a signer, or replace the one with the same id. It is listed by
+	 * getAllSigners and used for validation straight away, but isn't used for
+	 * signing until it is activated.
+	 */
+	public synchronized void publishSigner(String id, JwtSigner signer) {
+		Map<String, JwtSigner> signers = new HashMap<String, JwtSigner>(signerSet.signers);
+		signers.put(id, signer);
+
+		signerSet = new SignerSet(signers, signerSet.activeSignerId);
+	}
+
+	/**
+	 * Sign with the given published signer from now on, in place of the
+	 * configured default. The previously active signer stays published, so
+	 * tokens it signed still validate until it is removed.
+	 * 
+	 * @throws IllegalArgumentException if no signer has been published with that id
+	 */
+	public synchronized void activateSigner(String id) {
+		if (!signerSet.signers.containsKey(id)) {
+			throw new IllegalArgumentException("No signer published with id " + id);
+		}
+
+		signerSet = new SignerSet(signerSet.signers, id);
+	}
+
+	/**
+	 * Stop publishing and validating with the given signer.
+	 * 
+	 * @throws IllegalStateException if it is the active signer
+	 */
+	public synchronized void removeSigner(String id) {
+		if (id.equals(signerSet.activeSignerId)) {
+			throw new IllegalStateException("Can't remove the active signer " + id);
+		}
+
+		Map<String, JwtSigner> signers = new HashMap<String, JwtSigner>(signerSet.signers);
+		if (signers.remove(id) != null) {
+			signerSet = new SignerSet(signers, signerSet.activeSignerId);
+		}
+	}
+
+	/**
+	 * @return the id of the signer used by signJwt: the activated one if any, otherwise the configured default
+	 */
+	public String getActiveSignerId() {
+		String activeSignerId = signerSet.activeSignerId;
+		if (activeSignerId == null && configBean != null) {
+			activeSignerId = configBean.getDefaultJwtSigner();
+		}
+		return activeSignerId;
 	}
 
 	/* (non-Javadoc)
@@ -104,7 +212,7 @@ public class DefaultJwtSigningAndValidationService implements JwtSigningAndValid
 	 */
 	@Override
 	public String toString() {
-		return "DefaultJwtSigningAndValidationService [signers=" + signers + "]";
+		return "DefaultJwtSigningAndValidationService [signers=" + signerSet.signers + ", activeSignerId=" + signerSet.activeSignerId + "]";
 	}
 
 	/**
@@ -120,22 +228,79 @@ public class DefaultJwtSigningAndValidationService implements JwtSigningAndValid
 	public void setConfigBean(ConfigurationPropertiesBean configBean) {
 		this.configBean = configBean;
 	}
+
+	/**
+	 * @return the metricsService
+	 */
+	public MetricsService getMetricsService() {
+		return metricsService;
+	}
+
+	/**
+	 * @param metricsService the metricsService to set
+	 */
+	public void setMetricsService(MetricsService metricsService) {
+		this.metricsService = metricsService;
+	}
 	
 	/**
-	 * Sign a jwt in place using the configured default signer.
+	 * Sign a jwt in place using the configured default signer. The header names
+	 * the signer's id as its key id, which is how the signer's key is listed in
+	 * the published key sets, so relying parties can pick it out after a rotation.
 	 * @throws NoSuchAlgorithmException 
 	 */
 	@Override
 	public void signJwt(Jwt jwt) throws NoSuchAlgorithmException {
-		String signerId = configBean.getDefaultJwtSigner();
+		long start = System.nanoTime();
+		try {
+			// read the signer set once, so a concurrent rotation can't pair one set's id with another's signers
+			SignerSet current = signerSet;
+
+			String signerId = current.activeSignerId != null ? current.activeSignerId : configBean.getDefaultJwtSigner();
 		
-		JwtSigner signer = getSigners().get(signerId);
+			JwtSigner signer = current.signers.get(signerId);
 		
-		// set the signing algorithm in the JWT
-		jwt.getHeader().setAlgorithm(signer.getAlgorithm().getJwaName());
+			// set the signing algorithm and key in the JWT
+			jwt.getHeader().setAlgorithm(signer.getAlgorithm().getJwaName());
+			jwt.getHeader().setKeyId(signerId);
 		
-		signer.sign(jwt);
+			signer.sign(jwt);
+		} finally {
+			recordTime(MetricsService.SIGN_JWT, start);
+		}
+	}
 	
+	/**
+	 * Sign a jwt in place with the active signer if it uses the given algorithm,
+	 * otherwise with one of the signers that do, naming the signer's id as the key id.
+	 */
+	@Override
+	public void signJwt(Jwt jwt, JwsAlgorithm alg) throws NoSuchAlgorithmException {
+		long start = System.nanoTime();
+		try {
+			SignerSet current = signerSet;
+
+			String signerId = current.activeSignerId;
+			if (signerId == null && configBean != null) {
+				signerId = configBean.getDefaultJwtSigner();
+			}
+
+			JwtSigner signer = signerId != null ? current.signers.get(signerId) : null;
+			if (signer == null || signer.getAlgorithm() != alg) {
+				signerId = current.preferredSignerIds.get(alg);
+				if (signerId == null) {
+					throw new NoSuchAlgorithmException("No signer configured for " + alg);
+				}
+				signer = current.signers.get(signerId);
+			}
+
+			jwt.getHeader().setAlgorithm(alg.getJwaName());
+			jwt.getHeader().setKeyId(signerId);
+
+			signer.sign(jwt);
+		} finally {
+			recordTime(MetricsService.SIGN_JWT, start);
+		}
 	}
 	
 	/**
@@ -144,13 +309,77 @@ public class DefaultJwtSigningAndValidationService implements JwtSigningAndValid
 	 * @return
 	 */
 	public Map<String, ? extends JwtSigner> getSigners() {
-		return signers;
+		return signerSet.signers;
 	}
 
+	/**
+	 * Check the signature with the signers for the algorithm named in the JWT's
+	 * header. A signer for any other algorithm can't verify it, so only when the
+	 * header doesn't name an algorithm are all of the signers tried in turn.
+	 */
 	@Override
 	public boolean validateSignature(String jwtString) {
+		long start = System.nanoTime();
+		try {
+			SignerSet current = signerSet;
+
+			Cache<VerifiedJwtId, VerifiedJwt> cache = verifiedJwts;
+			if (cache == null) {
+				return verify(current, jwtString, ParsedJwt.parse(jwtString).algorithm);
+			}
 
-		for (JwtSigner signer : getSigners().values()) {
+			VerifiedJwtId id = new VerifiedJwtId(jwtString);
+			VerifiedJwt verified = cache.asMap().get(id);
+			if (verified != null && verified.generation != current.generation) {
+				// checked by signers that have since been replaced
+				cache.asMap().remove(id, verified);
+				verified = null;
+			}
+
+			if (verified == null) {
+				// the loader verifies the JWT, and throws if it doesn't pass so nothing is stored
+				id.pending = new PendingVerification(current, jwtString);
+				try {
+					verified = cache.get(id);
+				} catch (ExecutionException e) {
+					return false;
+				} catch (UncheckedExecutionException e) {
+					throw Throwables.propagate(e.getCause());
+				} finally {
+					// the key may be kept, but not the JWT or the signers
+					id.pending = null;
+				}
+
+				if (verified.generation != current.generation) {
+					// a concurrent check by signers that have since been replaced got there first
+					return verify(current, jwtString, ParsedJwt.parse(jwtString).algorithm);
+				}
+			}
+
+			if (verified.expiresAt < System.currentTimeMillis()) {
+				// the signature is good, but the JWT is past its expiration so stop remembering it
+				cache.asMap().remove(id, verified);
+			}
+			return true;
+		} finally {
+			recordTime(MetricsService.VALIDATE_SIGNATURE, start);
+		}
+	}
+
+	/**
+	 * Check the signature with the signers for the given algorithm, or with all of them if it's null.
+	 */
+	private static boolean verify(SignerSet current, String jwtString, JwsAlgorithm alg) {
+		Iterable<? extends JwtSigner> candidates = current.signers.values();
+
+		if (alg != null) {
+			candidates = current.signersByAlgorithm.get(alg);
+			if (candidates == null) {
+				return false;
+			}
+		}
+
+		for (JwtSigner signer : candidates) {
 			try {
 				if (signer.verify(jwtString)) {
 					return true;
@@ -163,4 +392,217 @@ public class DefaultJwtSigningAndValidationService implements JwtSigningAndValid
 		return false;
 	}
 
+	private Cache<VerifiedJwtId, VerifiedJwt> buildVerificationCache() {
+		if (verificationCacheSize > 0) {
+			return CacheBuilder.newBuilder()
+					.maximumSize(verificationCacheSize)
+					.expireAfterWrite(verificationCacheSeconds, TimeUnit.SECONDS)
+					.build(new CacheLoader<VerifiedJwtId, VerifiedJwt>() {
+						@Override
+						public VerifiedJwt load(VerifiedJwtId id) throws NotVerifiedException {
+							PendingVerification pending = id.pending;
+							ParsedJwt parsed = ParsedJwt.parse(pending.jwtString);
+							if (!verify(pending.signerSet, pending.jwtString, parsed.algorithm)) {
+								throw new NotVerifiedException();
+							}
+							return new VerifiedJwt(pending.signerSet.generation, parsed.expiresAt);
+						}
+					});
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the verificationCacheSize
+	 */
+	public int getVerificationCacheSize() {
+		return verificationCacheSize;
+	}
+
+	/**
+	 * @param verificationCacheSize the maximum number of validated JWTs to remember, or 0 to always check the signature
+	 */
+	public void setVerificationCacheSize(int verificationCacheSize) {
+		this.verificationCacheSize = verificationCacheSize;
+		verifiedJwts = buildVerificationCache();
+	}
+
+	/**
+	 * @return the verificationCacheSeconds
+	 */
+	public int getVerificationCacheSeconds() {
+		return verificationCacheSeconds;
+	}
+
+	/**
+	 * @param verificationCacheSeconds the longest time to remember a validated JWT, in seconds, even if it hasn't expired
+	 */
+	public void setVerificationCacheSeconds(int verificationCacheSeconds) {
+		this.verificationCacheSeconds = verificationCacheSeconds;
+		verifiedJwts = buildVerificationCache();
+	}
+
+	private void recordTime(String operation, long start) {
+		// metrics are optional, this service is also used outside of the server
+		if (metricsService != null) {
+			metricsService.record(operation, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Identifies a serialized JWT by its digest, so the cache doesn't hold on to the JWT itself.
+	 * While it's being looked up, it also carries what the loader needs to verify the JWT.
+	 */
+	private static class VerifiedJwtId {
+		private final byte[] digest;
+		private PendingVerification pending;
+
+		private VerifiedJwtId(String jwtString) {
+			this.digest = DigestUtils.sha256(jwtString);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(digest);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof VerifiedJwtId)) {
+				return false;
+			}
+			VerifiedJwtId other = (VerifiedJwtId) obj;
+			return Arrays.equals(digest, other.digest);
+		}
+	}
+
+	/**
+	 * A JWT waiting to be verified, and the signers to verify it with.
+	 */
+	private static class PendingVerification {
+		private final SignerSet signerSet;
+		private final String jwtString;
+
+		private PendingVerification(SignerSet signerSet, String jwtString) {
+			this.signerSet = signerSet;
+			this.jwtString = jwtString;
+		}
+	}
+
+	/**
+	 * Thrown by the loader when a JWT doesn't verify, so that nothing is cached.
+	 */
+	private static class NotVerifiedException extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * The parts of a serialized JWT the verification cache needs, read out of its
+	 * header and claims in one go without building the whole JWT.
+	 */
+	private static class ParsedJwt {
+		// null if the header doesn't name an algorithm this library knows
+		private final JwsAlgorithm algorithm;
+		// in milliseconds since the epoch, or Long.MAX_VALUE if the JWT doesn't have one
+		private final long expiresAt;
+
+		private ParsedJwt(JwsAlgorithm algorithm, long expiresAt) {
+			this.algorithm = algorithm;
+			this.expiresAt = expiresAt;
+		}
+
+		private static ParsedJwt parse(String jwtString) {
+			String[] parts = jwtString.split("\\.");
+
+			JsonObject header = parts.length > 0 ? decode(parts[0]) : null;
+			JsonObject claims = parts.length > 1 ? decode(parts[1]) : null;
+
+			JwsAlgorithm algorithm = null;
+			JsonElement alg = header != null ? header.get(JwtHeader.ALGORITHM) : null;
+			if (alg != null && alg.isJsonPrimitive()) {
+				algorithm = JwsAlgorithm.getByJwaName(alg.getAsString());
+			}
+
+			long expiresAt = Long.MAX_VALUE;
+			JsonElement exp = claims != null ? claims.get(JwtClaims.EXPIRATION) : null;
+			if (exp != null && exp.isJsonPrimitive() && exp.getAsJsonPrimitive().isNumber()) {
+				expiresAt = exp.getAsLong() * 1000L;
+			}
+
+			return new ParsedJwt(algorithm, expiresAt);
+		}
+
+		/**
+		 * @return the JSON object in a base64url-encoded part of the JWT, or null if it isn't one
+		 */
+		private static JsonObject decode(String part) {
+			try {
+				JsonElement json = new JsonParser().parse(new String(Base64.decodeBase64(part), "UTF-8"));
+				return json.isJsonObject() ? json.getAsJsonObject() : null;
+			} catch (JsonParseException e) {
+				return null;
+			} catch (UnsupportedEncodingException e) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * The generation of the signers that verified a JWT, so that replacing the signers
+	 * can't leave anything validated by a removed one, and when the JWT expires.
+	 */
+	private static class VerifiedJwt {
+		private final long generation;
+		private final long expiresAt;
+
+		private VerifiedJwt(long generation, long expiresAt) {
+			this.generation = generation;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * An immutable snapshot of the signers, grouped by the algorithm they verify,
+	 * together with the id of the activated signer (or null to use the configured default)
+	 * and the id of the signer picked ahead of time to sign with each algorithm. Each set gets
+	 * a new generation number, which is all the verification cache keeps of it.
+	 */
+	private static class SignerSet {
+
+		private static final AtomicLong generations = new AtomicLong();
+
+		private final long generation = generations.incrementAndGet();
+		private final Map<String, JwtSigner> signers;
+		private final Map<JwsAlgorithm, List<JwtSigner>> signersByAlgorithm;
+		private final Map<JwsAlgorithm, String> preferredSignerIds;
+		private final String activeSignerId;
+
+		private SignerSet(Map<String, ? extends JwtSigner> signers, String activeSignerId) {
+			Map<JwsAlgorithm, List<JwtSigner>> byAlgorithm = new HashMap<JwsAlgorithm, List<JwtSigner>>();
+			// the active signer for its own algorithm, otherwise any signer for the algorithm
+			Map<JwsAlgorithm, String> preferred = new HashMap<JwsAlgorithm, String>();
+			for (Map.Entry<String, ? extends JwtSigner> e : signers.entrySet()) {
+				JwtSigner signer = e.getValue();
+				List<JwtSigner> list = byAlgorithm.get(signer.getAlgorithm());
+				if (list == null) {
+					list = new ArrayList<JwtSigner>();
+					byAlgorithm.put(signer.getAlgorithm(), list);
+					preferred.put(signer.getAlgorithm(), e.getKey());
+				}
+				list.add(signer);
+			}
+
+			JwtSigner active = activeSignerId != null ? signers.get(activeSignerId) : null;
+			if (active != null) {
+				preferred.put(active.getAlgorithm(), activeSignerId);
+			}
+
+			this.signers = Collections.unmodifiableMap(new HashMap<String, JwtSigner>(signers));
+			this.signersByAlgorithm = byAlgorithm;
+			this.preferredSignerIds = preferred;
+			this.activeSignerId = activeSignerId;
+		}
+	}
+
 }
@@ -0,0 +1,451 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.jwt.signer.service.impl;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.mitre.jwt.signer.JwsAlgorithm;
+import org.mitre.jwt.signer.impl.RsaSigner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.io.Resource;
+
+/**
+ * Rotates the signing keys of a DefaultJwtSigningAndValidationService without a
+ * restart. The keys are read from a JCE keystore file, or from every *.jks file
+ * in a directory, and each alias becomes a signer id. The location is checked
+ * again every checkIntervalSeconds, and a key goes through these stages:
+ * 
+ * 		published: a key that shows up while running is listed on /jwk and used for
+ * 			validation, but isn't used for signing until it has been published for
+ * 			publishAheadSeconds, so that relying parties have picked it up by then
+ * 		active: the newest published key signs everything
+ * 		retired: when a newer key becomes active the old one is kept for validation
+ * 			only, for retiredKeyLifetimeSeconds, which should be at least the
+ * 			lifetime of the longest lived token it could have signed
+ * 
+ * Keys found at startup are active or retired straight away. Each change is a
+ * single call into the service, which swaps in a whole new set of signers, so
+ * nothing on the signing path waits for a rotation.
+ */
+public class SigningKeySetManager implements InitializingBean, DisposableBean {
+
+	private static Logger logger = LoggerFactory.getLogger(SigningKeySetManager.class);
+
+	public static final String KEYSTORE_SUFFIX = ".jks";
+
+	public static final long DEFAULT_CHECK_INTERVAL_SECONDS = 60;
+	public static final long DEFAULT_PUBLISH_AHEAD_SECONDS = 60 * 60;
+	public static final long DEFAULT_RETIRED_KEY_LIFETIME_SECONDS = 24 * 60 * 60;
+
+	private DefaultJwtSigningAndValidationService signingService;
+
+	private Resource location;
+
+	private String password = RsaSigner.DEFAULT_PASSWORD;
+
+	private JwsAlgorithm algorithm = RsaSigner.DEFAULT_ALGORITHM;
+
+	private long checkIntervalSeconds = DEFAULT_CHECK_INTERVAL_SECONDS;
+
+	private long publishAheadSeconds = DEFAULT_PUBLISH_AHEAD_SECONDS;
+
+	private long retiredKeyLifetimeSeconds = DEFAULT_RETIRED_KEY_LIFETIME_SECONDS;
+
+	// every key this manager has handed to the service, by id; only touched by refresh()
+	private final Map<String, ManagedKey> keys = new HashMap<String, ManagedKey>();
+
+	// ids of retired keys that have been removed, so they aren't published again
+	private final Set<String> expired = new HashSet<String>();
+
+	private ManagedKey active;
+
+	private boolean loaded = false;
+
+	private ScheduledExecutorService checker;
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	@Override
+	public void afterPropertiesSet() throws IOException, GeneralSecurityException {
+		if (signingService == null || location == null) {
+			throw new IllegalArgumentException("signingService and location must be set");
+		}
+
+		// fail fast if the keys can't be read at startup
+		refresh(readKeys());
+
+		if (checkIntervalSeconds > 0) {
+			checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "signing-key-checker");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			checker.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					refresh();
+				}
+			}, checkIntervalSeconds, checkIntervalSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	@Override
+	public void destroy() {
+		if (checker != null) {
+			checker.shutdownNow();
+		}
+	}
+
+	/**
+	 * Read the keys again and move each one on to its next stage if it is due.
+	 * A location that can't be read is logged and the current keys are kept.
+	 */
+	public void refresh() {
+		Map<String, KeyEntry> entries;
+		try {
+			entries = readKeys();
+		} catch (IOException e) {
+			logger.error("Couldn't read signing keys from " + location + ", keeping the current keys", e);
+			return;
+		} catch (GeneralSecurityException e) {
+			logger.error("Couldn't read signing keys from " + location + ", keeping the current keys", e);
+			return;
+		}
+
+		refresh(entries);
+	}
+
+	private synchronized void refresh(Map<String, KeyEntry> entries) {
+		long now = System.currentTimeMillis();
+
+		// publish anything new
+		for (KeyEntry entry : entries.values()) {
+			if (keys.containsKey(entry.id) || expired.contains(entry.id)) {
+				continue;
+			}
+
+			ManagedKey key = new ManagedKey(entry, new RsaSigner(algorithm.getJwaName(), entry.publicKey, entry.privateKey));
+
+			// keys that were there at startup don't need to wait for anyone to fetch them
+			key.publishedAt = loaded ? now : 0;
+
+			signingService.publishSigner(key.id, key.signer);
+			keys.put(key.id, key);
+
+			logger.info("Published signing key " + key.id);
+		}
+
+		// keys that went away before they ever signed anything are simply dropped
+		for (ManagedKey key : new ArrayList<ManagedKey>(keys.values())) {
+			if (key != active && key.retiredAt == 0 && !entries.containsKey(key.id)) {
+				remove(key);
+			}
+		}
+
+		// the newest key that has been published long enough signs from now on
+		ManagedKey newest = null;
+		for (ManagedKey key : keys.values()) {
+			if (key.retiredAt == 0 && entries.containsKey(key.id)
+					&& now - key.publishedAt >= publishAheadSeconds * 1000
+					&& (newest == null || key.isNewerThan(newest))) {
+				newest = key;
+			}
+		}
+
+		if (newest != null && newest != active) {
+			signingService.activateSigner(newest.id);
+			active = newest;
+
+			logger.info("Activated signing key " + newest.id);
+		}
+
+		// everything older than the active key is only used for validation now
+		for (ManagedKey key : keys.values()) {
+			if (key != active && key.retiredAt == 0 && active != null && active.isNewerThan(key)) {
+				key.retiredAt = now;
+
+				logger.info("Retired signing key " + key.id);
+			}
+		}
+
+		// until every token it signed has expired
+		for (ManagedKey key : new ArrayList<ManagedKey>(keys.values())) {
+			if (key.retiredAt != 0 && now - key.retiredAt >= retiredKeyLifetimeSeconds * 1000) {
+				remove(key);
+				expired.add(key.id);
+			}
+		}
+
+		loaded = true;
+	}
+
+	private void remove(ManagedKey key) {
+		signingService.removeSigner(key.id);
+		keys.remove(key.id);
+
+		logger.info("Removed signing key " + key.id);
+	}
+
+	/**
+	 * Read every private key entry from the keystore file, or from every keystore in the directory.
+	 */
+	private Map<String, KeyEntry> readKeys() throws IOException, GeneralSecurityException {
+		List<File> files = new ArrayList<File>();
+
+		File file = location.getFile();
+		if (file.isDirectory()) {
+			File[] stores = file.listFiles(new FileFilter() {
+				@Override
+				public boolean accept(File f) {
+					return f.isFile() && f.getName().endsWith(KEYSTORE_SUFFIX);
+				}
+			});
+			if (stores != null) {
+				for (File store : stores) {
+					files.add(store);
+				}
+			}
+		} else {
+			files.add(file);
+		}
+
+		Map<String, KeyEntry> entries = new HashMap<String, KeyEntry>();
+		for (File f : files) {
+			readKeys(f, entries);
+		}
+		return entries;
+	}
+
+	private void readKeys(File file, Map<String, KeyEntry> entries) throws IOException, GeneralSecurityException {
+		java.security.KeyStore keystore = java.security.KeyStore.getInstance(org.mitre.jwt.encryption.impl.KeyStore.TYPE);
+
+		InputStream in = new FileInputStream(file);
+		try {
+			keystore.load(in, password.toCharArray());
+		} finally {
+			in.close();
+		}
+
+		Enumeration<String> aliases = keystore.aliases();
+		while (aliases.hasMoreElements()) {
+			String alias = aliases.nextElement();
+			if (!keystore.isKeyEntry(alias)) {
+				continue;
+			}
+
+			Key key = keystore.getKey(alias, password.toCharArray());
+			Certificate cert = keystore.getCertificate(alias);
+			if (!(key instanceof RSAPrivateKey) || cert == null) {
+				logger.warn("Skipping key " + alias + " in " + file + ", it isn't an RSA key pair");
+				continue;
+			}
+
+			if (entries.containsKey(alias)) {
+				logger.warn("Skipping key " + alias + " in " + file + ", another keystore has a key with the same alias");
+				continue;
+			}
+
+			entries.put(alias, new KeyEntry(alias, cert.getPublicKey(), (PrivateKey) key, keystore.getCreationDate(alias)));
+		}
+	}
+
+	/**
+	 * A key pair as read from a keystore.
+	 */
+	private static class KeyEntry {
+
+		private final String id;
+		private final PublicKey publicKey;
+		private final PrivateKey privateKey;
+		private final long created;
+
+		private KeyEntry(String id, PublicKey publicKey, PrivateKey privateKey, Date created) {
+			this.id = id;
+			this.publicKey = publicKey;
+			this.privateKey = privateKey;
+			this.created = created != null ? created.getTime() : 0;
+		}
+	}
+
+	/**
+	 * A key handed to the service, and where it is in its life.
+	 */
+	private static class ManagedKey {
+
+		private final String id;
+		private final long created;
+		private final RsaSigner signer;
+
+		private long publishedAt;
+		private long retiredAt;
+
+		private ManagedKey(KeyEntry entry, RsaSigner signer) {
+			this.id = entry.id;
+			this.created = entry.created;
+			this.signer = signer;
+		}
+
+		/**
+		 * Order by the keystore creation date, then by id so the order is total.
+		 */
+		private boolean isNewerThan(ManagedKey other) {
+			if (created != other.created) {
+				return created > other.created;
+			}
+			return id.compareTo(other.id) > 0;
+		}
+	}
+
+	/**
+	 * @return the signingService
+	 */
+	public DefaultJwtSigningAndValidationService getSigningService() {
+		return signingService;
+	}
+
+	/**
+	 * @param signingService the service whose signers are rotated
+	 */
+	public void setSigningService(DefaultJwtSigningAndValidationService signingService) {
+		this.signingService = signingService;
+	}
+
+	/**
+	 * @return the location
+	 */
+	public Resource getLocation() {
+		return location;
+	}
+
+	/**
+	 * @param location a keystore file, or a directory of *.jks keystore files
+	 */
+	public void setLocation(Resource location) {
+		this.location = location;
+	}
+
+	/**
+	 * @return the password
+	 */
+	public String getPassword() {
+		return password;
+	}
+
+	/**
+	 * @param password the password of the keystores and of every key in them
+	 */
+	public void setPassword(String password) {
+		this.password = password;
+	}
+
+	/**
+	 * @return the algorithm name
+	 */
+	public String getAlgorithm() {
+		return algorithm.getJwaName();
+	}
+
+	/**
+	 * @param algorithmName the RSA signature algorithm the keys are used with, RS256 by default
+	 */
+	public void setAlgorithm(String algorithmName) {
+		JwsAlgorithm alg = JwsAlgorithm.getByJwaName(algorithmName);
+		if (alg == null) {
+			throw new IllegalArgumentException("Unknown algorithm " + algorithmName);
+		}
+		this.algorithm = alg;
+	}
+
+	/**
+	 * @return the checkIntervalSeconds
+	 */
+	public long getCheckIntervalSeconds() {
+		return checkIntervalSeconds;
+	}
+
+	/**
+	 * @param checkIntervalSeconds how often to look for new keys; 0 to only look when refresh() is called
+	 */
+	public void setCheckIntervalSeconds(long checkIntervalSeconds) {
+		this.checkIntervalSeconds = checkIntervalSeconds;
+	}
+
+	/**
+	 * @return the publishAheadSeconds
+	 */
+	public long getPublishAheadSeconds() {
+		return publishAheadSeconds;
+	}
+
+	/**
+	 * @param publishAheadSeconds how long a new key is published before it is used to sign
+	 */
+	public void setPublishAheadSeconds(long publishAheadSeconds) {
+		this.publishAheadSeconds = publishAheadSeconds;
+	}
+
+	/**
+	 * @return the retiredKeyLifetimeSeconds
+	 */
+	public long getRetiredKeyLifetimeSeconds() {
+		return retiredKeyLifetimeSeconds;
+	}
+
+	/**
+	 * @param retiredKeyLifetimeSeconds how long a replaced key is still used for validation
+	 */
+	public void setRetiredKeyLifetimeSeconds(long retiredKeyLifetimeSeconds) {
+		this.retiredKeyLifetimeSeconds = retiredKeyLifetimeSeconds;
+	}
+
+}
@@ -1,46 +1,39 @@
 package org.mitre.key.fetch;
 
-import java.io.InputStream;
-import java.math.BigInteger;
-import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
-import java.security.interfaces.RSAPublicKey;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.RSAPublicKeySpec;
 
-import org.apache.commons.codec.binary.Base64;
-import org.apache.http.client.HttpClient;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.mitre.key.fetch.KeySetCache.Format;
 import org.mitre.openid.connect.config.OIDCServerConfiguration;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.security.authentication.AuthenticationServiceException;
 import org.springframework.web.client.HttpClientErrorException;
-import org.springframework.web.client.RestTemplate;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
+/**
+ * Looks up remote public keys. All KeyFetchers created with the default
+ * constructor share one KeySetCache, and with it one HTTP connection pool, so
+ * they're cheap to create and fetch each URL only when its cached keys expire.
+ */
 public class KeyFetcher {
 	
-	private HttpClient httpClient = new DefaultHttpClient();
-	private HttpComponentsClientHttpRequestFactory httpFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
-	private RestTemplate restTemplate = new RestTemplate(httpFactory);
+	private KeySetCache keySetCache;
 	
-	private static Logger logger = LoggerFactory.getLogger(KeyFetcher.class);
+	public KeyFetcher() {
+		this(KeySetCache.getShared());
+	}
+	
+	public KeyFetcher(KeySetCache keySetCache) {
+		this.keySetCache = keySetCache;
+	}
 	
 	public JsonArray retrieveJwk(OIDCServerConfiguration serverConfig){
 		
 		String jsonString = null;
 
 		try {
-			jsonString = restTemplate.getForObject(
+			jsonString = keySetCache.getRestTemplate().getForObject(
 					serverConfig.getTokenEndpointUrl(), String.class);
 		} catch (HttpClientErrorException httpClientErrorException) {
 
@@ -55,55 +48,50 @@ public class KeyFetcher {
 	}
 	
 	public PublicKey retrieveX509Key(String x509url) {
-		
-
-		PublicKey key = null;
-
-		try {
-			InputStream x509Stream = restTemplate.getForObject(x509url, InputStream.class);
-			CertificateFactory factory = CertificateFactory.getInstance("X.509");
-			X509Certificate cert = (X509Certificate) factory.generateCertificate(x509Stream);
-			key = cert.getPublicKey();
-		} catch (HttpClientErrorException e) {
-			logger.error("HttpClientErrorException in KeyFetcher.java: ", e);
-		} catch (CertificateException e) {
-			logger.error("CertificateException in KeyFetcher.java: ", e);
-        }
-
-		return key;
+		return keySetCache.getKey(x509url, Format.X509, null);
 	}
 	
 	public PublicKey retrieveJwkKey(String jwkUrl) {
-		RSAPublicKey pub = null;
-		
-		try {
-			String jwkString = restTemplate.getForObject(jwkUrl, String.class);
-			JsonObject json = (JsonObject) new JsonParser().parse(jwkString);
-			JsonArray getArray = json.getAsJsonArray("keys");
-			for(int i = 0; i < getArray.size(); i++) {
-				JsonObject object = getArray.get(i).getAsJsonObject();
-				String algorithm = object.get("alg").getAsString();
-				
-				if(algorithm.equals("RSA")){
-					byte[] modulusByte = Base64.decodeBase64(object.get("mod").getAsString());
-					BigInteger modulus = new BigInteger(1, modulusByte);
-					byte[] exponentByte = Base64.decodeBase64(object.get("exp").getAsString());
-					BigInteger exponent = new BigInteger(1, exponentByte);
-							
-					RSAPublicKeySpec spec = new RSAPublicKeySpec(modulus, exponent);
-					KeyFactory factory = KeyFactory.getInstance("RSA");
-					pub = (RSAPublicKey) factory.generatePublic(spec);
-				}
-			}
+		return keySetCache.getKey(jwkUrl, Format.JWK, null);
+	}
+	
+	/**
+	 * Get the key with the given key ID from the JWK set, fetching the set again
+	 * (at a bounded rate) if the key ID isn't known yet.
+	 */
+	public PublicKey retrieveJwkKey(String jwkUrl, String keyId) {
+		return keySetCache.getKey(jwkUrl, Format.JWK, keyId);
+	}
+	
+	/**
+	 * Fetch the JWK set again after one of its keys failed to verify a signature,
+	 * unless it was fetched very recently, and get the key with the given key ID
+	 * (or the default key if keyId is null) from it.
+	 */
+	public PublicKey refreshJwkKey(String jwkUrl, String keyId) {
+		return keySetCache.refreshKey(jwkUrl, Format.JWK, keyId);
+	}
+	
+	/**
+	 * Fetch the certificate again after its key failed to verify a signature,
+	 * unless it was fetched very recently.
+	 */
+	public PublicKey refreshX509Key(String x509url) {
+		return keySetCache.refreshKey(x509url, Format.X509, null);
+	}
+
+	/**
+	 * @return the keySetCache
+	 */
+	public KeySetCache getKeySetCache() {
+		return keySetCache;
+	}
 
-		} catch (HttpClientErrorException e) {
-			logger.error("HttpClientErrorException in KeyFetcher.java: ", e);
-		} catch (NoSuchAlgorithmException e) {
-			logger.error("NoSuchAlgorithmException in KeyFetcher.java: ", e);
-        } catch (InvalidKeySpecException e) {
-        	logger.error("InvalidKeySpecException in KeyFetcher.java: ", e);
-        }
-		return pub;
+	/**
+	 * @param keySetCache the keySetCache to set
+	 */
+	public void setKeySetCache(KeySetCache keySetCache) {
+		this.keySetCache = keySetCache;
 	}
 
 }
@@ -0,0 +1,467 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.key.fetch;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.codec.binary.Base64;
+import org.mitre.util.http.PooledHttpClientFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestTemplate;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Cache of public key sets fetched from JWK and X.509 URLs, shared by everything
+ * in the JVM that verifies signatures from remote parties.
+ * 
+ * Each key set is kept for as long as the server's Cache-Control or Expires
+ * headers allow, clamped between minTtlMillis and maxTtlMillis, and is fetched
+ * again in the background once refreshAheadFraction of that time has passed so
+ * callers almost never wait on the network. Concurrent misses for the same URL
+ * share a single fetch. If a fetch fails, the previous key set keeps being used
+ * and the fetch is retried after failureRetryMillis. A URL that has never been
+ * fetched successfully gets an empty key set for that long instead, so a failing
+ * server isn't asked again on every lookup.
+ * 
+ * A lookup for a key ID the cached set doesn't have, or an explicit refreshKey
+ * after a key failed to verify, fetches the set again right away to pick up a
+ * rotated key, but no more than once per unknownKeyRefetchMillis for any URL.
+ */
+public class KeySetCache {
+
+	public enum Format {
+		JWK, X509
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(KeySetCache.class);
+
+	private static final KeySetCache shared = new KeySetCache();
+
+	private long defaultTtlMillis = 60 * 60 * 1000L;
+
+	private long minTtlMillis = 60 * 1000L;
+
+	private long maxTtlMillis = 24 * 60 * 60 * 1000L;
+
+	private double refreshAheadFraction = 0.8;
+
+	private long failureRetryMillis = 30 * 1000L;
+
+	private long unknownKeyRefetchMillis = 30 * 1000L;
+
+	private final ConcurrentMap<String, KeySet> keySets = new ConcurrentHashMap<String, KeySet>();
+
+	private final ConcurrentMap<String, FutureTask<KeySet>> inFlight = new ConcurrentHashMap<String, FutureTask<KeySet>>();
+
+	private final ExecutorService refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "key-set-refresher");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private RestTemplate restTemplate;
+
+	public KeySetCache() {
+		restTemplate = PooledHttpClientFactory.getShared().createRestTemplate(10 * 1000);
+	}
+
+	/**
+	 * @return the cache shared by every KeyFetcher created with the default constructor
+	 */
+	public static KeySetCache getShared() {
+		return shared;
+	}
+
+	/**
+	 * Get a key from the set at the given URL.
+	 * 
+	 * @param url		the JWK or X.509 URL
+	 * @param format	what the URL serves
+	 * @param keyId		the key ID to look for, or null for the set's default key
+	 * @return			the key, or null if it can't be found or the set can't be fetched
+	 */
+	public PublicKey getKey(String url, Format format, String keyId) {
+		KeySet keySet = getKeySet(url, format);
+		if (keySet == null) {
+			return null;
+		}
+
+		if (keyId == null) {
+			return keySet.getDefaultKey();
+		}
+
+		PublicKey key = keySet.getKeys().get(keyId);
+		if (key == null) {
+			// maybe the key was rotated
+			key = refreshKey(url, format, keyId);
+		}
+		return key;
+	}
+
+	/**
+	 * Fetch the key set at the given URL again because the key we have is unknown
+	 * or failed to verify something, unless the set was fetched within the last
+	 * unknownKeyRefetchMillis.
+	 * 
+	 * @param url		the JWK or X.509 URL
+	 * @param format	what the URL serves
+	 * @param keyId		the key ID to look for, or null for the set's default key
+	 * @return			the key from the current set, or null if it can't be found
+	 */
+	public PublicKey refreshKey(String url, Format format, String keyId) {
+		KeySet current = keySets.get(url);
+		if (current == null || System.currentTimeMillis() - current.fetchedAt >= unknownKeyRefetchMillis) {
+			logger.info("Fetching the key set at " + url + " again to look for " + (keyId == null ? "a new key" : "key ID " + keyId));
+			current = fetch(url, format);
+		}
+
+		if (current == null) {
+			return null;
+		}
+		return keyId == null ? current.getDefaultKey() : current.getKeys().get(keyId);
+	}
+
+	/**
+	 * Get the key set at the given URL, fetching it if it isn't cached or has expired.
+	 * 
+	 * @return the key set, which is empty if it couldn't be fetched and there was none before
+	 */
+	public KeySet getKeySet(String url, Format format) {
+		long now = System.currentTimeMillis();
+		KeySet keySet = keySets.get(url);
+
+		if (keySet == null || now >= keySet.expiresAt) {
+			return fetch(url, format);
+		}
+
+		if (now >= keySet.refreshAt && keySet.refreshScheduled.compareAndSet(false, true)) {
+			refreshInBackground(url, format);
+		}
+
+		return keySet;
+	}
+
+	/**
+	 * Forget the key set at the given URL, so the next lookup fetches it again.
+	 */
+	public void invalidate(String url) {
+		keySets.remove(url);
+	}
+
+	/**
+	 * @return the thread-safe RestTemplate used for fetching, for other lookups that want to share its connection pool
+	 */
+	public RestTemplate getRestTemplate() {
+		return restTemplate;
+	}
+
+	/**
+	 * @param restTemplate the RestTemplate to fetch with, which must be safe to use from several threads at once
+	 */
+	public void setRestTemplate(RestTemplate restTemplate) {
+		this.restTemplate = restTemplate;
+	}
+
+	private void refreshInBackground(final String url, final Format format) {
+		refresher.execute(new Runnable() {
+			@Override
+			public void run() {
+				fetch(url, format);
+			}
+		});
+	}
+
+	/**
+	 * Fetch the key set, joining a fetch of the same URL that's already under way.
+	 * On failure the previous key set, or an empty one, is kept a little longer.
+	 */
+	private KeySet fetch(final String url, final Format format) {
+		FutureTask<KeySet> task = new FutureTask<KeySet>(new Callable<KeySet>() {
+			@Override
+			public KeySet call() throws Exception {
+				KeySet keySet = load(url, format);
+				keySets.put(url, keySet);
+				return keySet;
+			}
+		});
+
+		FutureTask<KeySet> running = inFlight.putIfAbsent(url, task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				inFlight.remove(url, task);
+			}
+		}
+
+		try {
+			return running.get();
+		} catch (ExecutionException e) {
+			logger.error("Unable to fetch keys from " + url, e.getCause());
+			return keepStale(url);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return keySets.get(url);
+		}
+	}
+
+	private KeySet keepStale(String url) {
+		long now = System.currentTimeMillis();
+		KeySet stale = keySets.get(url);
+		if (stale == null) {
+			// nothing to fall back on, remember the failure so the URL isn't fetched on every lookup
+			KeySet failed = new KeySet(Collections.<String, PublicKey>emptyMap(), null, now, now + failureRetryMillis, now + failureRetryMillis);
+			KeySet existing = keySets.putIfAbsent(url, failed);
+			return existing != null ? existing : failed;
+		}
+
+		// the failed attempt counts as a fetch, so unknown key IDs don't retry it right away
+		KeySet retry = new KeySet(stale.getKeys(), stale.getDefaultKey(), now, now + failureRetryMillis, now + failureRetryMillis);
+		keySets.replace(url, stale, retry);
+		return retry;
+	}
+
+	private KeySet load(String url, Format format) throws GeneralSecurityException {
+		long now = System.currentTimeMillis();
+
+		Map<String, PublicKey> keys = new LinkedHashMap<String, PublicKey>();
+		PublicKey defaultKey = null;
+		HttpHeaders headers;
+
+		if (format == Format.X509) {
+			ResponseEntity<byte[]> response = restTemplate.exchange(URI.create(url), HttpMethod.GET, null, byte[].class);
+			headers = response.getHeaders();
+
+			CertificateFactory factory = CertificateFactory.getInstance("X.509");
+			X509Certificate cert = (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(response.getBody()));
+			defaultKey = cert.getPublicKey();
+
+		} else {
+			ResponseEntity<String> response = restTemplate.exchange(URI.create(url), HttpMethod.GET, null, String.class);
+			headers = response.getHeaders();
+
+			JsonObject json = (JsonObject) new JsonParser().parse(response.getBody());
+			JsonArray keyArray = json.getAsJsonArray("keys");
+			KeyFactory factory = KeyFactory.getInstance("RSA");
+
+			for (JsonElement element : keyArray) {
+				JsonObject object = element.getAsJsonObject();
+
+				if (object.has("use") && !object.get("use").getAsString().equals("sig")) {
+					continue;
+				}
+
+				if (object.get("alg").getAsString().equals("RSA")) {
+					BigInteger modulus = new BigInteger(1, Base64.decodeBase64(object.get("mod").getAsString()));
+					BigInteger exponent = new BigInteger(1, Base64.decodeBase64(object.get("exp").getAsString()));
+
+					PublicKey key = factory.generatePublic(new RSAPublicKeySpec(modulus, exponent));
+
+					if (object.has("kid")) {
+						keys.put(object.get("kid").getAsString(), key);
+					}
+
+					// the last key in the set has always been the one used when no key ID is given
+					defaultKey = key;
+				}
+			}
+		}
+
+		long ttl = getTtl(headers, now);
+		return new KeySet(keys, defaultKey, now, now + (long) (ttl * refreshAheadFraction), now + ttl);
+	}
+
+	/**
+	 * Work out how long a response may be cached for from its Cache-Control and Expires headers.
+	 */
+	long getTtl(HttpHeaders headers, long now) {
+		String cacheControl = headers.getCacheControl();
+		if (cacheControl != null) {
+			for (String directive : cacheControl.split(",")) {
+				directive = directive.trim().toLowerCase();
+				if (directive.equals("no-cache") || directive.equals("no-store")) {
+					return minTtlMillis;
+				} else if (directive.startsWith("max-age=")) {
+					try {
+						return clampTtl(Long.parseLong(directive.substring("max-age=".length())) * 1000L);
+					} catch (NumberFormatException e) {
+						logger.warn("Ignoring malformed Cache-Control directive: " + directive);
+					}
+				}
+			}
+		}
+
+		try {
+			long expires = headers.getExpires();
+			if (expires > 0) {
+				long date = headers.getDate();
+				return clampTtl(expires - (date > 0 ? date : now));
+			}
+		} catch (IllegalArgumentException e) {
+			logger.warn("Ignoring malformed Expires header");
+		}
+
+		return defaultTtlMillis;
+	}
+
+	private long clampTtl(long ttl) {
+		return Math.min(Math.max(ttl, minTtlMillis), maxTtlMillis);
+	}
+
+	/**
+	 * The keys served at one URL, and when to fetch them again.
+	 */
+	public static class KeySet {
+
+		private final Map<String, PublicKey> keys;
+		private final PublicKey defaultKey;
+
+		private final long fetchedAt;
+		private final long refreshAt;
+		private final long expiresAt;
+
+		private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+
+		private KeySet(Map<String, PublicKey> keys, PublicKey defaultKey, long fetchedAt, long refreshAt, long expiresAt) {
+			this.keys = Collections.unmodifiableMap(keys);
+			this.defaultKey = defaultKey;
+			this.fetchedAt = fetchedAt;
+			this.refreshAt = refreshAt;
+			this.expiresAt = expiresAt;
+		}
+
+		/**
+		 * @return the keys that have a key ID, by key ID
+		 */
+		public Map<String, PublicKey> getKeys() {
+			return keys;
+		}
+
+		/**
+		 * @return the key to use when no key ID is given
+		 */
+		public PublicKey getDefaultKey() {
+			return defaultKey;
+		}
+
+		public long getFetchedAt() {
+			return fetchedAt;
+		}
+
+		public long getExpiresAt() {
+			return expiresAt;
+		}
+	}
+
+	public long getDefaultTtlMillis() {
+		return defaultTtlMillis;
+	}
+
+	/**
+	 * @param defaultTtlMillis how long to keep a key set whose response had no caching headers
+	 */
+	public void setDefaultTtlMillis(long defaultTtlMillis) {
+		this.defaultTtlMillis = defaultTtlMillis;
+	}
+
+	public long getMinTtlMillis() {
+		return minTtlMillis;
+	}
+
+	/**
+	 * @param minTtlMillis the shortest time to keep a key set, whatever its headers say
+	 */
+	public void setMinTtlMillis(long minTtlMillis) {
+		this.minTtlMillis = minTtlMillis;
+	}
+
+	public long getMaxTtlMillis() {
+		return maxTtlMillis;
+	}
+
+	/**
+	 * @param maxTtlMillis the longest time to keep a key set, whatever its headers say
+	 */
+	public void setMaxTtlMillis(long maxTtlMillis) {
+		this.maxTtlMillis = maxTtlMillis;
+	}
+
+	public double getRefreshAheadFraction() {
+		return refreshAheadFraction;
+	}
+
+	/**
+	 * @param refreshAheadFraction how far through its lifetime a key set is refreshed in the background, between 0 and 1
+	 */
+	public void setRefreshAheadFraction(double refreshAheadFraction) {
+		this.refreshAheadFraction = refreshAheadFraction;
+	}
+
+	public long getFailureRetryMillis() {
+		return failureRetryMillis;
+	}
+
+	/**
+	 * @param failureRetryMillis how long to keep using a key set after a failed refresh before trying again
+	 */
+	public void setFailureRetryMillis(long failureRetryMillis) {
+		this.failureRetryMillis = failureRetryMillis;
+	}
+
+	public long getUnknownKeyRefetchMillis() {
+		return unknownKeyRefetchMillis;
+	}
+
+	/**
+	 * @param unknownKeyRefetchMillis the least time between fetches of one URL triggered by unknown key IDs
+	 */
+	public void setUnknownKeyRefetchMillis(long unknownKeyRefetchMillis) {
+		this.unknownKeyRefetchMillis = unknownKeyRefetchMillis;
+	}
+
+}
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free, log-linear latency histogram in the style of HdrHistogram. Values
+ * are recorded in microseconds. Each power of two is split into a fixed number
+ * of linear sub-buckets, which bounds the relative error of any reported
+ * percentile to about 1/8 while keeping the whole histogram in a few kilobytes.
+ *
+ * Recording is a single atomic increment and is safe from any number of threads.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+
+	// values above 2^36 microseconds (about 19 hours) are clamped to the top bucket
+	private static final int MAX_MAGNITUDE = 36 - (SUB_BUCKET_BITS - 1);
+	private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + MAX_MAGNITUDE * SUB_BUCKET_HALF;
+	private static final long HIGHEST_TRACKABLE = valueFor(BUCKET_COUNT - 1, true);
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong totalMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	/**
+	 * Record a single observation.
+	 *
+	 * @param micros	the observed latency in microseconds
+	 */
+	public void record(long micros) {
+		if (micros < 0) {
+			micros = 0;
+		}
+
+		counts.incrementAndGet(indexFor(Math.min(micros, HIGHEST_TRACKABLE)));
+		totalCount.incrementAndGet();
+		totalMicros.addAndGet(micros);
+
+		long max = maxMicros.get();
+		while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+			max = maxMicros.get();
+		}
+	}
+
+	/**
+	 * Add all of the observations of the given histogram into this one.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			long c = other.counts.get(i);
+			if (c != 0) {
+				counts.addAndGet(i, c);
+			}
+		}
+		totalCount.addAndGet(other.totalCount.get());
+		totalMicros.addAndGet(other.totalMicros.get());
+
+		long otherMax = other.maxMicros.get();
+		long max = maxMicros.get();
+		while (otherMax > max && !maxMicros.compareAndSet(max, otherMax)) {
+			max = maxMicros.get();
+		}
+	}
+
+	/**
+	 * Get the value at the given percentile, in microseconds.
+	 *
+	 * @param percentile	a value between 0 and 100
+	 * @return				the upper bound of the bucket holding the percentile, or 0 if nothing was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = totalCount.get();
+		if (total == 0) {
+			return 0;
+		}
+
+		long target = (long) Math.ceil((Math.min(percentile, 100.0) / 100.0) * total);
+		if (target < 1) {
+			target = 1;
+		}
+
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(valueFor(i, true), maxMicros.get());
+			}
+		}
+
+		return maxMicros.get();
+	}
+
+	public long getTotalCount() {
+		return totalCount.get();
+	}
+
+	public long getMaxValue() {
+		return maxMicros.get();
+	}
+
+	public double getMean() {
+		long total = totalCount.get();
+		if (total == 0) {
+			return 0;
+		}
+		return (double) totalMicros.get() / total;
+	}
+
+	/**
+	 * Map a value onto its bucket index.
+	 */
+	static int indexFor(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+
+		int magnitude = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+		int subBucket = (int) (value >>> magnitude);
+
+		return SUB_BUCKET_COUNT + (magnitude - 1) * SUB_BUCKET_HALF + (subBucket - SUB_BUCKET_HALF);
+	}
+
+	/**
+	 * Map a bucket index back onto the lowest (or highest) value it holds.
+	 */
+	static long valueFor(int index, boolean upper) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+
+		int magnitude = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+		long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+
+		if (upper) {
+			return ((subBucket + 1) << magnitude) - 1;
+		} else {
+			return subBucket << magnitude;
+		}
+	}
+
+}
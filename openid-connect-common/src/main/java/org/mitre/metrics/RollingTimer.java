@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A latency timer whose observations are rolled into one-minute buckets held
+ * in a fixed ring. Old minutes are overwritten in place, so memory use is
+ * constant no matter how long the server runs.
+ */
+public class RollingTimer {
+
+	public static final long BUCKET_MILLIS = 60 * 1000L;
+
+	private final String name;
+
+	private final AtomicReferenceArray<MinuteBucket> ring;
+
+	private final AtomicLong lifetimeCount = new AtomicLong();
+
+	/**
+	 * Create a timer that keeps the given number of minutes of history.
+	 */
+	public RollingTimer(String name, int minutes) {
+		this.name = name;
+		this.ring = new AtomicReferenceArray<MinuteBucket>(minutes);
+	}
+
+	/**
+	 * Record a single observation taken now.
+	 *
+	 * @param nanos		the elapsed time in nanoseconds
+	 */
+	public void record(long nanos) {
+		record(System.currentTimeMillis(), nanos);
+	}
+
+	/**
+	 * Record a single observation taken at the given wall-clock time.
+	 */
+	public void record(long nowMillis, long nanos) {
+		bucketFor(nowMillis / BUCKET_MILLIS).getHistogram().record(nanos / 1000L);
+		lifetimeCount.incrementAndGet();
+	}
+
+	/**
+	 * Get the buckets for the most recent minutes, oldest first. Minutes in which
+	 * nothing was recorded are skipped.
+	 *
+	 * @param minutes	how far back to look, including the current minute
+	 */
+	public List<MinuteBucket> getRecentBuckets(long nowMillis, int minutes) {
+		long currentMinute = nowMillis / BUCKET_MILLIS;
+		int span = Math.min(minutes, ring.length());
+
+		List<MinuteBucket> buckets = new ArrayList<MinuteBucket>(span);
+		for (long minute = currentMinute - span + 1; minute <= currentMinute; minute++) {
+			MinuteBucket bucket = ring.get(slotFor(minute));
+			if (bucket != null && bucket.getMinute() == minute) {
+				buckets.add(bucket);
+			}
+		}
+		return buckets;
+	}
+
+	/**
+	 * Merge the most recent minutes into a single histogram.
+	 */
+	public LatencyHistogram getAggregate(long nowMillis, int minutes) {
+		LatencyHistogram aggregate = new LatencyHistogram();
+		for (MinuteBucket bucket : getRecentBuckets(nowMillis, minutes)) {
+			aggregate.add(bucket.getHistogram());
+		}
+		return aggregate;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the number of observations recorded since startup
+	 */
+	public long getLifetimeCount() {
+		return lifetimeCount.get();
+	}
+
+	/**
+	 * @return the number of minutes of history this timer keeps
+	 */
+	public int getCapacity() {
+		return ring.length();
+	}
+
+	/**
+	 * Find the bucket for the given minute, replacing a stale bucket in its slot if need be.
+	 * Losing the compare-and-set just means another thread already rolled the slot over.
+	 */
+	private MinuteBucket bucketFor(long minute) {
+		int slot = slotFor(minute);
+		while (true) {
+			MinuteBucket current = ring.get(slot);
+			if (current != null && current.getMinute() == minute) {
+				return current;
+			}
+			if (current != null && current.getMinute() > minute) {
+				// a late observation for a minute that has already been recycled
+				return current;
+			}
+			MinuteBucket fresh = new MinuteBucket(minute);
+			if (ring.compareAndSet(slot, current, fresh)) {
+				return fresh;
+			}
+		}
+	}
+
+	private int slotFor(long minute) {
+		return (int) (minute % ring.length());
+	}
+
+	/**
+	 * One minute's worth of observations.
+	 */
+	public static class MinuteBucket {
+
+		private final long minute;
+		private final LatencyHistogram histogram = new LatencyHistogram();
+
+		public MinuteBucket(long minute) {
+			this.minute = minute;
+		}
+
+		/**
+		 * @return the minute this bucket covers, counted from the epoch
+		 */
+		public long getMinute() {
+			return minute;
+		}
+
+		public LatencyHistogram getHistogram() {
+			return histogram;
+		}
+	}
+
+}
@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.metrics.service;
+
+import java.util.Map;
+
+/**
+ * In-process latency and throughput metrics for the server's hot paths.
+ */
+public interface MetricsService {
+
+	// well-known operation names
+	public static final String CREATE_ACCESS_TOKEN = "createAccessToken";
+	public static final String REFRESH_ACCESS_TOKEN = "refreshAccessToken";
+	public static final String LOAD_AUTHENTICATION = "loadAuthentication";
+	public static final String INTROSPECTION = "introspection";
+	public static final String USER_INFO = "userinfo";
+	public static final String SIGN_JWT = "signJwt";
+	public static final String SIGN_JWT_QUEUE_WAIT = "signJwtQueueWait";
+	public static final String VALIDATE_SIGNATURE = "validateSignature";
+
+	/**
+	 * Record the elapsed time of a single call to the named operation.
+	 *
+	 * @param operation		the operation name
+	 * @param nanos			the elapsed time in nanoseconds, as measured by System.nanoTime()
+	 */
+	public void record(String operation, long nanos);
+
+	/**
+	 * Summarize every known operation over the most recent minutes:
+	 * 		count: number of calls in the window
+	 * 		throughput: calls per second over the window
+	 * 		p50, p99, max, mean: latency in milliseconds
+	 * 		minutes: the same figures for each minute in the window
+	 *
+	 * @param minutes	the size of the window, including the current minute
+	 * @return			a map of operation name to its summary
+	 */
+	public Map<String, Map<String, Object>> summarize(int minutes);
+
+}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.metrics.service.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.mitre.metrics.LatencyHistogram;
+import org.mitre.metrics.RollingTimer;
+import org.mitre.metrics.RollingTimer.MinuteBucket;
+import org.mitre.metrics.service.MetricsService;
+import org.springframework.stereotype.Service;
+
+/**
+ * Default MetricsService, keeping one RollingTimer per operation in memory.
+ * Nothing here takes a lock on the recording path.
+ */
+@Service("metricsService")
+public class DefaultMetricsService implements MetricsService {
+
+	public static final int DEFAULT_HISTORY_MINUTES = 60;
+
+	private int historyMinutes = DEFAULT_HISTORY_MINUTES;
+
+	private ConcurrentMap<String, RollingTimer> timers = new ConcurrentHashMap<String, RollingTimer>();
+
+	/* (non-Javadoc)
+	 * @see org.mitre.metrics.service.MetricsService#record(java.lang.String, long)
+	 */
+	@Override
+	public void record(String operation, long nanos) {
+		getTimer(operation).record(nanos);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.mitre.metrics.service.MetricsService#summarize(int)
+	 */
+	@Override
+	public Map<String, Map<String, Object>> summarize(int minutes) {
+		long now = System.currentTimeMillis();
+
+		// the window always takes in at least the current minute
+		minutes = Math.max(minutes, 1);
+
+		// the current minute is only partly over
+		double windowSeconds = (minutes - 1) * 60.0 + (now % RollingTimer.BUCKET_MILLIS) / 1000.0;
+
+		Map<String, Map<String, Object>> summary = new TreeMap<String, Map<String, Object>>();
+		for (RollingTimer timer : timers.values()) {
+
+			LatencyHistogram aggregate = timer.getAggregate(now, minutes);
+
+			Map<String, Object> e = describe(aggregate, windowSeconds);
+			e.put("lifetimeCount", timer.getLifetimeCount());
+
+			List<Map<String, Object>> perMinute = new ArrayList<Map<String, Object>>();
+			for (MinuteBucket bucket : timer.getRecentBuckets(now, minutes)) {
+				Map<String, Object> m = describe(bucket.getHistogram(), RollingTimer.BUCKET_MILLIS / 1000.0);
+				m.put("minute", bucket.getMinute() * RollingTimer.BUCKET_MILLIS);
+				perMinute.add(m);
+			}
+			e.put("minutes", perMinute);
+
+			summary.put(timer.getName(), e);
+		}
+
+		return summary;
+	}
+
+	private Map<String, Object> describe(LatencyHistogram histogram, double seconds) {
+		Map<String, Object> e = new LinkedHashMap<String, Object>();
+		e.put("count", histogram.getTotalCount());
+		e.put("throughput", seconds > 0 ? histogram.getTotalCount() / seconds : 0.0);
+		e.put("p50", histogram.getValueAtPercentile(50) / 1000.0);
+		e.put("p99", histogram.getValueAtPercentile(99) / 1000.0);
+		e.put("max", histogram.getMaxValue() / 1000.0);
+		e.put("mean", histogram.getMean() / 1000.0);
+		return e;
+	}
+
+	private RollingTimer getTimer(String operation) {
+		RollingTimer timer = timers.get(operation);
+		if (timer == null) {
+			RollingTimer fresh = new RollingTimer(operation, historyMinutes);
+			timer = timers.putIfAbsent(operation, fresh);
+			if (timer == null) {
+				timer = fresh;
+			}
+		}
+		return timer;
+	}
+
+	/**
+	 * @return the number of minutes of history kept for each operation
+	 */
+	public int getHistoryMinutes() {
+		return historyMinutes;
+	}
+
+	/**
+	 * @param historyMinutes the number of minutes of history to keep for each operation
+	 */
+	public void setHistoryMinutes(int historyMinutes) {
+		this.historyMinutes = historyMinutes;
+	}
+
+}
@@ -1,5 +1,7 @@
 package org.mitre.oauth2.model;
 
+import java.util.Date;
+
 import javax.persistence.Basic;
 import javax.persistence.Column;
 import javax.persistence.Entity;
@@ -11,6 +13,9 @@ import javax.persistence.Lob;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.Transient;
+import javax.persistence.TemporalType;
 
 import org.springframework.security.oauth2.provider.code.AuthorizationRequestHolder;
 
@@ -23,7 +28,12 @@ import org.springframework.security.oauth2.provider.code.AuthorizationRequestHol
 @Entity
 @Table(name="authorization_code")
 @NamedQueries({
-	@NamedQuery(name = "AuthorizationCodeEntity.getByValue", query = "select a from AuthorizationCodeEntity a where a.code = :code")
+	@NamedQuery(name = "AuthorizationCodeEntity.getByValue", query = "select a from AuthorizationCodeEntity a where a.code = :code"),
+	@NamedQuery(name = "AuthorizationCodeEntity.getUnexpiredByValue", query = "select a from AuthorizationCodeEntity a where a.code = :code and (a.expiration is null or a.expiration > :now)"),
+	@NamedQuery(name = "AuthorizationCodeEntity.getExpiredIds", query = "select a.id from AuthorizationCodeEntity a where a.expiration <= :now"),
+	@NamedQuery(name = "AuthorizationCodeEntity.deleteByIds", query = "delete from AuthorizationCodeEntity a where a.id in :ids"),
+	@NamedQuery(name = "AuthorizationCodeEntity.deleteById", query = "delete from AuthorizationCodeEntity a where a.id = :id"),
+	@NamedQuery(name = "AuthorizationCodeEntity.deleteByValue", query = "delete from AuthorizationCodeEntity a where a.code = :code")
 })
 public class AuthorizationCodeEntity {
 
@@ -32,6 +42,8 @@ public class AuthorizationCodeEntity {
 	private String code;
 	
 	private AuthorizationRequestHolder authorizationRequestHolder;
+	
+	private Date expiration;
 
 	/**
 	 * Default constructor.
@@ -51,6 +63,19 @@ public class AuthorizationCodeEntity {
 		this.authorizationRequestHolder = authRequest;
 	}
 	
+	/**
+	 * Create a new AuthorizationCodeEntity with the given code and AuthorizationRequestHolder
+	 * that can no longer be redeemed after the given time.
+	 * 
+	 * @param code 			the authorization code
+	 * @param authRequest	the AuthoriztionRequestHolder associated with the original code request
+	 * @param expiration	when the code expires
+	 */
+	public AuthorizationCodeEntity(String code, AuthorizationRequestHolder authRequest, Date expiration) {
+		this(code, authRequest);
+		this.expiration = expiration;
+	}
+	
 	/**
 	 * @return the id
 	 */
@@ -98,5 +123,29 @@ public class AuthorizationCodeEntity {
 	public void setAuthorizationRequestHolder(AuthorizationRequestHolder authorizationRequestHolder) {
 		this.authorizationRequestHolder = authorizationRequestHolder;
 	}
+
+	/**
+	 * @return the expiration
+	 */
+	@Basic
+	@Temporal(TemporalType.TIMESTAMP)
+	public Date getExpiration() {
+		return expiration;
+	}
+
+	/**
+	 * @param expiration the expiration to set
+	 */
+	public void setExpiration(Date expiration) {
+		this.expiration = expiration;
+	}
+	
+	/**
+	 * @return true if this code has an expiration that has passed
+	 */
+	@Transient
+	public boolean isExpired() {
+		return expiration != null && System.currentTimeMillis() > expiration.getTime();
+	}
 	
 }
@@ -111,6 +111,8 @@ public class ClientDetailsEntity implements ClientDetails {
 	private JweAlgorithms idTokenEncryptedReponseEnc;
 	private JweAlgorithms idTokenEncryptedResponseInt;
 	
+	private JwsAlgorithm accessTokenSignedResponseAlg;
+	
 	private Integer defaultMaxAge;
 	private boolean requireAuthTime = false;
 	private String defaultACR;
@@ -769,6 +771,19 @@ public class ClientDetailsEntity implements ClientDetails {
 		this.idTokenEncryptedResponseInt = idTokenEncryptedResponseInt;
 	}
 
+	/**
+	 * @return the algorithm to sign this client's access tokens with, or null to use the server's default signer
+	 */
+	@Enumerated(EnumType.STRING)
+	@Column(name="access_token_signed_response_alg")
+	public JwsAlgorithm getAccessTokenSignedResponseAlg() {
+		return accessTokenSignedResponseAlg;
+	}
+
+	public void setAccessTokenSignedResponseAlg(JwsAlgorithm accessTokenSignedResponseAlg) {
+		this.accessTokenSignedResponseAlg = accessTokenSignedResponseAlg;
+	}
+
 	@Basic
 	@Column(name="default_max_age")
 	public Integer getDefaultMaxAge() {
@@ -882,6 +897,9 @@ public class ClientDetailsEntity implements ClientDetails {
 				+ (idTokenEncryptedResponseInt != null ? "idTokenEncryptedResponseInt="
 						+ idTokenEncryptedResponseInt + ", "
 						: "")
+				+ (accessTokenSignedResponseAlg != null ? "accessTokenSignedResponseAlg="
+						+ accessTokenSignedResponseAlg + ", "
+						: "")
 				+ (defaultMaxAge != null ? "defaultMaxAge=" + defaultMaxAge
 						+ ", " : "") + "requireAuthTime=" + requireAuthTime
 				+ ", " + (defaultACR != null ? "defaultACR=" + defaultACR : "")
@@ -946,6 +964,10 @@ public class ClientDetailsEntity implements ClientDetails {
 				* result
 				+ ((idTokenSignedResponseAlg == null) ? 0
 						: idTokenSignedResponseAlg.hashCode());
+		result = prime
+				* result
+				+ ((accessTokenSignedResponseAlg == null) ? 0
+						: accessTokenSignedResponseAlg.hashCode());
 		result = prime
 				* result
 				+ ((idTokenValiditySeconds == null) ? 0
@@ -1129,6 +1151,9 @@ public class ClientDetailsEntity implements ClientDetails {
 		if (idTokenSignedResponseAlg != other.idTokenSignedResponseAlg) {
 			return false;
 		}
+		if (accessTokenSignedResponseAlg != other.accessTokenSignedResponseAlg) {
+			return false;
+		}
 		if (idTokenValiditySeconds == null) {
 			if (other.idTokenValiditySeconds != null) {
 				return false;
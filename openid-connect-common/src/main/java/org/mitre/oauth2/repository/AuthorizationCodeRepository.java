@@ -29,4 +29,21 @@ public interface AuthorizationCodeRepository {
 	 */
 	public AuthorizationRequestHolder consume(String code) throws InvalidGrantException;
 	
+	/**
+	 * Remove an authorization code without loading it.
+	 * 
+	 * @param code						the authorization code value
+	 * @return							true if the code was found and removed, false if it was not there
+	 * 									(never issued, already consumed, or removed by another node)
+	 */
+	public boolean remove(String code);
+	
+	/**
+	 * Remove a chunk of expired authorization codes.
+	 * 
+	 * @param maxCount					the most codes to remove in one go
+	 * @return							the number of codes removed; fewer than maxCount means there are none left
+	 */
+	public int removeExpired(int maxCount);
+	
 }
@@ -29,6 +29,8 @@ public class ConfigurationPropertiesBean {
 	private String issuer;
 	
 	private String defaultJwtSigner;
+	
+	private boolean parallelTokenSigning = false;
 
 	public ConfigurationPropertiesBean() {
 	}
@@ -57,4 +59,18 @@ public class ConfigurationPropertiesBean {
 	public void setIssuer(String iss) {
 		issuer = iss;
 	}
+
+	/**
+	 * @return whether to sign the access token and id token of an OpenID Connect grant at the same time
+	 */
+	public boolean isParallelTokenSigning() {
+		return parallelTokenSigning;
+	}
+
+	/**
+	 * @param parallelTokenSigning whether to sign the access token and id token of an OpenID Connect grant at the same time
+	 */
+	public void setParallelTokenSigning(boolean parallelTokenSigning) {
+		this.parallelTokenSigning = parallelTokenSigning;
+	}
 }
@@ -22,6 +22,8 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
 
@@ -34,6 +36,11 @@ import javax.persistence.Temporal;
 
 @Entity
 @Table(name="event")
+@NamedQueries({
+	@NamedQuery(name = "Event.getDuringPeriod", query = "select e from Event e where e.timestamp >= :start and e.timestamp < :end order by e.timestamp, e.id"),
+	@NamedQuery(name = "Event.getDuringPeriodAfter", query = "select e from Event e where e.timestamp >= :start and e.timestamp < :end " +
+			"and (e.timestamp > :lastTimestamp or (e.timestamp = :lastTimestamp and e.id > :lastId)) order by e.timestamp, e.id")
+})
 public class Event {
 
 	public static enum EventType { LOGIN, AUTHORIZATION, ACCESS }
@@ -42,6 +49,24 @@ public class Event {
 	private EventType type;
 	private Date timestamp;
 
+	/**
+	 * Default constructor.
+	 */
+	public Event() {
+		
+	}
+	
+	/**
+	 * Create a new Event of the given type that happened at the given time.
+	 * 
+	 * @param type		the type of the event
+	 * @param timestamp	when the event happened
+	 */
+	public Event(EventType type, Date timestamp) {
+		this.type = type;
+		this.timestamp = timestamp;
+	}
+
 	/**
      * @return the id
      */
@@ -17,6 +17,7 @@ package org.mitre.openid.connect.repository;
 
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 
 import org.mitre.openid.connect.model.Event;
 
@@ -50,9 +51,31 @@ public interface EventRepository {
 	 *            the size of the chunk you desire           
 	 *            
 	 * @return a Collection of Events
+	 * @deprecated offset paging gets slower with every page, use
+	 *             {@link #getEventsDuringPeriod(Date, Date, Event, int)}
 	 */
+	@Deprecated
 	public Collection<Event> getEventsDuringPeriod(Date start, Date end, int startChunk, int chunkSize);
 
+	/**
+	 * Returns one page of the Events in the half-open range [start, end), ordered
+	 * by timestamp and then id. Pages are found by seeking past the last Event of
+	 * the previous page on the (timestamp, id) index, so every page costs the same
+	 * no matter how deep into the range it is.
+	 * 
+	 * @param start
+	 *            the first instant to include
+	 * @param end
+	 *            the first instant to exclude
+	 * @param after
+	 *            the last Event of the previous page, or null for the first page
+	 * @param pageSize
+	 *            the maximum number of Events to return
+	 * 
+	 * @return a List of Events, empty once the range is exhausted
+	 */
+	public List<Event> getEventsDuringPeriod(Date start, Date end, Event after, int pageSize);
+
 	/**
 	 * Removes the given Event from the repository
 	 * 
@@ -78,4 +101,13 @@ public interface EventRepository {
 	 */
 	public Event save(Event event);
 
+	/**
+	 * Persists a batch of new Events in a single round trip to the database.
+	 * The ids of the given Events are not filled in.
+	 * 
+	 * @param events
+	 *            the Events to be saved
+	 */
+	public void saveAll(Collection<Event> events);
+
 }
@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.openid.connect.service;
+
+import java.util.Date;
+
+/**
+ * Remembers the IDs (jti) of the client assertions that have been used, so that
+ * each assertion is accepted only once.
+ */
+public interface AssertionReplayService {
+
+	/**
+	 * Record that an assertion has been used.
+	 * 
+	 * @param issuer		the assertion's issuer
+	 * @param jwtId			the assertion's jti
+	 * @param expiration	the assertion's expiration, after which it doesn't need to be remembered
+	 * @return				true if this is the first use of the assertion, false if it's a replay
+	 */
+	public boolean markUsed(String issuer, String jwtId, Date expiration);
+
+}
@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.openid.connect.service;
+
+import java.util.Date;
+import java.util.List;
+
+import org.mitre.openid.connect.model.Event;
+import org.mitre.openid.connect.model.Event.EventType;
+
+/**
+ * Audit trail of logins, authorizations and token grants.
+ * 
+ * Implementations are expected to be cheap enough to call on the request thread,
+ * which means persisting events in the background.
+ */
+public interface EventService {
+
+	/**
+	 * Record that an event of the given type happened just now. This should not block
+	 * the caller on the database.
+	 * 
+	 * @param type	the type of event
+	 * @return		true if the event was accepted, false if it had to be dropped
+	 */
+	public boolean recordEvent(EventType type);
+
+	/**
+	 * Write out any events that are still waiting to be persisted.
+	 */
+	public void flush();
+
+	/**
+	 * Get one page of the events recorded in [start, end), in time order.
+	 * 
+	 * @param after		the last event of the previous page, or null for the first page
+	 * @param pageSize	the maximum number of events to return
+	 * @return			the page, empty once the range is exhausted
+	 */
+	public List<Event> getEventsDuringPeriod(Date start, Date end, Event after, int pageSize);
+
+}
@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.openid.connect.service;
+
+import java.util.Set;
+
+/**
+ * Cache of rendered UserInfo responses, keyed by subject, the set of scopes the
+ * response was filtered by, and the schema it was rendered in.
+ */
+public interface UserInfoResponseCacheService {
+
+	/**
+	 * Get a previously rendered response
+	 * 
+	 * @param sub		the subject of the UserInfo
+	 * @param scope		the scopes the response was filtered by, in any order
+	 * @param schema	the schema the response was rendered in
+	 * @return			the rendered response, or null if there is none cached
+	 */
+	public byte[] get(String sub, Set<String> scope, String schema);
+
+	/**
+	 * Cache a rendered response
+	 * 
+	 * @param sub		the subject of the UserInfo
+	 * @param scope		the scopes the response was filtered by, in any order
+	 * @param schema	the schema the response was rendered in
+	 * @param response	the rendered response, which must not be modified afterwards
+	 */
+	public void put(String sub, Set<String> scope, String schema, byte[] response);
+
+	/**
+	 * Drop every cached response for the given subject. Called whenever the
+	 * subject's UserInfo changes.
+	 * 
+	 * @param sub		the subject of the UserInfo
+	 */
+	public void evict(String sub);
+
+}
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.openid.connect.view;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.mitre.jwt.signer.JwtSigner;
+import org.springframework.web.servlet.view.AbstractView;
+
+/**
+ * Base for the views that publish our public keys. Clients poll these all the
+ * time while the keys hardly ever change, so the key set is rendered once for
+ * each set of signers and served from memory after that, with a strong ETag
+ * and a Cache-Control max-age so that most polls end in a 304 or never reach
+ * us at all.
+ */
+public abstract class AbstractKeySetView extends AbstractView {
+
+	public static final int DEFAULT_MAX_AGE_SECONDS = 60 * 60;
+
+	private int maxAgeSeconds = DEFAULT_MAX_AGE_SECONDS;
+
+	// how long a rendering stays good even if the signers don't change, 0 for as long as they don't
+	private long renderLifetimeMillis = 0;
+
+	private volatile RenderedKeySet rendered = null;
+
+	/**
+	 * Render the public keys of the given signers.
+	 * 
+	 * @param signers	map of key ID to signer
+	 * @return			the response body
+	 */
+	protected abstract byte[] renderKeySet(Map<String, JwtSigner> signers) throws IOException;
+
+	@Override
+	protected void renderMergedOutputModel(Map<String, Object> model, HttpServletRequest request, HttpServletResponse response) throws IOException {
+
+		Map<String, JwtSigner> signers = (Map<String, JwtSigner>) model.get("signers");
+
+		RenderedKeySet current = rendered;
+		long now = System.currentTimeMillis();
+		if (current == null || !current.signers.equals(signers)
+				|| (renderLifetimeMillis > 0 && now - current.renderedAt > renderLifetimeMillis)) {
+			// the signers have changed since we last rendered them, so do it again;
+			// threads racing to do so all render the same thing, so the last one can win
+			current = new RenderedKeySet(new HashMap<String, JwtSigner>(signers), renderKeySet(signers), now);
+			rendered = current;
+		}
+
+		response.setContentType(getContentType());
+		response.setHeader("ETag", current.etag);
+		response.setHeader("Cache-Control", "max-age=" + maxAgeSeconds);
+
+		if (matchesETag(request.getHeader("If-None-Match"), current.etag)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		response.setContentLength(current.body.length);
+		response.getOutputStream().write(current.body);
+	}
+
+	/**
+	 * Check an If-None-Match header, which may list several ETags, against ours.
+	 */
+	private static boolean matchesETag(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.equals("*") || candidate.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the max-age sent in the Cache-Control header, in seconds
+	 */
+	public int getMaxAgeSeconds() {
+		return maxAgeSeconds;
+	}
+
+	/**
+	 * @param maxAgeSeconds the max-age to send in the Cache-Control header, in seconds
+	 */
+	public void setMaxAgeSeconds(int maxAgeSeconds) {
+		this.maxAgeSeconds = maxAgeSeconds;
+	}
+
+	/**
+	 * @return how long a rendering is served before it's redone even if the signers haven't changed, 0 for no limit
+	 */
+	public long getRenderLifetimeMillis() {
+		return renderLifetimeMillis;
+	}
+
+	/**
+	 * @param renderLifetimeMillis how long a rendering is served before it's redone even if the signers haven't changed, 0 for no limit
+	 */
+	public void setRenderLifetimeMillis(long renderLifetimeMillis) {
+		this.renderLifetimeMillis = renderLifetimeMillis;
+	}
+
+	/**
+	 * A rendered key set, along with the signers it was rendered from.
+	 */
+	private static class RenderedKeySet {
+
+		private final Map<String, JwtSigner> signers;
+		private final byte[] body;
+		private final String etag;
+		private final long renderedAt;
+
+		private RenderedKeySet(Map<String, JwtSigner> signers, byte[] body, long renderedAt) {
+			this.signers = signers;
+			this.body = body;
+			this.etag = "\"" + DigestUtils.sha256Hex(body) + "\"";
+			this.renderedAt = renderedAt;
+		}
+	}
+
+}
@@ -18,28 +18,19 @@
  */
 package org.mitre.openid.connect.view;
 
-import java.io.IOException;
-import java.io.Writer;
+import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.security.interfaces.ECPublicKey;
 import java.security.interfaces.RSAPublicKey;
 import java.util.Map;
 
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-
 import org.apache.commons.codec.binary.Base64;
+import org.mitre.jwk.model.EllipticCurveJwk;
 import org.mitre.jwt.signer.JwtSigner;
+import org.mitre.jwt.signer.impl.EcSigner;
 import org.mitre.jwt.signer.impl.RsaSigner;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
-import org.springframework.validation.BeanPropertyBindingResult;
-import org.springframework.web.servlet.view.AbstractView;
 
-import com.google.gson.ExclusionStrategy;
-import com.google.gson.FieldAttributes;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
@@ -48,38 +39,15 @@ import com.google.gson.JsonObject;
  *
  */
 @Component("jwkKeyList")
-public class JwkKeyListView extends AbstractView {
+public class JwkKeyListView extends AbstractKeySetView {
 
-	private static Logger logger = LoggerFactory.getLogger(JwkKeyListView.class);
+	public JwkKeyListView() {
+		setContentType("application/json");
+	}
 	
 	@Override
-	protected void renderMergedOutputModel(Map<String, Object> model, HttpServletRequest request, HttpServletResponse response) {
+	protected byte[] renderKeySet(Map<String, JwtSigner> signers) throws UnsupportedEncodingException {
 
-		Gson gson = new GsonBuilder()
-		.setExclusionStrategies(new ExclusionStrategy() {
-			
-			public boolean shouldSkipField(FieldAttributes f) {
-				
-				return false;
-			}
-			
-			public boolean shouldSkipClass(Class<?> clazz) {
-				// skip the JPA binding wrapper
-				if (clazz.equals(BeanPropertyBindingResult.class)) {
-					return true;
-				}
-				return false;
-			}
-							
-		})
-		.create();
-		
-		response.setContentType("application/json");
-		
-		
-		//BiMap<String, PublicKey> keyMap = (BiMap<String, PublicKey>) model.get("keys");
-		Map<String, JwtSigner> signers = (Map<String, JwtSigner>) model.get("signers");
-		
 		JsonObject obj = new JsonObject();
 		JsonArray keys = new JsonArray();
 		obj.add("keys", keys);
@@ -110,22 +78,50 @@ public class JwkKeyListView extends AbstractView {
 				o.addProperty("kid", keyId);
 
 				keys.add(o);
-			} // TODO: deal with non-RSA key types
+			} else if (src instanceof EcSigner) {
+
+				EcSigner ecSigner = (EcSigner) src;
+
+				ECPublicKey ec = (ECPublicKey) ecSigner.getPublicKey(); // we're sure this is an ECPublicKey b/c this is an EcSigner
+
+				// the coordinates are padded to the size of the curve
+				int fieldSize = ec.getParams().getCurve().getField().getFieldSize();
+				int length = (fieldSize + 7) / 8;
+
+				String x64 = Base64.encodeBase64URLSafeString(toUnsignedBytes(ec.getW().getAffineX(), length));
+				String y64 = Base64.encodeBase64URLSafeString(toUnsignedBytes(ec.getW().getAffineY(), length));
+
+				JsonObject o = new JsonObject();
+
+				o.addProperty("use", "sig");
+				o.addProperty("alg", "EC");
+				o.addProperty(EllipticCurveJwk.CURVE, "P-" + fieldSize);
+				o.addProperty(EllipticCurveJwk.X, x64);
+				o.addProperty(EllipticCurveJwk.Y, y64);
+				o.addProperty("kid", keyId);
+
+				keys.add(o);
+			} // TODO: deal with other key types
         }
 		
-		Writer out;
-		
-		try {
-			
-			out = response.getWriter();
-			gson.toJson(obj, out);
-			
-		} catch (IOException e) {
-			
-			logger.error("IOException in JwkKeyListView.java: ", e);
-			
+		return obj.toString().getBytes("UTF-8");
+
+	}
+
+	/**
+	 * The big-endian bytes of a non-negative integer, left-padded with zeros to the given length.
+	 */
+	private static byte[] toUnsignedBytes(BigInteger value, int length) {
+		byte[] bytes = value.toByteArray();
+		if (bytes.length == length) {
+			return bytes;
 		}
 
+		// toByteArray may add a leading sign byte, or have fewer bytes than the curve size
+		byte[] padded = new byte[length];
+		int copy = Math.min(bytes.length, length);
+		System.arraycopy(bytes, bytes.length - copy, padded, length - copy, copy);
+		return padded;
 	}
 
 }
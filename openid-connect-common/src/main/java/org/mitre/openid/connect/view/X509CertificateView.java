@@ -3,6 +3,7 @@
  */
 package org.mitre.openid.connect.view;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.math.BigInteger;
@@ -21,9 +22,6 @@ import java.util.Map;
 import java.util.UUID;
 import java.util.Vector;
 
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-
 import org.bouncycastle.asn1.DERObjectIdentifier;
 import org.bouncycastle.asn1.x509.BasicConstraints;
 import org.bouncycastle.asn1.x509.X509Extensions;
@@ -39,7 +37,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
-import org.springframework.web.servlet.view.AbstractView;
 
 import com.google.common.base.Joiner;
 import com.google.gson.JsonArray;
@@ -50,7 +47,7 @@ import com.google.gson.JsonObject;
  *
  */
 @Component("x509certs")
-public class X509CertificateView extends AbstractView {
+public class X509CertificateView extends AbstractKeySetView {
 	
 	private static Logger logger = LoggerFactory.getLogger(X509CertificateView.class);
 	
@@ -59,17 +56,21 @@ public class X509CertificateView extends AbstractView {
 	private long daysNotValidBefore = 30;
 	private long daysNotValidAfter = 365;
 
+	public X509CertificateView() {
+		setContentType("application/x-pem-file");
+		
+		// the certificates are good for a year from when they're made, so make them again now and then
+		setRenderLifetimeMillis(1000L * 60 * 60 * 24);
+	}
+
 	@SuppressWarnings("deprecation")
 	@Override
-	protected void renderMergedOutputModel(Map<String, Object> model, HttpServletRequest request, HttpServletResponse response) throws IOException {
+	protected byte[] renderKeySet(Map<String, JwtSigner> signers) throws IOException {
 
 		Security.addProvider(new BouncyCastleProvider());
 		
-		Map<String, JwtSigner> signers = (Map<String, JwtSigner>) model.get("signers");
-		
-		response.setContentType("application/x-pem-file");
-		
-        OutputStreamWriter writer = new OutputStreamWriter(response.getOutputStream());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStreamWriter writer = new OutputStreamWriter(out);
         PEMWriter pemWriter = new PEMWriter(writer);
         
 		for (String keyId : signers.keySet()) {
@@ -114,7 +115,7 @@ public class X509CertificateView extends AbstractView {
 			
 		}
 		
-		
+		return out.toByteArray();
 		
 	}
 
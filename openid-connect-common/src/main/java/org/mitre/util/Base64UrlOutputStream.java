@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Base64url-encodes (without padding) everything written to it onto the
+ * underlying stream as it goes, holding back at most the two bytes of an
+ * unfinished group. Call finish() or close() to write out the last group.
+ */
+public class Base64UrlOutputStream extends FilterOutputStream {
+
+	private final byte[] pending = new byte[3];
+
+	private int pendingCount = 0;
+
+	public Base64UrlOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		// top up the group left over from the last write
+		while (pendingCount > 0 && pendingCount < 3 && len > 0) {
+			pending[pendingCount++] = b[off++];
+			len--;
+		}
+		if (pendingCount == 3) {
+			out.write(Base64.encodeBase64URLSafe(pending));
+			pendingCount = 0;
+		}
+
+		// encode all of the whole groups at once
+		int whole = len - (len % 3);
+		if (whole > 0) {
+			out.write(Base64.encodeBase64URLSafe(Arrays.copyOfRange(b, off, off + whole)));
+		}
+
+		for (int i = whole; i < len; i++) {
+			pending[pendingCount++] = b[off + i];
+		}
+	}
+
+	/**
+	 * Write out the last, partial group without closing the underlying stream.
+	 */
+	public void finish() throws IOException {
+		if (pendingCount > 0) {
+			out.write(Base64.encodeBase64URLSafe(Arrays.copyOf(pending, pendingCount)));
+			pendingCount = 0;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+		super.close();
+	}
+
+}
@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.util.http;
+
+import java.net.URI;
+import java.util.Map;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Builds one HttpClient backed by a pool of keep-alive connections, to be shared
+ * by everything that calls out to the same servers, and RestTemplates on top of
+ * it. The client is created on first use; set the properties before that.
+ */
+public class PooledHttpClientFactory {
+
+	private static final PooledHttpClientFactory shared = new PooledHttpClientFactory();
+
+	private int maxTotal = 100;
+
+	private int maxPerRoute = 20;
+
+	private Map<String, Integer> maxPerRouteOverrides;
+
+	private int connectTimeoutMillis = 5 * 1000;
+
+	private int socketTimeoutMillis = 30 * 1000;
+
+	private long poolTimeoutMillis = 10 * 1000L;
+
+	private long keepAliveMillis = 30 * 1000L;
+
+	private volatile HttpClient httpClient;
+
+	/**
+	 * @return the factory shared by everything that isn't given one of its own
+	 */
+	public static PooledHttpClientFactory getShared() {
+		return shared;
+	}
+
+	/**
+	 * @return the pooled client, creating it if need be
+	 */
+	public HttpClient getHttpClient() {
+		HttpClient client = httpClient;
+		if (client == null) {
+			synchronized (this) {
+				client = httpClient;
+				if (client == null) {
+					client = createHttpClient();
+					httpClient = client;
+				}
+			}
+		}
+		return client;
+	}
+
+	/**
+	 * Get a RestTemplate on the pooled client that uses the default socket timeout.
+	 */
+	public RestTemplate createRestTemplate() {
+		return new RestTemplate(new HttpComponentsClientHttpRequestFactory(getHttpClient()));
+	}
+
+	/**
+	 * Get a RestTemplate on the pooled client with its own socket timeout. The
+	 * timeout is set on each request, so the shared client isn't changed.
+	 */
+	public RestTemplate createRestTemplate(final int socketTimeoutMillis) {
+		return new RestTemplate(new HttpComponentsClientHttpRequestFactory(getHttpClient()) {
+			@Override
+			protected void postProcessHttpRequest(HttpUriRequest request) {
+				request.getParams().setIntParameter(CoreConnectionPNames.SO_TIMEOUT, socketTimeoutMillis);
+			}
+		});
+	}
+
+	private HttpClient createHttpClient() {
+		ThreadSafeClientConnManager connectionManager = new ThreadSafeClientConnManager(SchemeRegistryFactory.createDefault());
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+		if (maxPerRouteOverrides != null) {
+			for (Map.Entry<String, Integer> override : maxPerRouteOverrides.entrySet()) {
+				URI uri = URI.create(override.getKey());
+				HttpHost host = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+				connectionManager.setMaxForRoute(new HttpRoute(host), override.getValue());
+			}
+		}
+
+		HttpParams params = new BasicHttpParams();
+		HttpConnectionParams.setConnectionTimeout(params, connectTimeoutMillis);
+		HttpConnectionParams.setSoTimeout(params, socketTimeoutMillis);
+		params.setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, poolTimeoutMillis);
+
+		DefaultHttpClient client = new DefaultHttpClient(connectionManager, params);
+
+		// keep connections for as long as the server says, or a while if it doesn't say
+		client.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+			private final ConnectionKeepAliveStrategy serverStrategy = new DefaultConnectionKeepAliveStrategy();
+
+			@Override
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				long duration = serverStrategy.getKeepAliveDuration(response, context);
+				return duration > 0 ? duration : keepAliveMillis;
+			}
+		});
+
+		return client;
+	}
+
+	/**
+	 * @return the maxTotal
+	 */
+	public int getMaxTotal() {
+		return maxTotal;
+	}
+
+	/**
+	 * @param maxTotal the most connections to keep open, across all servers
+	 */
+	public void setMaxTotal(int maxTotal) {
+		this.maxTotal = maxTotal;
+	}
+
+	/**
+	 * @return the maxPerRoute
+	 */
+	public int getMaxPerRoute() {
+		return maxPerRoute;
+	}
+
+	/**
+	 * @param maxPerRoute the most connections to keep open to any one server
+	 */
+	public void setMaxPerRoute(int maxPerRoute) {
+		this.maxPerRoute = maxPerRoute;
+	}
+
+	/**
+	 * @return the maxPerRouteOverrides
+	 */
+	public Map<String, Integer> getMaxPerRouteOverrides() {
+		return maxPerRouteOverrides;
+	}
+
+	/**
+	 * @param maxPerRouteOverrides connection limits for particular servers, keyed by scheme, host and port, written as in the URLs called, such as "https://idp.example.com"
+	 */
+	public void setMaxPerRouteOverrides(Map<String, Integer> maxPerRouteOverrides) {
+		this.maxPerRouteOverrides = maxPerRouteOverrides;
+	}
+
+	/**
+	 * @return the connectTimeoutMillis
+	 */
+	public int getConnectTimeoutMillis() {
+		return connectTimeoutMillis;
+	}
+
+	/**
+	 * @param connectTimeoutMillis how long to wait for a new connection to open
+	 */
+	public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+
+	/**
+	 * @return the socketTimeoutMillis
+	 */
+	public int getSocketTimeoutMillis() {
+		return socketTimeoutMillis;
+	}
+
+	/**
+	 * @param socketTimeoutMillis how long to wait for data on an open connection
+	 */
+	public void setSocketTimeoutMillis(int socketTimeoutMillis) {
+		this.socketTimeoutMillis = socketTimeoutMillis;
+	}
+
+	/**
+	 * @return the poolTimeoutMillis
+	 */
+	public long getPoolTimeoutMillis() {
+		return poolTimeoutMillis;
+	}
+
+	/**
+	 * @param poolTimeoutMillis how long to wait for a free connection when the pool is exhausted
+	 */
+	public void setPoolTimeoutMillis(long poolTimeoutMillis) {
+		this.poolTimeoutMillis = poolTimeoutMillis;
+	}
+
+	/**
+	 * @return the keepAliveMillis
+	 */
+	public long getKeepAliveMillis() {
+		return keepAliveMillis;
+	}
+
+	/**
+	 * @param keepAliveMillis how long to keep an idle connection when the server doesn't send a Keep-Alive timeout
+	 */
+	public void setKeepAliveMillis(long keepAliveMillis) {
+		this.keepAliveMillis = keepAliveMillis;
+	}
+
+}
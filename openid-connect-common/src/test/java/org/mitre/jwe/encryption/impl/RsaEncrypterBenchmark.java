@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.jwe.encryption.impl;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import org.mitre.jwe.model.Jwe;
+import org.mitre.jwe.model.JweHeader;
+import org.mitre.jwt.encryption.impl.RsaDecrypter;
+import org.mitre.jwt.encryption.impl.RsaEncrypter;
+
+/**
+ * Compares how many JWEs per second the RSA encrypter and decrypter get through
+ * with AES-CBC plus a separate HMAC pass against single-pass AES-GCM, for
+ * payloads the size of an id_token and of a large userinfo response. Not run
+ * as part of the build; run it by hand with the test classpath:
+ * 
+ * 		java org.mitre.jwe.encryption.impl.RsaEncrypterBenchmark [seconds]
+ */
+public class RsaEncrypterBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+		// big enough for the 256-byte content master key of the CBC methods
+		keyGen.initialize(4096);
+		KeyPair pair = keyGen.generateKeyPair();
+
+		RsaEncrypter encrypter = new RsaEncrypter();
+		encrypter.setPublicKey(pair.getPublic());
+		RsaDecrypter decrypter = new RsaDecrypter();
+		decrypter.setPrivateKey(pair.getPrivate());
+
+		for (int size : new int[] { 1024, 64 * 1024 }) {
+			byte[] payload = new byte[size];
+
+			// warm up, then measure
+			run("A256CBC+HS256", size, 1, encrypter, decrypter, payload);
+			run("A256GCM", size, 1, encrypter, decrypter, payload);
+
+			run("A256CBC+HS256", size, seconds, encrypter, decrypter, payload);
+			run("A256GCM", size, seconds, encrypter, decrypter, payload);
+		}
+	}
+
+	private static void run(String name, int size, int seconds, RsaEncrypter encrypter, RsaDecrypter decrypter, byte[] payload) throws Exception {
+		long encryptNanos = 0;
+		long decryptNanos = 0;
+		long count = 0;
+
+		long deadline = System.nanoTime() + seconds * 1000000000L;
+		while (System.nanoTime() < deadline) {
+			long start = System.nanoTime();
+			String encrypted = encrypter.encryptAndSign(new Jwe(createHeader(name), null, payload, null)).toString();
+			long mid = System.nanoTime();
+			decrypter.decrypt(encrypted);
+			long end = System.nanoTime();
+
+			encryptNanos += mid - start;
+			decryptNanos += end - mid;
+			count++;
+		}
+
+		System.out.println(String.format("%-14s %6d bytes: %8.0f encrypts/s %8.0f decrypts/s",
+				name, size, count / (encryptNanos / 1e9), count / (decryptNanos / 1e9)));
+	}
+
+	private static JweHeader createHeader(String name) {
+		JweHeader header = new JweHeader();
+		header.setAlgorithm("RSA1_5");
+		if (name.equals("A256GCM")) {
+			header.setEncryptionMethod("A256GCM");
+		} else {
+			header.setEncryptionMethod("A256CBC");
+			header.setIntegrity("HS256");
+			header.setKeyDerivationFunction("CS256");
+		}
+		return header;
+	}
+
+}
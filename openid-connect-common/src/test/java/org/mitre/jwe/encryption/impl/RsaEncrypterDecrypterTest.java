@@ -1,11 +1,17 @@
 package org.mitre.jwe.encryption.impl;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URL;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
@@ -13,6 +19,7 @@ import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 
 import javax.crypto.BadPaddingException;
@@ -20,6 +27,7 @@ import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 
+import org.apache.commons.codec.binary.Base64;
 import org.junit.After;
 import org.junit.Assume;
 import org.junit.Before;
@@ -56,7 +64,7 @@ public class RsaEncrypterDecrypterTest {
 	}
 	
 	@Test
-	public void encryptDecryptTest() throws JsonIOException, JsonSyntaxException, IOException, NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException, InvalidKeySpecException {
+	public void encryptDecryptTest() throws JsonIOException, JsonSyntaxException, IOException, NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException, InvalidKeySpecException, SignatureException {
 
 		// 
 		
@@ -94,6 +102,274 @@ public class RsaEncrypterDecrypterTest {
 		
 	}
 
+	@Test
+	public void streamingEncryptDecryptTest() throws IOException, GeneralSecurityException {
+
+		JsonObject jweHeaderObject = new JsonParser().parse(new BufferedReader(new InputStreamReader(jweHeaderUrl.openStream()))).getAsJsonObject();
+		KeyPair pair = generateKeyPair();
+
+		RsaEncrypter rsaEncrypter = new RsaEncrypter();
+		rsaEncrypter.setPublicKey(pair.getPublic());
+		RsaDecrypter rsaDecrypter = new RsaDecrypter();
+		rsaDecrypter.setPrivateKey(pair.getPrivate());
+
+		// several chunks long, and not a multiple of the block or base64 group size
+		byte[] payload = new byte[100 * 1024 + 7];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte) (i * 31);
+		}
+
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		rsaEncrypter.encryptAndSign(new JweHeader(jweHeaderObject), new ByteArrayInputStream(payload), encrypted);
+
+		ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+		JweHeader header = rsaDecrypter.decrypt(new ByteArrayInputStream(encrypted.toByteArray()), decrypted);
+
+		assertArrayEquals(payload, decrypted.toByteArray());
+		assertEquals(jweHeaderObject.get("enc").getAsString(), header.getEncryptionMethod());
+
+		// the streamed token is an ordinary JWE
+		Jwe jwe = rsaDecrypter.decrypt(new String(encrypted.toByteArray(), "US-ASCII"));
+		assertArrayEquals(payload, jwe.getCiphertext());
+
+		// and an ordinary JWE can be streamed, integrity value included
+		Jwe whole = rsaEncrypter.encryptAndSign(new Jwe(new JweHeader(jweHeaderObject), null, jwePlaintextString.getBytes(), null));
+		decrypted = new ByteArrayOutputStream();
+		rsaDecrypter.decrypt(new ByteArrayInputStream(whole.toString().getBytes("US-ASCII")), decrypted);
+		assertEquals(jwePlaintextString, new String(decrypted.toByteArray()));
+	}
+
+	@Test
+	public void gcmEncryptDecryptTest() throws IOException, GeneralSecurityException {
+
+		KeyPair pair = generateKeyPair();
+
+		RsaEncrypter rsaEncrypter = new RsaEncrypter();
+		rsaEncrypter.setPublicKey(pair.getPublic());
+		RsaDecrypter rsaDecrypter = new RsaDecrypter();
+		rsaDecrypter.setPrivateKey(pair.getPrivate());
+
+		for (String enc : new String[] { "A128GCM", "A256GCM" }) {
+			Jwe jwe = new Jwe(createGcmHeader(enc), null, jwePlaintextString.getBytes(), null);
+			String encrypted = rsaEncrypter.encryptAndSign(jwe).toString();
+
+			Jwe decrypted = rsaDecrypter.decrypt(encrypted);
+
+			assertEquals(jwePlaintextString, new String(decrypted.getCiphertext()));
+			assertEquals(enc, decrypted.getHeader().getEncryptionMethod());
+		}
+	}
+
+	@Test
+	public void cachedContentKeyTest() throws IOException, GeneralSecurityException {
+
+		JsonObject jweHeaderObject = new JsonParser().parse(new BufferedReader(new InputStreamReader(jweHeaderUrl.openStream()))).getAsJsonObject();
+		KeyPair pair = generateKeyPair();
+
+		RsaEncrypter rsaEncrypter = new RsaEncrypter();
+		rsaEncrypter.setPublicKey(pair.getPublic());
+		RsaDecrypter rsaDecrypter = new RsaDecrypter();
+		rsaDecrypter.setPrivateKey(pair.getPrivate());
+		rsaDecrypter.setContentKeyCacheSize(10);
+
+		String cbc = rsaEncrypter.encryptAndSign(new Jwe(new JweHeader(jweHeaderObject), null, jwePlaintextString.getBytes(), null)).toString();
+		String gcm = rsaEncrypter.encryptAndSign(new Jwe(createGcmHeader("A256GCM"), null, jwePlaintextString.getBytes(), null)).toString();
+
+		// the second time round the keys come out of the cache
+		for (int i = 0; i < 2; i++) {
+			assertEquals(jwePlaintextString, new String(rsaDecrypter.decrypt(cbc).getCiphertext()));
+			assertEquals(jwePlaintextString, new String(rsaDecrypter.decrypt(gcm).getCiphertext()));
+
+			ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+			rsaDecrypter.decrypt(new ByteArrayInputStream(cbc.getBytes("US-ASCII")), decrypted);
+			assertEquals(jwePlaintextString, new String(decrypted.toByteArray()));
+		}
+	}
+
+	@Test(expected = SignatureException.class)
+	public void gcmTamperedTest() throws IOException, GeneralSecurityException {
+
+		KeyPair pair = generateKeyPair();
+
+		RsaEncrypter rsaEncrypter = new RsaEncrypter();
+		rsaEncrypter.setPublicKey(pair.getPublic());
+		RsaDecrypter rsaDecrypter = new RsaDecrypter();
+		rsaDecrypter.setPrivateKey(pair.getPrivate());
+
+		Jwe jwe = rsaEncrypter.encryptAndSign(new Jwe(createGcmHeader("A128GCM"), null, jwePlaintextString.getBytes(), null));
+
+		// flip a bit of the ciphertext
+		jwe.getCiphertext()[0] ^= 1;
+
+		rsaDecrypter.decrypt(jwe.toString());
+	}
+
+	@Test
+	public void gcmHeaderIvTest() throws IOException, GeneralSecurityException {
+
+		KeyPair pair = generateKeyPair();
+
+		RsaEncrypter rsaEncrypter = new RsaEncrypter();
+		rsaEncrypter.setPublicKey(pair.getPublic());
+		RsaDecrypter rsaDecrypter = new RsaDecrypter();
+		rsaDecrypter.setPrivateKey(pair.getPrivate());
+
+		// a CBC-sized IV supplied by the caller
+		byte[] cbcIv = new byte[16];
+		JweHeader header = createGcmHeader("A128GCM");
+		header.setIv(Base64.encodeBase64String(cbcIv));
+
+		Jwe jwe = rsaEncrypter.encryptAndSign(new Jwe(header, null, jwePlaintextString.getBytes(), null));
+
+		// is replaced with a fresh GCM nonce, which the decrypter accepts
+		byte[] iv = Base64.decodeBase64(jwe.getHeader().getInitializationVector());
+		assertEquals(12, iv.length);
+		assertEquals(jwePlaintextString, new String(rsaDecrypter.decrypt(jwe.toString()).getCiphertext()));
+	}
+
+	@Test
+	public void gcmWrongKeyLengthTest() throws IOException, GeneralSecurityException {
+
+		KeyPair pair = generateKeyPair();
+
+		RsaEncrypter rsaEncrypter = new RsaEncrypter();
+		rsaEncrypter.setPublicKey(pair.getPublic());
+		RsaDecrypter rsaDecrypter = new RsaDecrypter();
+		rsaDecrypter.setPrivateKey(pair.getPrivate());
+
+		// a 256 bit key sent as A128GCM
+		Jwe jwe = rsaEncrypter.encryptAndSign(new Jwe(createGcmHeader("A256GCM"), null, jwePlaintextString.getBytes(), null));
+		jwe.getHeader().setEncryptionMethod("A128GCM");
+
+		try {
+			rsaDecrypter.decrypt(jwe.toString());
+			fail("expected the mislabeled key to be rejected");
+		} catch (SignatureException e) {
+			assertEquals("JWE could not be decrypted", e.getMessage());
+		}
+	}
+
+	@Test(expected = SignatureException.class)
+	public void streamingTamperedTest() throws IOException, GeneralSecurityException {
+
+		JsonObject jweHeaderObject = new JsonParser().parse(new BufferedReader(new InputStreamReader(jweHeaderUrl.openStream()))).getAsJsonObject();
+		KeyPair pair = generateKeyPair();
+
+		RsaEncrypter rsaEncrypter = new RsaEncrypter();
+		rsaEncrypter.setPublicKey(pair.getPublic());
+		RsaDecrypter rsaDecrypter = new RsaDecrypter();
+		rsaDecrypter.setPrivateKey(pair.getPrivate());
+
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		rsaEncrypter.encryptAndSign(new JweHeader(jweHeaderObject), new ByteArrayInputStream(jwePlaintextString.getBytes()), encrypted);
+
+		// swap the last integrity value character for a different one
+		byte[] token = encrypted.toByteArray();
+		token[token.length - 1] = (byte) (token[token.length - 1] == 'A' ? 'B' : 'A');
+
+		rsaDecrypter.decrypt(new ByteArrayInputStream(token), new ByteArrayOutputStream());
+	}
+
+	@Test
+	public void streamingTamperedCiphertextTest() throws IOException, GeneralSecurityException {
+
+		JsonObject jweHeaderObject = new JsonParser().parse(new BufferedReader(new InputStreamReader(jweHeaderUrl.openStream()))).getAsJsonObject();
+		KeyPair pair = generateKeyPair();
+
+		RsaEncrypter rsaEncrypter = new RsaEncrypter();
+		rsaEncrypter.setPublicKey(pair.getPublic());
+		RsaDecrypter rsaDecrypter = new RsaDecrypter();
+		rsaDecrypter.setPrivateKey(pair.getPrivate());
+
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		rsaEncrypter.encryptAndSign(new JweHeader(jweHeaderObject), new ByteArrayInputStream(jwePlaintextString.getBytes()), encrypted);
+
+		// change a ciphertext character in the block before the last, which garbles the padding
+		byte[] token = encrypted.toByteArray();
+		int integrityStart = new String(token, "US-ASCII").lastIndexOf('.');
+		int tampered = integrityStart - 24;
+		token[tampered] = (byte) (token[tampered] == 'A' ? 'B' : 'A');
+
+		ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+		try {
+			rsaDecrypter.decrypt(new ByteArrayInputStream(token), decrypted);
+			fail("expected the tampered ciphertext to be rejected");
+		} catch (SignatureException e) {
+			// the same failure as a bad integrity value, before the padding is checked
+			assertEquals("JWE could not be decrypted", e.getMessage());
+		}
+
+		// the final block was never decrypted
+		assertTrue(decrypted.size() < jwePlaintextString.length());
+	}
+
+	@Test
+	public void tamperedCiphertextTest() throws IOException, GeneralSecurityException {
+
+		JsonObject jweHeaderObject = new JsonParser().parse(new BufferedReader(new InputStreamReader(jweHeaderUrl.openStream()))).getAsJsonObject();
+		KeyPair pair = generateKeyPair();
+
+		RsaEncrypter rsaEncrypter = new RsaEncrypter();
+		rsaEncrypter.setPublicKey(pair.getPublic());
+		RsaDecrypter rsaDecrypter = new RsaDecrypter();
+		rsaDecrypter.setPrivateKey(pair.getPrivate());
+
+		Jwe jwe = rsaEncrypter.encryptAndSign(new Jwe(new JweHeader(jweHeaderObject), null, jwePlaintextString.getBytes(), null));
+
+		// change a ciphertext character in the block before the last, which garbles the padding
+		String token = jwe.toString();
+		int tampered = token.lastIndexOf('.') - 24;
+		token = token.substring(0, tampered) + (token.charAt(tampered) == 'A' ? 'B' : 'A') + token.substring(tampered + 1);
+
+		try {
+			rsaDecrypter.decrypt(token);
+			fail("expected the tampered ciphertext to be rejected");
+		} catch (SignatureException e) {
+			// the same failure as the streaming path, before the padding is checked
+			assertEquals("JWE could not be decrypted", e.getMessage());
+		}
+	}
+
+	@Test
+	public void tamperedEncryptedKeyTest() throws IOException, GeneralSecurityException {
+
+		JsonObject jweHeaderObject = new JsonParser().parse(new BufferedReader(new InputStreamReader(jweHeaderUrl.openStream()))).getAsJsonObject();
+		KeyPair pair = generateKeyPair();
+
+		RsaEncrypter rsaEncrypter = new RsaEncrypter();
+		rsaEncrypter.setPublicKey(pair.getPublic());
+		RsaDecrypter rsaDecrypter = new RsaDecrypter();
+		rsaDecrypter.setPrivateKey(pair.getPrivate());
+
+		Jwe cbc = rsaEncrypter.encryptAndSign(new Jwe(new JweHeader(jweHeaderObject), null, jwePlaintextString.getBytes(), null));
+		Jwe gcm = rsaEncrypter.encryptAndSign(new Jwe(createGcmHeader("A128GCM"), null, jwePlaintextString.getBytes(), null));
+
+		// a garbled encrypted key fails the same way whatever the encryption method
+		for (Jwe jwe : new Jwe[] { cbc, gcm }) {
+			jwe.getEncryptedKey()[0] ^= 1;
+			try {
+				rsaDecrypter.decrypt(jwe.toString());
+				fail("expected the tampered encrypted key to be rejected for " + jwe.getHeader().getEncryptionMethod());
+			} catch (SignatureException e) {
+				assertEquals("JWE could not be decrypted", e.getMessage());
+			}
+		}
+	}
+
+	private JweHeader createGcmHeader(String enc) {
+		JweHeader header = new JweHeader();
+		header.setAlgorithm("RSA1_5");
+		header.setEncryptionMethod(enc);
+		return header;
+	}
+
+	private KeyPair generateKeyPair() throws NoSuchAlgorithmException {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+		// big enough to wrap the 256-byte content master key
+		keyGen.initialize(4096);
+		return keyGen.generateKeyPair();
+	}
+
 	// TODO: add independent unit test for encryption and decryption
 	
 }
@@ -0,0 +1,130 @@
+package org.mitre.jwt.signer.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.net.URL;
+import java.security.KeyPair;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mitre.jwt.model.Jwt;
+import org.mitre.jwt.model.JwtClaims;
+import org.mitre.jwt.model.JwtHeader;
+import org.mitre.jwt.signer.JwsAlgorithm;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "classpath:test-context.xml" })
+public class Es256Test{
+	
+	
+	URL claimsUrl = this.getClass().getResource("/jwt/claims");
+	URL es256Url = this.getClass().getResource("/jwt/es256");
+
+	Jwt jwt = null;
+	JwtClaims claims = null;
+	JwtHeader header = null;
+	KeyPairGenerator keyGen;
+	KeyPair keyPair;
+	PublicKey publicKey;
+	PrivateKey privateKey;
+	
+	/**
+	 * @throws IOException 
+	 * @throws JsonSyntaxException 
+	 * @throws JsonIOException 
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws JsonIOException, JsonSyntaxException, IOException{
+		JsonParser parser = new JsonParser();
+		JsonObject claimsObject = parser.parse(new BufferedReader(new InputStreamReader(claimsUrl.openStream()))).getAsJsonObject();
+		JsonObject headerObject = parser.parse(new BufferedReader(new InputStreamReader(es256Url.openStream()))).getAsJsonObject();
+		claims = new JwtClaims(claimsObject);
+		header = new JwtHeader(headerObject);
+		jwt = new Jwt(header, claims, null);
+	}
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@After
+	public void tearDown(){
+	}
+	
+	@Test 
+	public void testEcSigner256() throws Exception {
+
+		keyGen = KeyPairGenerator.getInstance(EcSigner.KEYPAIR_ALGORITHM);
+		keyGen.initialize(new ECGenParameterSpec("secp256r1"));
+		keyPair = keyGen.generateKeyPair();
+		publicKey = keyPair.getPublic();
+		privateKey = keyPair.getPrivate();
+		EcSigner ec = new EcSigner(JwsAlgorithm.ES256.getJwaName(), publicKey, privateKey);
+		jwt = ec.sign(jwt);
+		assertEquals(ec.verify(jwt.toString()), true);
+
+		// R and S, 32 bytes each
+		assertEquals(64, Base64.decodeBase64(jwt.getSignature()).length);
+
+	}
+
+	@Test
+	public void testEcSigner256KnownAnswer() throws Exception {
+
+		// the ES256 example from the JWS draft, appendix A.3
+		String x = "f83OJ3D2xF1Bg8vub9tLe1gHMzV76e8Tus9uPHvRVEU";
+		String y = "x_FEzRu9m36HLN_tue659LNpXW6pCyStikYjKIWI5a0";
+		String token = "eyJhbGciOiJFUzI1NiJ9"
+				+ ".eyJpc3MiOiJqb2UiLA0KICJleHAiOjEzMDA4MTkzODAsDQogImh0dHA6Ly9leGFtcGxlLmNvbS9pc19yb290Ijp0cnVlfQ"
+				+ ".DtEhU3ljbEg8L38VWAfUAqOyKAM6-Xx-F4GawxaepmXFCgfTjDxw5djxLa8ISlSApmWQxfKTUJqPP3-Kg6NU1Q";
+
+		// borrow the P-256 parameters from a generated key
+		keyGen = KeyPairGenerator.getInstance(EcSigner.KEYPAIR_ALGORITHM);
+		keyGen.initialize(new ECGenParameterSpec("secp256r1"));
+		ECPublicKey generated = (ECPublicKey) keyGen.generateKeyPair().getPublic();
+
+		ECPoint point = new ECPoint(new BigInteger(1, Base64.decodeBase64(x)), new BigInteger(1, Base64.decodeBase64(y)));
+		publicKey = KeyFactory.getInstance(EcSigner.KEYPAIR_ALGORITHM).generatePublic(new ECPublicKeySpec(point, generated.getParams()));
+
+		EcSigner ec = new EcSigner(JwsAlgorithm.ES256.getJwaName(), publicKey, null);
+		assertTrue(ec.verify(token));
+
+		// and a changed payload doesn't verify
+		assertEquals(false, ec.verify(token.replace(".eyJpc3MiOiJqb2Ui", ".eyJpc3MiOiJqb2Uj")));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEcSignerCurveMismatch() throws Exception {
+
+		keyGen = KeyPairGenerator.getInstance(EcSigner.KEYPAIR_ALGORITHM);
+		keyGen.initialize(new ECGenParameterSpec("secp256r1"));
+		keyPair = keyGen.generateKeyPair();
+
+		// a P-256 key can't make ES384 signatures
+		new EcSigner(JwsAlgorithm.ES384.getJwaName(), keyPair.getPublic(), keyPair.getPrivate());
+	}
+	
+}
\ No newline at end of file
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.jwt.signer.service.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitre.jwt.model.Jwt;
+import org.mitre.jwt.signer.JwsAlgorithm;
+import org.mitre.jwt.signer.JwtSigner;
+import org.mitre.jwt.signer.service.JwtSigningAndValidationService;
+
+public class DefaultAsyncJwtSigningServiceTest {
+
+	// holds the worker until the test lets it go
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	private DefaultAsyncJwtSigningService service;
+
+	@Before
+	public void setUp() {
+		service = new DefaultAsyncJwtSigningService();
+		service.setSigningService(new BlockingSigningService());
+		service.setPoolSize(1);
+		service.setQueueCapacity(1);
+		service.afterPropertiesSet();
+	}
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		service.destroy();
+	}
+
+	@Test
+	public void testRejectWhenFull() throws Exception {
+
+		// the only worker takes this one and waits
+		Jwt first = new Jwt();
+		Future<Jwt> running = service.signJwtAsync(first);
+
+		// wait for the worker to take it, so the next one sits in the queue
+		while (service.getQueueDepth() > 0) {
+			Thread.sleep(1);
+		}
+
+		Future<Jwt> queued = service.signJwtAsync(new Jwt());
+		assertEquals(1, service.getQueueDepth());
+
+		try {
+			service.signJwtAsync(new Jwt(), JwsAlgorithm.HS256);
+			fail("expected the full queue to reject the jwt");
+		} catch (RejectedExecutionException e) {
+			// expected
+		}
+		assertEquals(1, service.getRejectedCount());
+
+		release.countDown();
+		assertSame(first, running.get());
+		assertEquals("signed", queued.get().getSignature());
+	}
+
+	private class BlockingSigningService implements JwtSigningAndValidationService {
+
+		@Override
+		public Map<String, JwtSigner> getAllSigners() {
+			return null;
+		}
+
+		@Override
+		public boolean validateSignature(String jwtString) {
+			return false;
+		}
+
+		@Override
+		public void signJwt(Jwt jwt) throws NoSuchAlgorithmException {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			jwt.setSignature("signed");
+		}
+
+		@Override
+		public void signJwt(Jwt jwt, JwsAlgorithm alg) throws NoSuchAlgorithmException {
+			signJwt(jwt);
+		}
+	}
+
+}
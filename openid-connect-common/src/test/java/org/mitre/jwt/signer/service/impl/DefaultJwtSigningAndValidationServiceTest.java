@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.jwt.signer.service.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mitre.jwt.model.Jwt;
+import org.mitre.jwt.signer.JwsAlgorithm;
+import org.mitre.jwt.signer.JwtSigner;
+import org.mitre.jwt.signer.impl.HmacSigner;
+import org.mitre.jwt.signer.impl.RsaSigner;
+import org.mitre.openid.connect.view.JwkKeyListView;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class DefaultJwtSigningAndValidationServiceTest {
+
+	private CountingSigner signer;
+
+	private DefaultJwtSigningAndValidationService service;
+
+	@Before
+	public void setUp() {
+		signer = new CountingSigner();
+		service = new DefaultJwtSigningAndValidationService(Collections.singletonMap("hmac1", signer));
+		service.activateSigner("hmac1");
+	}
+
+	@Test
+	public void testVerifiedJwtIsRemembered() throws Exception {
+
+		String token = sign(new Date(System.currentTimeMillis() + 60 * 1000L));
+
+		assertTrue(service.validateSignature(token));
+		assertTrue(service.validateSignature(token));
+		assertEquals(1, signer.verifications);
+	}
+
+	@Test
+	public void testNewSignersCheckAgain() throws Exception {
+
+		String token = sign(new Date(System.currentTimeMillis() + 60 * 1000L));
+
+		assertTrue(service.validateSignature(token));
+
+		// the same signer, but published as a new set
+		service.setSigners(Collections.singletonMap("hmac1", signer));
+
+		assertTrue(service.validateSignature(token));
+		assertTrue(service.validateSignature(token));
+		assertEquals(2, signer.verifications);
+	}
+
+	@Test
+	public void testFailureIsNotRemembered() throws Exception {
+
+		String token = sign(new Date(System.currentTimeMillis() + 60 * 1000L));
+		String tampered = token.substring(0, token.length() - 2) + (token.endsWith("AA") ? "BB" : "AA");
+
+		assertFalse(service.validateSignature(tampered));
+		assertFalse(service.validateSignature(tampered));
+		assertEquals(2, signer.verifications);
+	}
+
+	@Test
+	public void testExpiredJwtIsNotRemembered() throws Exception {
+
+		String token = sign(new Date(System.currentTimeMillis() - 60 * 1000L));
+
+		assertTrue(service.validateSignature(token));
+		assertTrue(service.validateSignature(token));
+		assertEquals(2, signer.verifications);
+	}
+
+	@Test
+	public void testRotatedKeyIsNamedInHeader() throws Exception {
+
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(1024);
+		KeyPair pair1 = generator.generateKeyPair();
+		KeyPair pair2 = generator.generateKeyPair();
+
+		Map<String, JwtSigner> signers = new HashMap<String, JwtSigner>();
+		signers.put("rsa1", new RsaSigner(JwsAlgorithm.RS256.getJwaName(), pair1.getPublic(), pair1.getPrivate()));
+		service.setSigners(signers);
+		service.activateSigner("rsa1");
+
+		String before = sign(new Date(System.currentTimeMillis() + 60 * 1000L));
+
+		// publish the next key, then start signing with it
+		service.publishSigner("rsa2", new RsaSigner(JwsAlgorithm.RS256.getJwaName(), pair2.getPublic(), pair2.getPrivate()));
+		service.activateSigner("rsa2");
+
+		String after = sign(new Date(System.currentTimeMillis() + 60 * 1000L));
+		Jwt jwt = new Jwt();
+		jwt.getClaims().setIssuer("http://localhost/");
+		service.signJwt(jwt, JwsAlgorithm.RS256);
+		String byAlgorithm = jwt.toString();
+
+		// a relying party only has the published key set, and picks a key out of it by the header's key id
+		Map<String, PublicKey> published = parseKeySet(publishedKeySet(service.getAllSigners()));
+		assertEquals(2, published.size());
+
+		for (String token : new String[] { before, after, byAlgorithm }) {
+			String keyId = Jwt.parse(token).getHeader().getKeyId();
+			PublicKey key = published.get(keyId);
+			assertTrue(keyId, new RsaSigner(JwsAlgorithm.RS256.getJwaName(), key, null).verify(token));
+		}
+		assertEquals("rsa1", Jwt.parse(before).getHeader().getKeyId());
+		assertEquals("rsa2", Jwt.parse(after).getHeader().getKeyId());
+		assertEquals("rsa2", Jwt.parse(byAlgorithm).getHeader().getKeyId());
+	}
+
+	private static byte[] publishedKeySet(Map<String, JwtSigner> signers) throws UnsupportedEncodingException {
+		return new JwkKeyListView() {
+			private byte[] render(Map<String, JwtSigner> signers) throws UnsupportedEncodingException {
+				return renderKeySet(signers);
+			}
+		}.render(signers);
+	}
+
+	private static Map<String, PublicKey> parseKeySet(byte[] keySet) throws Exception {
+		Map<String, PublicKey> keys = new HashMap<String, PublicKey>();
+		JsonObject json = new JsonParser().parse(new String(keySet, "UTF-8")).getAsJsonObject();
+		for (JsonElement element : json.getAsJsonArray("keys")) {
+			JsonObject o = element.getAsJsonObject();
+			BigInteger modulus = new BigInteger(1, Base64.decodeBase64(o.get("mod").getAsString()));
+			BigInteger exponent = new BigInteger(1, Base64.decodeBase64(o.get("exp").getAsString()));
+			keys.put(o.get("kid").getAsString(), KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(modulus, exponent)));
+		}
+		return keys;
+	}
+
+	private String sign(Date expiration) throws NoSuchAlgorithmException {
+		Jwt jwt = new Jwt();
+		jwt.getClaims().setIssuer("http://localhost/");
+		jwt.getClaims().setExpiration(expiration);
+		service.signJwt(jwt);
+		return jwt.toString();
+	}
+
+	private static class CountingSigner extends HmacSigner {
+
+		private int verifications = 0;
+
+		private CountingSigner() {
+			super(JwsAlgorithm.HS256.getJwaName(), "changeit");
+		}
+
+		@Override
+		public boolean verify(String jwtString) throws NoSuchAlgorithmException {
+			verifications++;
+			return super.verify(jwtString);
+		}
+	}
+
+}
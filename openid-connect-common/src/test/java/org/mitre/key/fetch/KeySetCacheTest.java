@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.key.fetch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitre.key.fetch.KeySetCache.Format;
+import org.springframework.http.HttpHeaders;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Exercises KeySetCache against a stub key server on the loopback interface.
+ */
+public class KeySetCacheTest {
+
+	private HttpServer server;
+	private String jwkUrl;
+
+	private final AtomicInteger hits = new AtomicInteger();
+	private volatile String body;
+	private volatile long delayMillis = 0;
+	private volatile int status = 200;
+
+	private RSAPublicKey key1;
+	private RSAPublicKey key2;
+
+	private KeySetCache cache;
+
+	@Before
+	public void setUp() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(1024);
+		key1 = (RSAPublicKey) generator.generateKeyPair().getPublic();
+		key2 = (RSAPublicKey) generator.generateKeyPair().getPublic();
+
+		body = keySet(key1, "k1");
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/jwk", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				hits.incrementAndGet();
+				try {
+					Thread.sleep(delayMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if (status != 200) {
+					exchange.sendResponseHeaders(status, -1);
+					exchange.close();
+					return;
+				}
+				byte[] bytes = body.getBytes("UTF-8");
+				exchange.getResponseHeaders().add("Content-Type", "application/json");
+				exchange.getResponseHeaders().add("Cache-Control", "max-age=300");
+				exchange.sendResponseHeaders(200, bytes.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(bytes);
+				out.close();
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+
+		jwkUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/jwk";
+
+		cache = new KeySetCache();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	@Test
+	public void testCachesKeySet() {
+		assertEquals(key1, cache.getKey(jwkUrl, Format.JWK, "k1"));
+		assertEquals(key1, cache.getKey(jwkUrl, Format.JWK, "k1"));
+		assertEquals(key1, cache.getKey(jwkUrl, Format.JWK, null));
+
+		assertEquals(1, hits.get());
+	}
+
+	@Test
+	public void testCoalescesConcurrentMisses() throws Exception {
+		delayMillis = 300;
+
+		int threads = 8;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<PublicKey>> results = new ArrayList<Future<PublicKey>>();
+
+		for (int i = 0; i < threads; i++) {
+			results.add(pool.submit(new Callable<PublicKey>() {
+				@Override
+				public PublicKey call() throws Exception {
+					start.await();
+					return cache.getKey(jwkUrl, Format.JWK, "k1");
+				}
+			}));
+		}
+		start.countDown();
+
+		for (Future<PublicKey> result : results) {
+			assertEquals(key1, result.get());
+		}
+		pool.shutdown();
+
+		assertEquals(1, hits.get());
+	}
+
+	@Test
+	public void testRefetchesOnUnknownKeyId() {
+		cache.setUnknownKeyRefetchMillis(0);
+
+		assertEquals(key1, cache.getKey(jwkUrl, Format.JWK, "k1"));
+		assertEquals(1, hits.get());
+
+		// the server rotates in a new key
+		body = keySet(key2, "k2");
+
+		assertEquals(key2, cache.getKey(jwkUrl, Format.JWK, "k2"));
+		assertEquals(2, hits.get());
+
+		// having only just fetched, an unknown key ID doesn't fetch again
+		cache.setUnknownKeyRefetchMillis(60 * 1000L);
+
+		assertNull(cache.getKey(jwkUrl, Format.JWK, "k3"));
+		assertEquals(2, hits.get());
+	}
+
+	@Test
+	public void testBacksOffFailingUrl() {
+		status = 500;
+
+		assertNull(cache.getKey(jwkUrl, Format.JWK, "k1"));
+		assertEquals(1, hits.get());
+
+		// the failure is remembered until failureRetryMillis has passed, even for unknown key IDs
+		assertNull(cache.getKey(jwkUrl, Format.JWK, null));
+		assertNull(cache.getKey(jwkUrl, Format.JWK, "k1"));
+		assertEquals(1, hits.get());
+
+		// once the server is back and the failure is forgotten, the keys are picked up
+		status = 200;
+		cache.invalidate(jwkUrl);
+
+		assertEquals(key1, cache.getKey(jwkUrl, Format.JWK, "k1"));
+		assertEquals(2, hits.get());
+	}
+
+	@Test
+	public void testTtlFromHeaders() {
+		long now = System.currentTimeMillis();
+
+		HttpHeaders headers = new HttpHeaders();
+		assertEquals(cache.getDefaultTtlMillis(), cache.getTtl(headers, now));
+
+		headers.setCacheControl("public, max-age=120");
+		assertEquals(120 * 1000L, cache.getTtl(headers, now));
+
+		headers.setCacheControl("max-age=999999999");
+		assertEquals(cache.getMaxTtlMillis(), cache.getTtl(headers, now));
+
+		headers.setCacheControl("no-store");
+		assertEquals(cache.getMinTtlMillis(), cache.getTtl(headers, now));
+
+		headers = new HttpHeaders();
+		headers.setDate(now);
+		headers.setExpires(now + 10 * 60 * 1000L);
+		assertEquals(10 * 60 * 1000L, cache.getTtl(headers, now), 1000L);
+	}
+
+	private String keySet(RSAPublicKey key, String keyId) {
+		JsonObject o = new JsonObject();
+		o.addProperty("use", "sig");
+		o.addProperty("alg", "RSA");
+		o.addProperty("mod", Base64.encodeBase64URLSafeString(key.getModulus().toByteArray()));
+		o.addProperty("exp", Base64.encodeBase64URLSafeString(key.getPublicExponent().toByteArray()));
+		o.addProperty("kid", keyId);
+
+		JsonArray keys = new JsonArray();
+		keys.add(o);
+
+		JsonObject set = new JsonObject();
+		set.add("keys", keys);
+		return set.toString();
+	}
+
+}
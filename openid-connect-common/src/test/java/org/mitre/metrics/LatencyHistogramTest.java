@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void bucketIndexRoundTrips() {
+		for (long v = 0; v < 1000000; v += 7) {
+			int index = LatencyHistogram.indexFor(v);
+			assertTrue(LatencyHistogram.valueFor(index, false) <= v);
+			assertTrue(LatencyHistogram.valueFor(index, true) >= v);
+		}
+	}
+
+	@Test
+	public void percentilesAreWithinBucketError() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long v = 1; v <= 10000; v++) {
+			histogram.record(v);
+		}
+
+		assertEquals(10000, histogram.getTotalCount());
+		assertEquals(10000, histogram.getMaxValue());
+
+		long p50 = histogram.getValueAtPercentile(50);
+		long p99 = histogram.getValueAtPercentile(99);
+		assertTrue(p50 >= 5000 && p50 <= 5000 * 9 / 8);
+		assertTrue(p99 >= 9900 && p99 <= 10000);
+	}
+
+	@Test
+	public void emptyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(99));
+		assertEquals(0.0, histogram.getMean(), 0.0);
+	}
+
+	@Test
+	public void addMergesCounts() {
+		LatencyHistogram a = new LatencyHistogram();
+		LatencyHistogram b = new LatencyHistogram();
+		a.record(10);
+		b.record(20000);
+
+		a.add(b);
+
+		assertEquals(2, a.getTotalCount());
+		assertEquals(20000, a.getMaxValue());
+	}
+
+}
@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.oauth2.repository.impl;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mitre.oauth2.model.AuthorizationCodeEntity;
+import org.mitre.oauth2.repository.AuthorizationCodeRepository;
+import org.springframework.security.oauth2.common.exceptions.InvalidGrantException;
+import org.springframework.security.oauth2.provider.code.AuthorizationRequestHolder;
+
+/**
+ * AuthorizationCodeRepository that keeps codes in a concurrent map, with an expiry
+ * on each one. Consuming a code is a single atomic remove from the map, so a code
+ * can only ever be redeemed once, and the AuthorizationRequestHolder is handed
+ * back as-is without being serialized.
+ * 
+ * For deployments with more than one node, set a backingRepository (normally the
+ * JPA one). Codes are then written through to it, a code issued on this node is
+ * claimed on it with a single delete (no select, no deserialization), and codes
+ * this node has never seen are looked up in it.
+ */
+public class InMemoryAuthorizationCodeRepository implements AuthorizationCodeRepository {
+
+	public static final long DEFAULT_CODE_VALIDITY_MILLIS = 5 * 60 * 1000L;
+	
+	private static final long PURGE_INTERVAL_MILLIS = 60 * 1000L;
+	
+	private ConcurrentMap<String, ExpiringCode> codes = new ConcurrentHashMap<String, ExpiringCode>();
+	
+	private AuthorizationCodeRepository backingRepository;
+	
+	private long codeValidityMillis = DEFAULT_CODE_VALIDITY_MILLIS;
+	
+	private final AtomicLong nextPurge = new AtomicLong(System.currentTimeMillis() + PURGE_INTERVAL_MILLIS);
+	
+	/* (non-Javadoc)
+	 * @see org.mitre.oauth2.repository.AuthorizationCodeRepository#save(org.mitre.oauth2.model.AuthorizationCodeEntity)
+	 */
+	@Override
+	public AuthorizationCodeEntity save(AuthorizationCodeEntity authorizationCode) {
+		
+		long now = System.currentTimeMillis();
+		purgeExpired(now);
+		
+		if (backingRepository != null) {
+			authorizationCode = backingRepository.save(authorizationCode);
+		}
+		
+		long expiresAt = now + codeValidityMillis;
+		if (authorizationCode.getExpiration() != null) {
+			expiresAt = authorizationCode.getExpiration().getTime();
+		}
+		
+		codes.put(authorizationCode.getCode(), new ExpiringCode(authorizationCode.getAuthorizationRequestHolder(), expiresAt));
+		
+		return authorizationCode;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.mitre.oauth2.repository.AuthorizationCodeRepository#consume(java.lang.String)
+	 */
+	@Override
+	public AuthorizationRequestHolder consume(String code) throws InvalidGrantException {
+		
+		ExpiringCode found = codes.remove(code);
+		
+		if (found == null) {
+			if (backingRepository != null) {
+				// might have been issued by another node
+				return backingRepository.consume(code);
+			}
+			throw new InvalidGrantException("InMemoryAuthorizationCodeRepository: no authorization code found for value " + code);
+		}
+		
+		if (backingRepository != null && !backingRepository.remove(code)) {
+			// someone else got to the shared copy first
+			throw new InvalidGrantException("InMemoryAuthorizationCodeRepository: authorization code already consumed: " + code);
+		}
+		
+		if (found.isExpired(System.currentTimeMillis())) {
+			throw new InvalidGrantException("InMemoryAuthorizationCodeRepository: authorization code expired: " + code);
+		}
+		
+		return found.getAuthorizationRequestHolder();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.mitre.oauth2.repository.AuthorizationCodeRepository#remove(java.lang.String)
+	 */
+	@Override
+	public boolean remove(String code) {
+		boolean removed = codes.remove(code) != null;
+		if (backingRepository != null) {
+			removed = backingRepository.remove(code) || removed;
+		}
+		return removed;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.mitre.oauth2.repository.AuthorizationCodeRepository#removeExpired(int)
+	 */
+	@Override
+	public int removeExpired(int maxCount) {
+		int removed = 0;
+		
+		long now = System.currentTimeMillis();
+		Iterator<ExpiringCode> it = codes.values().iterator();
+		while (it.hasNext() && removed < maxCount) {
+			if (it.next().isExpired(now)) {
+				it.remove();
+				removed++;
+			}
+		}
+		
+		if (backingRepository != null && removed < maxCount) {
+			removed += backingRepository.removeExpired(maxCount - removed);
+		}
+		
+		return removed;
+	}
+	
+	/**
+	 * Drop expired codes from the map, at most once per purge interval. Only the
+	 * thread that wins the compare-and-set does the sweep.
+	 */
+	private void purgeExpired(long now) {
+		long due = nextPurge.get();
+		if (now < due || !nextPurge.compareAndSet(due, now + PURGE_INTERVAL_MILLIS)) {
+			return;
+		}
+		
+		Iterator<ExpiringCode> it = codes.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().isExpired(now)) {
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of codes currently held in memory
+	 */
+	public int size() {
+		return codes.size();
+	}
+
+	/**
+	 * @return the backingRepository
+	 */
+	public AuthorizationCodeRepository getBackingRepository() {
+		return backingRepository;
+	}
+
+	/**
+	 * @param backingRepository the shared repository to write codes through to, or null for memory only
+	 */
+	public void setBackingRepository(AuthorizationCodeRepository backingRepository) {
+		this.backingRepository = backingRepository;
+	}
+
+	/**
+	 * @return the codeValidityMillis
+	 */
+	public long getCodeValidityMillis() {
+		return codeValidityMillis;
+	}
+
+	/**
+	 * @param codeValidityMillis how long a code can be redeemed for after it is issued,
+	 * 							 for codes that don't carry their own expiration
+	 */
+	public void setCodeValidityMillis(long codeValidityMillis) {
+		this.codeValidityMillis = codeValidityMillis;
+	}
+
+	/**
+	 * A code's AuthorizationRequestHolder and the time it stops being valid.
+	 */
+	private static class ExpiringCode {
+		
+		private final AuthorizationRequestHolder authorizationRequestHolder;
+		private final long expiresAt;
+		
+		public ExpiringCode(AuthorizationRequestHolder authorizationRequestHolder, long expiresAt) {
+			this.authorizationRequestHolder = authorizationRequestHolder;
+			this.expiresAt = expiresAt;
+		}
+		
+		public AuthorizationRequestHolder getAuthorizationRequestHolder() {
+			return authorizationRequestHolder;
+		}
+		
+		public boolean isExpired(long now) {
+			return now > expiresAt;
+		}
+	}
+
+}
@@ -3,8 +3,12 @@
  */
 package org.mitre.oauth2.repository.impl;
 
+import java.util.Date;
+import java.util.List;
+
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import javax.persistence.TemporalType;
 import javax.persistence.TypedQuery;
 
 import org.mitre.oauth2.model.AuthorizationCodeEntity;
@@ -21,7 +25,7 @@ import org.springframework.transaction.annotation.Transactional;
  * @author aanganes
  *
  */
-@Repository
+@Repository("jpaAuthorizationCodeRepository")
 @Transactional
 public class JpaAuthorizationCodeRepository implements AuthorizationCodeRepository {
 
@@ -39,28 +43,76 @@ public class JpaAuthorizationCodeRepository implements AuthorizationCodeReposito
 		
 	}
 
-	/* (non-Javadoc)
+	/**
+	 * Neither HSQL nor MySQL support DELETE ... RETURNING, so the code is looked up on
+	 * its unique index and then claimed with a bulk delete on the primary key. Expired
+	 * codes are filtered out by the lookup itself, so their blobs are never loaded. The delete
+	 * goes straight to the database (no managed remove, no re-read), and only the caller
+	 * whose delete actually hit the row gets the AuthorizationRequestHolder back, so a
+	 * code can't be redeemed twice by concurrent requests.
+	 * 
 	 * @see org.mitre.oauth2.repository.AuthorizationCodeRepository#consume(java.lang.String)
 	 */
 	@Override
 	@Transactional
 	public AuthorizationRequestHolder consume(String code) throws InvalidGrantException {
 		
-		TypedQuery<AuthorizationCodeEntity> query = manager.createNamedQuery("AuthorizationCodeEntity.getByValue", AuthorizationCodeEntity.class);
+		TypedQuery<AuthorizationCodeEntity> query = manager.createNamedQuery("AuthorizationCodeEntity.getUnexpiredByValue", AuthorizationCodeEntity.class);
 		query.setParameter("code", code);
+		query.setParameter("now", new Date(), TemporalType.TIMESTAMP);
 		
 		AuthorizationCodeEntity result = JpaUtil.getSingleResult(query.getResultList());
 		
 		if (result == null) {
-			throw new InvalidGrantException("JpaAuthorizationCodeRepository: no authorization code found for value " + code);
+			throw new InvalidGrantException("JpaAuthorizationCodeRepository: no unexpired authorization code found for value " + code);
+		}
+		
+		int deleted = manager.createNamedQuery("AuthorizationCodeEntity.deleteById")
+				.setParameter("id", result.getId())
+				.executeUpdate();
+		
+		if (deleted == 0) {
+			throw new InvalidGrantException("JpaAuthorizationCodeRepository: authorization code already consumed: " + code);
 		}
 		
-		AuthorizationRequestHolder authRequest = result.getAuthorizationRequestHolder();
+		return result.getAuthorizationRequestHolder();
+
+	}
+
+	/* (non-Javadoc)
+	 * @see org.mitre.oauth2.repository.AuthorizationCodeRepository#remove(java.lang.String)
+	 */
+	@Override
+	@Transactional
+	public boolean remove(String code) {
 		
-		manager.remove(result);
+		int deleted = manager.createNamedQuery("AuthorizationCodeEntity.deleteByValue")
+				.setParameter("code", code)
+				.executeUpdate();
 		
-		return authRequest;
+		return deleted > 0;
+	}
 
+	/* (non-Javadoc)
+	 * @see org.mitre.oauth2.repository.AuthorizationCodeRepository#removeExpired(int)
+	 */
+	@Override
+	@Transactional
+	public int removeExpired(int maxCount) {
+		
+		TypedQuery<Long> query = manager.createNamedQuery("AuthorizationCodeEntity.getExpiredIds", Long.class);
+		query.setParameter("now", new Date(), TemporalType.TIMESTAMP);
+		query.setMaxResults(maxCount);
+		
+		List<Long> ids = query.getResultList();
+		
+		if (ids.isEmpty()) {
+			return 0;
+		}
+		
+		return manager.createNamedQuery("AuthorizationCodeEntity.deleteByIds")
+				.setParameter("ids", ids)
+				.executeUpdate();
 	}
 
 }
@@ -3,9 +3,14 @@
  */
 package org.mitre.oauth2.service.impl;
 
+import java.util.Date;
+
 import org.mitre.oauth2.model.AuthorizationCodeEntity;
 import org.mitre.oauth2.repository.AuthorizationCodeRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.security.oauth2.common.exceptions.InvalidGrantException;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 import org.springframework.security.oauth2.provider.code.AuthorizationCodeServices;
@@ -21,11 +26,17 @@ import org.springframework.stereotype.Service;
 @Service
 public class DefaultOAuth2AuthorizationCodeService implements AuthorizationCodeServices {
 
+	private static Logger logger = LoggerFactory.getLogger(DefaultOAuth2AuthorizationCodeService.class);
+	
 	@Autowired
 	private AuthorizationCodeRepository repository;
 	
 	private RandomValueStringGenerator generator = new RandomValueStringGenerator();
 	
+	private int authCodeExpirationSeconds = 60 * 5; // expire in 5 minutes by default
+	
+	private int reaperChunkSize = 1000;
+	
 	/**
 	 * Generate a random authorization code and create an AuthorizationCodeEntity,
 	 * which will be stored in the repository.
@@ -38,7 +49,9 @@ public class DefaultOAuth2AuthorizationCodeService implements AuthorizationCodeS
 	public String createAuthorizationCode(AuthorizationRequestHolder authentication) {
 		String code = generator.generate();
 		
-		AuthorizationCodeEntity entity = new AuthorizationCodeEntity(code, authentication);
+		Date expiration = new Date(System.currentTimeMillis() + (authCodeExpirationSeconds * 1000L));
+		
+		AuthorizationCodeEntity entity = new AuthorizationCodeEntity(code, authentication, expiration);
 		repository.save(entity);
 		
 		return code;
@@ -61,6 +74,23 @@ public class DefaultOAuth2AuthorizationCodeService implements AuthorizationCodeS
 		return auth;
 	}
 
+	/**
+	 * Purge expired authorization codes from abandoned flows, a chunk at a time
+	 * so no single delete holds the table for long.
+	 */
+	@Scheduled(fixedRate = 5 * 60 * 1000) // schedule this task every five minutes
+	public void clearExpiredAuthorizationCodes() {
+		
+		int total = 0;
+		int removed;
+		do {
+			removed = repository.removeExpired(reaperChunkSize);
+			total += removed;
+		} while (removed >= reaperChunkSize);
+		
+		logger.info("Removed " + total + " expired authorization codes");
+	}
+
 	/**
 	 * @return the repository
 	 */
@@ -75,4 +105,32 @@ public class DefaultOAuth2AuthorizationCodeService implements AuthorizationCodeS
 		this.repository = repository;
 	}
 
+	/**
+	 * @return the authCodeExpirationSeconds
+	 */
+	public int getAuthCodeExpirationSeconds() {
+		return authCodeExpirationSeconds;
+	}
+
+	/**
+	 * @param authCodeExpirationSeconds how long a newly issued code can be redeemed for
+	 */
+	public void setAuthCodeExpirationSeconds(int authCodeExpirationSeconds) {
+		this.authCodeExpirationSeconds = authCodeExpirationSeconds;
+	}
+
+	/**
+	 * @return the reaperChunkSize
+	 */
+	public int getReaperChunkSize() {
+		return reaperChunkSize;
+	}
+
+	/**
+	 * @param reaperChunkSize the number of expired codes to delete per transaction
+	 */
+	public void setReaperChunkSize(int reaperChunkSize) {
+		this.reaperChunkSize = reaperChunkSize;
+	}
+
 }
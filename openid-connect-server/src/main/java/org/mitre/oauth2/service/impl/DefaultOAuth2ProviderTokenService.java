@@ -26,6 +26,7 @@ import java.util.Set;
 
 import org.joda.time.DateTime;
 import org.joda.time.Period;
+import org.mitre.metrics.service.MetricsService;
 import org.mitre.oauth2.exception.NonceReuseException;
 import org.mitre.oauth2.model.AuthenticationHolderEntity;
 import org.mitre.oauth2.model.ClientDetailsEntity;
@@ -35,7 +36,9 @@ import org.mitre.oauth2.repository.AuthenticationHolderRepository;
 import org.mitre.oauth2.repository.OAuth2TokenRepository;
 import org.mitre.oauth2.service.ClientDetailsEntityService;
 import org.mitre.oauth2.service.OAuth2TokenEntityService;
+import org.mitre.openid.connect.model.Event.EventType;
 import org.mitre.openid.connect.model.Nonce;
+import org.mitre.openid.connect.service.EventService;
 import org.mitre.openid.connect.service.NonceService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -74,8 +77,23 @@ public class DefaultOAuth2ProviderTokenService implements OAuth2TokenEntityServi
 	@Autowired
 	private TokenEnhancer tokenEnhancer;
 	
+	@Autowired
+	private MetricsService metricsService;
+	
+	@Autowired
+	private EventService eventService;
+	
 	@Override
     public OAuth2AccessTokenEntity createAccessToken(OAuth2Authentication authentication) throws AuthenticationException, InvalidClientException {
+    	long start = System.nanoTime();
+    	try {
+    		return doCreateAccessToken(authentication);
+    	} finally {
+    		metricsService.record(MetricsService.CREATE_ACCESS_TOKEN, System.nanoTime() - start);
+    	}
+    }
+
+	private OAuth2AccessTokenEntity doCreateAccessToken(OAuth2Authentication authentication) throws AuthenticationException, InvalidClientException {
 		if (authentication != null && authentication.getAuthorizationRequest() != null) {
 			// look up our client
 			AuthorizationRequest clientAuth = authentication.getAuthorizationRequest();
@@ -139,6 +157,8 @@ public class DefaultOAuth2ProviderTokenService implements OAuth2TokenEntityServi
 		    	tokenRepository.saveRefreshToken(token.getRefreshToken()); // make sure we save any changes that might have been enhanced
 		    }
 		    
+		    eventService.recordEvent(EventType.ACCESS);
+		    
 		    return token;
 		}
 		
@@ -147,6 +167,15 @@ public class DefaultOAuth2ProviderTokenService implements OAuth2TokenEntityServi
 
 	@Override
     public OAuth2AccessTokenEntity refreshAccessToken(String refreshTokenValue, AuthorizationRequest authRequest) throws AuthenticationException {
+    	long start = System.nanoTime();
+    	try {
+    		return doRefreshAccessToken(refreshTokenValue, authRequest);
+    	} finally {
+    		metricsService.record(MetricsService.REFRESH_ACCESS_TOKEN, System.nanoTime() - start);
+    	}
+    }
+
+	private OAuth2AccessTokenEntity doRefreshAccessToken(String refreshTokenValue, AuthorizationRequest authRequest) throws AuthenticationException {
 		
 		OAuth2RefreshTokenEntity refreshToken = tokenRepository.getRefreshTokenByValue(refreshTokenValue);
 		
@@ -211,12 +240,23 @@ public class DefaultOAuth2ProviderTokenService implements OAuth2TokenEntityServi
     	
     	tokenRepository.saveAccessToken(token);
     	
+    	eventService.recordEvent(EventType.ACCESS);
+    	
     	return token;
 		
     }
 
 	@Override
     public OAuth2Authentication loadAuthentication(String accessTokenValue) throws AuthenticationException {
+    	long start = System.nanoTime();
+    	try {
+    		return doLoadAuthentication(accessTokenValue);
+    	} finally {
+    		metricsService.record(MetricsService.LOAD_AUTHENTICATION, System.nanoTime() - start);
+    	}
+    }
+
+	private OAuth2Authentication doLoadAuthentication(String accessTokenValue) throws AuthenticationException {
 		
 		OAuth2AccessTokenEntity accessToken = tokenRepository.getAccessTokenByValue(accessTokenValue);
 		
@@ -358,6 +398,16 @@ public class DefaultOAuth2ProviderTokenService implements OAuth2TokenEntityServi
 			return this;
 		}
 		
+		public DefaultOAuth2ProviderTokenServicesBuilder setMetricsService(MetricsService metricsService) {
+			instance.metricsService = metricsService;
+			return this;
+		}
+		
+		public DefaultOAuth2ProviderTokenServicesBuilder setEventService(EventService eventService) {
+			instance.eventService = eventService;
+			return this;
+		}
+		
 		public OAuth2TokenEntityService finish() {
 			return instance;
 		}
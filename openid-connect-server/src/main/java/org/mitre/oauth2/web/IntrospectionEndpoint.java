@@ -19,6 +19,7 @@ import java.security.Principal;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.mitre.metrics.service.MetricsService;
 import org.mitre.oauth2.model.ClientDetailsEntity;
 import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
 import org.mitre.oauth2.service.ClientDetailsEntityService;
@@ -50,6 +51,9 @@ public class IntrospectionEndpoint {
 	@Autowired
 	private ClientDetailsEntityService clientService;
 	
+	@Autowired
+	private MetricsService metricsService;
+	
 	public IntrospectionEndpoint() {
 		
 	}
@@ -71,6 +75,15 @@ public class IntrospectionEndpoint {
 	@PreAuthorize("hasRole('ROLE_CLIENT')")
 	@RequestMapping("/introspect")
 	public ModelAndView verify(@RequestParam("token") String tokenValue, Principal p, ModelAndView modelAndView) {
+		long start = System.nanoTime();
+		try {
+			return doVerify(tokenValue, p, modelAndView);
+		} finally {
+			metricsService.record(MetricsService.INTROSPECTION, System.nanoTime() - start);
+		}
+	}
+
+	private ModelAndView doVerify(String tokenValue, Principal p, ModelAndView modelAndView) {
 		
 		/*
 		if (p != null && p instanceof OAuth2Authentication) {
@@ -8,8 +8,8 @@ import java.security.PublicKey;
 import java.security.interfaces.RSAPublicKey;
 import java.text.ParseException;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.mitre.jwt.model.Jwt;
 import org.mitre.jwt.model.JwtClaims;
@@ -25,8 +25,10 @@ import org.mitre.oauth2.model.ClientDetailsEntity;
 import org.mitre.oauth2.service.ClientDetailsEntityService;
 import org.mitre.openid.connect.config.ConfigurationPropertiesBean;
 import org.mitre.openid.connect.config.OIDCServerConfiguration;
+import org.mitre.openid.connect.service.AssertionReplayService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.authentication.AuthenticationProvider;
 import org.springframework.security.authentication.AuthenticationServiceException;
@@ -38,6 +40,11 @@ import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.nimbusds.jose.JOSEException;
 import com.nimbusds.jose.JWSObject;
 import com.nimbusds.jose.JWSVerifier;
@@ -49,15 +56,22 @@ import com.nimbusds.jwt.JWTParser;
  * @author jricher
  *
  */
-public class JwtBearerAuthenticationProvider implements AuthenticationProvider {
+public class JwtBearerAuthenticationProvider implements AuthenticationProvider, InitializingBean {
 
 	private static final Logger logger = LoggerFactory.getLogger(JwtBearerAuthenticationProvider.class);
 
-	// map of verifiers, load keys for clients
-	private Map<ClientDetailsEntity, JWSVerifier> verifiers = new HashMap<ClientDetailsEntity, JWSVerifier>();
-	
 	// Allow for time sync issues by having a window of X seconds.
 	private int timeSkewAllowance = 300;
+	
+	// shares its key cache with every other KeyFetcher
+	private KeyFetcher keyFetcher = new KeyFetcher();
+	
+	private int verifierCacheSize = 1000;
+	
+	private int verifierExpirationSeconds = 5 * 60;
+	
+	// verifiers for each client's current key, built from keys the KeyFetcher loads
+	private Cache<VerifierKey, JWSVerifier> verifiers;
 
 	// to load clients
 	@Autowired
@@ -67,6 +81,43 @@ public class JwtBearerAuthenticationProvider implements AuthenticationProvider {
 	@Autowired
 	private ConfigurationPropertiesBean config;
 	
+	// to reject assertions that have already been used
+	@Autowired(required = false)
+	private AssertionReplayService replayService;
+	
+	/**
+	 * Set up the verifier cache.
+	 */
+	@Override
+	public void afterPropertiesSet() {
+		verifiers = CacheBuilder.newBuilder()
+				.maximumSize(verifierCacheSize)
+				.expireAfterWrite(verifierExpirationSeconds, TimeUnit.SECONDS)
+				.build(new CacheLoader<VerifierKey, JWSVerifier>() {
+					@Override
+					public JWSVerifier load(VerifierKey key) throws KeyUnavailableException {
+						PublicKey signingKey;
+						if (key.jwk) {
+							signingKey = keyFetcher.retrieveJwkKey(key.url, key.keyId);
+						} else {
+							signingKey = keyFetcher.retrieveX509Key(key.url);
+						}
+						
+						if (signingKey == null) {
+							throw new KeyUnavailableException();
+						}
+						
+						if (!(signingKey instanceof RSAPublicKey)) {
+							// only RSA assertions can be checked, so there's nothing to verify with
+							logger.warn("Unsupported " + signingKey.getAlgorithm() + " key for client " + key.clientId + " at " + key.url);
+							throw new KeyUnavailableException();
+						}
+						
+						return new RSASSAVerifier((RSAPublicKey) signingKey);
+					}
+				});
+	}
+	
 	/**
 	 * Try to validate the client credentials by parsing and validating the JWT.
      */
@@ -83,10 +134,18 @@ public class JwtBearerAuthenticationProvider implements AuthenticationProvider {
     		JwtClaims jwtClaims = jwt.getClaims();
 
     		// check the signature with nimbus
-    		JWSVerifier verifier = getVerifierForClient(client);
     		JWSObject jws = JWSObject.parse(jwtAuth.getJwt().toString());    		
-    		if (verifier != null && !jws.verify(verifier)) {
-    			throw new AuthenticationServiceException("Invalid signature");
+    		String keyId = jws.getHeader().getKeyID();
+    		JWSVerifier verifier = getVerifierForClient(client, keyId);
+    		if (hasKeyUrl(client)) {
+    			// the client has keys, so the assertion must be signed by one of them
+    			if (verifier == null || !jws.verify(verifier)) {
+    				// the client may have rotated its key, look it up again and retry once
+    				verifier = refreshVerifierForClient(client, keyId);
+    				if (verifier == null || !jws.verify(verifier)) {
+    					throw new AuthenticationServiceException("Invalid signature");
+    				}
+    			}
     		}
     		
 			// check the issuer
@@ -130,6 +189,15 @@ public class JwtBearerAuthenticationProvider implements AuthenticationProvider {
 					throw new AuthenticationServiceException("Assertion Token was issued in the future: " + jwtClaims.getIssuedAt());
 				}
 			}
+			
+			// check for replay, last so that only otherwise valid assertions are remembered
+			if (replayService != null) {
+				if (jwtClaims.getJwtId() == null) {
+					throw new AuthenticationServiceException("Assertion Token does not have required jti claim");
+				} else if (!replayService.markUsed(jwtClaims.getIssuer(), jwtClaims.getJwtId(), jwtClaims.getExpiration())) {
+					throw new AuthenticationServiceException("Assertion Token has already been used: " + jwtClaims.getJwtId());
+				}
+			}
 
     		// IFF we managed to get all the way down here, the token is valid
 			return new JwtBearerAssertionAuthenticationToken(client.getClientId(), jwt, client.getAuthorities());
@@ -155,39 +223,171 @@ public class JwtBearerAuthenticationProvider implements AuthenticationProvider {
 	    return (JwtBearerAssertionAuthenticationToken.class.isAssignableFrom(authentication));
     }
 
-	protected JWSVerifier getVerifierForClient(ClientDetailsEntity client) {
-
-		if(verifiers.containsKey(client)){
-			return verifiers.get(client);
+	/**
+	 * Get the verifier for the client's current key, from the cache if we can.
+	 * 
+	 * @return the verifier, or null if the client has no keys to check against or
+	 * 			none of its keys matches the key ID
+	 */
+	protected JWSVerifier getVerifierForClient(ClientDetailsEntity client, String keyId) {
+		
+		VerifierKey key = VerifierKey.forClient(client, keyId);
+		if (key == null) {
+			// no keys configured
+			logger.warn("No server key URLs configured for " + client.getClientId());
+			return null;
+		}
+		
+		try {
+			return verifiers.get(key);
+		} catch (ExecutionException e) {
+			// no key matched, the caller decides whether that fails the assertion
+			return null;
+		} catch (UncheckedExecutionException e) {
+			logger.error("Unable to load the key for " + client.getClientId(), e.getCause());
+			throw new AuthenticationServiceException("Unable to load the client's key");
+		}
+	}
+	
+	/**
+	 * Fetch the client's keys again after a signature failed to verify, in case the
+	 * client has rotated its key, and get a verifier for the new key.
+	 * 
+	 * @return the verifier, or null if the client's keys can't be found
+	 */
+	protected JWSVerifier refreshVerifierForClient(ClientDetailsEntity client, String keyId) {
+		
+		VerifierKey key = VerifierKey.forClient(client, keyId);
+		if (key == null) {
+			return null;
+		}
+		
+		if (key.jwk) {
+			keyFetcher.refreshJwkKey(key.url, keyId);
 		} else {
-						
-			KeyFetcher keyFetch = new KeyFetcher();
-			PublicKey signingKey = null;
-			
+			keyFetcher.refreshX509Key(key.url);
+		}
+		
+		verifiers.invalidate(key);
+		
+		try {
+			return verifiers.get(key);
+		} catch (ExecutionException e) {
+			return null;
+		} catch (UncheckedExecutionException e) {
+			logger.error("Unable to load the key for " + client.getClientId(), e.getCause());
+			throw new AuthenticationServiceException("Unable to load the client's key");
+		}
+	}
+	
+	/**
+	 * @return true if the client has registered a JWK or X.509 URL to check signatures against
+	 */
+	private boolean hasKeyUrl(ClientDetailsEntity client) {
+		return client.getJwkUrl() != null || client.getX509Url() != null;
+	}
+	
+	/**
+	 * Verifiers are cached per client, key URL and key ID. A client that changes its
+	 * key URL gets a new entry and its old one ages out.
+	 */
+	private static class VerifierKey {
+		
+		private final String clientId;
+		private final String url;
+		private final boolean jwk;
+		private final String keyId;
+		
+		private VerifierKey(String clientId, String url, boolean jwk, String keyId) {
+			this.clientId = clientId;
+			this.url = url;
+			this.jwk = jwk;
+			this.keyId = keyId;
+		}
+		
+		private static VerifierKey forClient(ClientDetailsEntity client, String keyId) {
 			if (client.getJwkUrl() != null) {
 				// prefer the JWK
-				signingKey = keyFetch.retrieveJwkKey(client.getJwkUrl());
+				return new VerifierKey(client.getClientId(), client.getJwkUrl(), true, keyId);
 			} else if (client.getX509Url() != null) {
-				// use the x509 only if JWK isn't configured
-				signingKey = keyFetch.retrieveX509Key(client.getX509Url());				
-			} else {
-				// no keys configured
-				logger.warn("No server key URLs configured for " + client.getClientId());
-			}
-			
-			if (signingKey != null) {
-
-				// TODO: this assumes RSA
-				JWSVerifier verifier = new RSASSAVerifier((RSAPublicKey) signingKey);
-				
-				verifiers.put(client, verifier);
-				
-				return verifier;
-				
+				// use the x509 only if JWK isn't configured, it only has one key
+				return new VerifierKey(client.getClientId(), client.getX509Url(), false, null);
 			} else {
-				// there were either no keys returned or no URLs configured to fetch them, assume no checking on key signatures
 				return null;
 			}
 		}
+		
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(clientId, url, jwk, keyId);
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof VerifierKey)) {
+				return false;
+			}
+			VerifierKey other = (VerifierKey) obj;
+			return Objects.equal(clientId, other.clientId)
+					&& Objects.equal(url, other.url)
+					&& jwk == other.jwk
+					&& Objects.equal(keyId, other.keyId);
+		}
+	}
+	
+	/**
+	 * Thrown by the loader when no key could be found, since the cache can't hold nulls.
+	 */
+	private static class KeyUnavailableException extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+	
+	/**
+	 * @param keyFetcher the key fetcher used to load client keys
+	 */
+	public void setKeyFetcher(KeyFetcher keyFetcher) {
+		this.keyFetcher = keyFetcher;
+	}
+
+	/**
+	 * @param clientService the clientService to set
+	 */
+	public void setClientService(ClientDetailsEntityService clientService) {
+		this.clientService = clientService;
+	}
+
+	/**
+	 * @param config the config to set
+	 */
+	public void setConfig(ConfigurationPropertiesBean config) {
+		this.config = config;
+	}
+
+	/**
+	 * @return the verifierCacheSize
+	 */
+	public int getVerifierCacheSize() {
+		return verifierCacheSize;
+	}
+
+	/**
+	 * @param verifierCacheSize the maximum number of verifiers to keep, takes effect at startup
+	 */
+	public void setVerifierCacheSize(int verifierCacheSize) {
+		this.verifierCacheSize = verifierCacheSize;
+	}
+
+	/**
+	 * @return the verifierExpirationSeconds
+	 */
+	public int getVerifierExpirationSeconds() {
+		return verifierExpirationSeconds;
+	}
+
+	/**
+	 * @param verifierExpirationSeconds how long a verifier is used before the client's key is looked up again, takes effect at startup
+	 */
+	public void setVerifierExpirationSeconds(int verifierExpirationSeconds) {
+		this.verifierExpirationSeconds = verifierExpirationSeconds;
 	}
 }
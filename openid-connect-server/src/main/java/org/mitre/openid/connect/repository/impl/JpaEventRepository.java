@@ -17,16 +17,26 @@ package org.mitre.openid.connect.repository.impl;
 
 import static org.mitre.util.jpa.JpaUtil.saveOrUpdate;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
 import javax.persistence.TemporalType;
+import javax.persistence.TypedQuery;
+import javax.sql.DataSource;
 
 import org.mitre.openid.connect.model.Event;
 import org.mitre.openid.connect.repository.EventRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -39,8 +49,21 @@ import org.springframework.transaction.annotation.Transactional;
 @Repository
 public class JpaEventRepository implements EventRepository {
 	
+	private static final String INSERT_EVENT = "INSERT INTO event (type, timestamp) VALUES (?, ?)";
+	
 	@PersistenceContext
 	private EntityManager manager;
+	
+	private JdbcTemplate jdbcTemplate;
+	
+	/**
+	 * Batched inserts bypass the EntityManager: with IDENTITY ids, the JPA provider
+	 * would otherwise issue (and wait on) one INSERT per event.
+	 */
+	@Autowired
+	public void setDataSource(DataSource dataSource) {
+		this.jdbcTemplate = new JdbcTemplate(dataSource);
+	}
 
 	@Override
 	@Transactional
@@ -55,14 +78,34 @@ public class JpaEventRepository implements EventRepository {
 		
 		Query query = manager.createQuery("SELECT e FROM Event e WHERE e.timestamp BETWEEN :start AND :end");
 			    
-		query = query.setParameter("start", start, TemporalType.DATE);
-		query = query.setParameter("end", end, TemporalType.DATE);
+		query = query.setParameter("start", start, TemporalType.TIMESTAMP);
+		query = query.setParameter("end", end, TemporalType.TIMESTAMP);
 		query = query.setFirstResult(startChunk);
         query = query.setMaxResults(chunkSize);
 		
 		return query.getResultList();
 	}
 	
+	@Override
+	@Transactional
+	public List<Event> getEventsDuringPeriod(Date start, Date end, Event after, int pageSize) {
+		
+		TypedQuery<Event> query;
+		if (after == null) {
+			query = manager.createNamedQuery("Event.getDuringPeriod", Event.class);
+		} else {
+			query = manager.createNamedQuery("Event.getDuringPeriodAfter", Event.class);
+			query.setParameter("lastTimestamp", after.getTimestamp(), TemporalType.TIMESTAMP);
+			query.setParameter("lastId", after.getId());
+		}
+		
+		query.setParameter("start", start, TemporalType.TIMESTAMP);
+		query.setParameter("end", end, TemporalType.TIMESTAMP);
+		query.setMaxResults(pageSize);
+		
+		return query.getResultList();
+	}
+	
 	@Override
 	@Transactional
 	public void remove(Event event) {
@@ -89,4 +132,28 @@ public class JpaEventRepository implements EventRepository {
 		return saveOrUpdate(event.getId(), manager, event);
 	}
 
+	@Override
+	public void saveAll(Collection<Event> events) {
+		if (events.isEmpty()) {
+			return;
+		}
+		
+		final List<Event> batch = new ArrayList<Event>(events);
+		
+		jdbcTemplate.batchUpdate(INSERT_EVENT, new BatchPreparedStatementSetter() {
+			
+			@Override
+			public void setValues(PreparedStatement ps, int i) throws SQLException {
+				Event event = batch.get(i);
+				ps.setInt(1, event.getType().ordinal());
+				ps.setTimestamp(2, new Timestamp(event.getTimestamp().getTime()));
+			}
+			
+			@Override
+			public int getBatchSize() {
+				return batch.size();
+			}
+		});
+	}
+
 }
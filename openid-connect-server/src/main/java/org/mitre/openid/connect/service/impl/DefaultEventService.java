@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.openid.connect.service.impl;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mitre.openid.connect.model.Event;
+import org.mitre.openid.connect.model.Event.EventType;
+import org.mitre.openid.connect.repository.EventRepository;
+import org.mitre.openid.connect.service.EventService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * EventService that hands events to a bounded in-memory queue. A single background
+ * writer drains the queue and persists events in batches, so the request thread
+ * never waits on the database.
+ * 
+ * When the queue is full, new events are dropped (and counted) unless
+ * blockWhenFull is set, in which case the caller waits up to offerTimeoutMillis
+ * for room before giving up.
+ * 
+ * Anything still queued is written out when the application context shuts down.
+ */
+@Service("defaultEventService")
+public class DefaultEventService implements EventService, InitializingBean, DisposableBean {
+
+	private static Logger logger = LoggerFactory.getLogger(DefaultEventService.class);
+
+	@Autowired
+	private EventRepository repository;
+
+	private int queueCapacity = 10000;
+
+	private int batchSize = 500;
+
+	private long flushIntervalMillis = 1000;
+
+	private boolean blockWhenFull = false;
+
+	private long offerTimeoutMillis = 10;
+
+	private BlockingQueue<Event> queue;
+
+	private Thread writer;
+
+	private volatile boolean running = false;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final AtomicLong written = new AtomicLong();
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	@Override
+	public void afterPropertiesSet() {
+		queue = new ArrayBlockingQueue<Event>(queueCapacity);
+
+		running = true;
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "event-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Stop the writer and persist whatever is left in the queue.
+	 */
+	@Override
+	public void destroy() throws InterruptedException {
+		running = false;
+		if (writer != null) {
+			writer.interrupt();
+			writer.join(flushIntervalMillis * 5);
+		}
+		flush();
+
+		logger.info("Event writer stopped: " + written.get() + " events written, " + dropped.get() + " dropped");
+	}
+
+	/* (non-Javadoc)
+	 * @see org.mitre.openid.connect.service.EventService#recordEvent(org.mitre.openid.connect.model.Event.EventType)
+	 */
+	@Override
+	public boolean recordEvent(EventType type) {
+		Event event = new Event(type, new Date());
+
+		boolean accepted;
+		if (blockWhenFull) {
+			try {
+				accepted = queue.offer(event, offerTimeoutMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				accepted = false;
+			}
+		} else {
+			accepted = queue.offer(event);
+		}
+
+		if (!accepted) {
+			dropped.incrementAndGet();
+		}
+		return accepted;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.mitre.openid.connect.service.EventService#flush()
+	 */
+	@Override
+	public void flush() {
+		List<Event> batch = new ArrayList<Event>(batchSize);
+		while (queue.drainTo(batch, batchSize) > 0) {
+			write(batch);
+			batch.clear();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.mitre.openid.connect.service.EventService#getEventsDuringPeriod(java.util.Date, java.util.Date, org.mitre.openid.connect.model.Event, int)
+	 */
+	@Override
+	public List<Event> getEventsDuringPeriod(Date start, Date end, Event after, int pageSize) {
+		return repository.getEventsDuringPeriod(start, end, after, pageSize);
+	}
+
+	private void writeLoop() {
+		List<Event> batch = new ArrayList<Event>(batchSize);
+		while (running) {
+			try {
+				// wait for the first event, then take whatever else is already queued
+				Event first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, batchSize - 1);
+
+				write(batch);
+			} catch (InterruptedException e) {
+				// shutting down, destroy() flushes the rest
+				return;
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	private void write(List<Event> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		try {
+			repository.saveAll(batch);
+			written.addAndGet(batch.size());
+		} catch (RuntimeException e) {
+			// don't let a database hiccup kill the writer thread
+			dropped.addAndGet(batch.size());
+			logger.error("Unable to write " + batch.size() + " events", e);
+		}
+	}
+
+	/**
+	 * @return the number of events waiting to be written
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the number of events dropped because the queue was full or the write failed
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return the number of events written to the repository
+	 */
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	public EventRepository getRepository() {
+		return repository;
+	}
+
+	public void setRepository(EventRepository repository) {
+		this.repository = repository;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public long getFlushIntervalMillis() {
+		return flushIntervalMillis;
+	}
+
+	public void setFlushIntervalMillis(long flushIntervalMillis) {
+		this.flushIntervalMillis = flushIntervalMillis;
+	}
+
+	public boolean isBlockWhenFull() {
+		return blockWhenFull;
+	}
+
+	public void setBlockWhenFull(boolean blockWhenFull) {
+		this.blockWhenFull = blockWhenFull;
+	}
+
+	public long getOfferTimeoutMillis() {
+		return offerTimeoutMillis;
+	}
+
+	public void setOfferTimeoutMillis(long offerTimeoutMillis) {
+		this.offerTimeoutMillis = offerTimeoutMillis;
+	}
+
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.openid.connect.service.impl;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.mitre.openid.connect.service.UserInfoResponseCacheService;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.stereotype.Service;
+
+import com.google.common.base.Joiner;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+
+/**
+ * In-memory UserInfoResponseCacheService. Responses are grouped per subject so
+ * that a single eviction drops every scope and schema variant at once.
+ * 
+ * Entries also expire a fixed time after the subject was first cached, which
+ * bounds how long a response rendered from a UserInfo that was being changed
+ * at the same moment can be served.
+ */
+@Service("userInfoResponseCacheService")
+public class DefaultUserInfoResponseCacheService implements UserInfoResponseCacheService, InitializingBean {
+
+	private static final Joiner scopeJoiner = Joiner.on(' ');
+
+	private int maximumSubjects = 10000;
+
+	private int maximumVariantsPerSubject = 16;
+
+	private long expirationSeconds = 5 * 60;
+
+	private Cache<String, ConcurrentMap<String, byte[]>> cache;
+
+	@Override
+	public void afterPropertiesSet() {
+		cache = CacheBuilder.newBuilder()
+				.maximumSize(maximumSubjects)
+				.expireAfterWrite(expirationSeconds, TimeUnit.SECONDS)
+				.build(new CacheLoader<String, ConcurrentMap<String, byte[]>>() {
+					@Override
+					public ConcurrentMap<String, byte[]> load(String sub) {
+						return new ConcurrentHashMap<String, byte[]>();
+					}
+				});
+	}
+
+	/* (non-Javadoc)
+	 * @see org.mitre.openid.connect.service.UserInfoResponseCacheService#get(java.lang.String, java.util.Set, java.lang.String)
+	 */
+	@Override
+	public byte[] get(String sub, Set<String> scope, String schema) {
+		// don't go through the loader here, a miss shouldn't create an entry
+		ConcurrentMap<String, byte[]> variants = cache.asMap().get(sub);
+		if (variants == null) {
+			return null;
+		}
+		return variants.get(variantKey(scope, schema));
+	}
+
+	/* (non-Javadoc)
+	 * @see org.mitre.openid.connect.service.UserInfoResponseCacheService#put(java.lang.String, java.util.Set, java.lang.String, byte[])
+	 */
+	@Override
+	public void put(String sub, Set<String> scope, String schema, byte[] response) {
+		ConcurrentMap<String, byte[]> variants = cache.getUnchecked(sub);
+		if (variants.size() < maximumVariantsPerSubject) {
+			variants.put(variantKey(scope, schema), response);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.mitre.openid.connect.service.UserInfoResponseCacheService#evict(java.lang.String)
+	 */
+	@Override
+	public void evict(String sub) {
+		cache.invalidate(sub);
+	}
+
+	/**
+	 * Normalize the scope set so the same scopes in any order share an entry.
+	 */
+	private String variantKey(Set<String> scope, String schema) {
+		StringBuilder key = new StringBuilder(schema).append(':');
+		if (scope != null) {
+			scopeJoiner.appendTo(key, new TreeSet<String>(scope));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return the maximum number of subjects to keep responses for
+	 */
+	public int getMaximumSubjects() {
+		return maximumSubjects;
+	}
+
+	/**
+	 * @param maximumSubjects the maximum number of subjects to keep responses for
+	 */
+	public void setMaximumSubjects(int maximumSubjects) {
+		this.maximumSubjects = maximumSubjects;
+	}
+
+	/**
+	 * @return the maximum number of scope and schema combinations kept for one subject
+	 */
+	public int getMaximumVariantsPerSubject() {
+		return maximumVariantsPerSubject;
+	}
+
+	/**
+	 * @param maximumVariantsPerSubject the maximum number of scope and schema combinations kept for one subject
+	 */
+	public void setMaximumVariantsPerSubject(int maximumVariantsPerSubject) {
+		this.maximumVariantsPerSubject = maximumVariantsPerSubject;
+	}
+
+	/**
+	 * @return how long a subject's responses are kept, in seconds
+	 */
+	public long getExpirationSeconds() {
+		return expirationSeconds;
+	}
+
+	/**
+	 * @param expirationSeconds how long a subject's responses are kept, in seconds
+	 */
+	public void setExpirationSeconds(long expirationSeconds) {
+		this.expirationSeconds = expirationSeconds;
+	}
+
+}
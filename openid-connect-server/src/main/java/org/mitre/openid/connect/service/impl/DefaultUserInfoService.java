@@ -17,10 +17,13 @@ package org.mitre.openid.connect.service.impl;
 
 import org.mitre.openid.connect.model.UserInfo;
 import org.mitre.openid.connect.repository.UserInfoRepository;
+import org.mitre.openid.connect.service.UserInfoResponseCacheService;
 import org.mitre.openid.connect.service.UserInfoService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * Implementation of the UserInfoService
@@ -35,6 +38,9 @@ public class DefaultUserInfoService implements UserInfoService {
 	@Autowired
 	private UserInfoRepository userInfoRepository;
 
+	@Autowired(required = false)
+	private UserInfoResponseCacheService responseCache;
+
 	/**
 	 * Default constructor
 	 */
@@ -54,6 +60,7 @@ public class DefaultUserInfoService implements UserInfoService {
 	@Override
 	public void save(UserInfo userInfo) {
 		userInfoRepository.save(userInfo);
+		evictResponses(userInfo.getSub());
 	}
 
 	@Override
@@ -64,11 +71,35 @@ public class DefaultUserInfoService implements UserInfoService {
 	@Override
 	public void remove(UserInfo userInfo) {
 		userInfoRepository.remove(userInfo);
+		evictResponses(userInfo.getSub());
 	}
 
 	@Override
 	public void removeByUserId(String userId) {
 		userInfoRepository.removeByUserId(userId);
+		evictResponses(userId);
+	}
+
+	/**
+	 * Drop any cached UserInfo responses for the subject, both now and again once
+	 * the change has committed, so that a response rendered from the old data
+	 * in between is not left behind.
+	 */
+	private void evictResponses(final String sub) {
+		if (responseCache == null || sub == null) {
+			return;
+		}
+
+		responseCache.evict(sub);
+
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					responseCache.evict(sub);
+				}
+			});
+		}
 	}
 
 	/**
@@ -85,4 +116,18 @@ public class DefaultUserInfoService implements UserInfoService {
     	this.userInfoRepository = userInfoRepository;
     }
 
+	/**
+	 * @return the responseCache
+	 */
+	public UserInfoResponseCacheService getResponseCache() {
+		return responseCache;
+	}
+
+	/**
+	 * @param responseCache the responseCache to set
+	 */
+	public void setResponseCache(UserInfoResponseCacheService responseCache) {
+		this.responseCache = responseCache;
+	}
+
 }
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.openid.connect.service.impl;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mitre.openid.connect.service.AssertionReplayService;
+import org.springframework.stereotype.Service;
+
+/**
+ * AssertionReplayService that keeps used assertion IDs in memory, partitioned by
+ * the minute in which they can be forgotten (expiration plus clock skew). Checking
+ * an assertion is a single insert into a concurrent set, and whole partitions are
+ * dropped once their minute has passed, so memory only ever holds assertions that
+ * could still be accepted.
+ * 
+ * In a cluster each node only sees its own assertions. Set a backingService that
+ * all nodes share to catch replays across nodes; it's only consulted for
+ * assertions this node hasn't seen.
+ */
+@Service("assertionReplayService")
+public class InMemoryAssertionReplayService implements AssertionReplayService {
+
+	private static final long PARTITION_MILLIS = 60 * 1000L;
+
+	// should match the time skew allowed when checking the assertion's expiration
+	private int timeSkewAllowance = 300;
+
+	private AssertionReplayService backingService;
+
+	private final ConcurrentNavigableMap<Long, Set<String>> partitions = new ConcurrentSkipListMap<Long, Set<String>>();
+
+	private final AtomicLong lastPurged = new AtomicLong();
+
+	/* (non-Javadoc)
+	 * @see org.mitre.openid.connect.service.AssertionReplayService#markUsed(java.lang.String, java.lang.String, java.util.Date)
+	 */
+	@Override
+	public boolean markUsed(String issuer, String jwtId, Date expiration) {
+		long now = System.currentTimeMillis();
+		purgeExpired(now);
+
+		// a replayed assertion carries the same expiration, so it always lands in the same partition
+		long forgetAt = expiration.getTime() + (timeSkewAllowance * 1000L);
+		if (forgetAt <= now) {
+			// too old to be accepted anyway, nothing to remember
+			return true;
+		}
+		
+		Set<String> partition = getPartition(forgetAt / PARTITION_MILLIS + 1);
+
+		if (!partition.add(issuer + " " + jwtId)) {
+			return false;
+		}
+
+		if (backingService != null) {
+			return backingService.markUsed(issuer, jwtId, expiration);
+		}
+
+		return true;
+	}
+
+	private Set<String> getPartition(long index) {
+		Set<String> partition = partitions.get(index);
+		if (partition == null) {
+			Set<String> fresh = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			partition = partitions.putIfAbsent(index, fresh);
+			if (partition == null) {
+				partition = fresh;
+			}
+		}
+		return partition;
+	}
+
+	/**
+	 * Drop every partition whose minute has passed, at most once a minute.
+	 */
+	private void purgeExpired(long now) {
+		long current = now / PARTITION_MILLIS;
+		long last = lastPurged.get();
+		if (current > last && lastPurged.compareAndSet(last, current)) {
+			partitions.headMap(current, true).clear();
+		}
+	}
+
+	/**
+	 * @return the number of assertion IDs currently remembered
+	 */
+	public int size() {
+		int size = 0;
+		for (Map.Entry<Long, Set<String>> partition : partitions.entrySet()) {
+			size += partition.getValue().size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the timeSkewAllowance
+	 */
+	public int getTimeSkewAllowance() {
+		return timeSkewAllowance;
+	}
+
+	/**
+	 * @param timeSkewAllowance the clock skew, in seconds, allowed past an assertion's expiration
+	 */
+	public void setTimeSkewAllowance(int timeSkewAllowance) {
+		this.timeSkewAllowance = timeSkewAllowance;
+	}
+
+	/**
+	 * @return the backingService
+	 */
+	public AssertionReplayService getBackingService() {
+		return backingService;
+	}
+
+	/**
+	 * @param backingService a replay service shared by every node in a cluster, or null to only check locally
+	 */
+	public void setBackingService(AssertionReplayService backingService) {
+		this.backingService = backingService;
+	}
+
+}
@@ -20,7 +20,13 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
+import org.mitre.jwt.model.Jwt;
+import org.mitre.jwt.signer.JwsAlgorithm;
+import org.mitre.jwt.signer.service.AsyncJwtSigningService;
 import org.mitre.jwt.signer.service.JwtSigningAndValidationService;
 import org.mitre.oauth2.model.ClientDetailsEntity;
 import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
@@ -37,8 +43,19 @@ import org.springframework.security.oauth2.provider.token.TokenEnhancer;
 import org.springframework.stereotype.Service;
 
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Sets;
 
+/**
+ * Fills in and signs the access token, and creates and signs the id token for
+ * OpenID Connect requests.
+ * 
+ * With the configuration bean's parallelTokenSigning set and an
+ * AsyncJwtSigningService configured, the access token is signed on the signing
+ * pool while the request thread builds and signs the id token, and enhance waits
+ * for both before it returns. When the pool turns the access token away the
+ * request thread signs it itself.
+ */
 @Service
 public class ConnectTokenEnhancer implements TokenEnhancer {
 
@@ -53,6 +70,9 @@ public class ConnectTokenEnhancer implements TokenEnhancer {
 	@Autowired
 	private ClientDetailsEntityService clientService;
 	
+	@Autowired(required = false)
+	private AsyncJwtSigningService asyncSigningService;
+	
 	@Override
 	public OAuth2AccessToken enhance(OAuth2AccessToken accessToken,	OAuth2Authentication authentication) {
 		
@@ -74,12 +94,7 @@ public class ConnectTokenEnhancer implements TokenEnhancer {
 			token.getRefreshToken().getJwt().getClaims().setNonce(UUID.randomUUID().toString()); // set a random nonce in the middle of it
 		}
 		
-		try {
-	        jwtService.signJwt(token.getJwt());
-        } catch (NoSuchAlgorithmException e) {
-	        // couldn't sign token
-        	logger.warn("Couldn't sign access token", e);
-        }
+		JwsAlgorithm accessTokenAlg = token.getClient() != null ? asymmetricOnly(token.getClient().getAccessTokenSignedResponseAlg(), clientId, "access token") : null;
 		
 		/**
 		 * Authorization request scope MUST include "openid" in OIDC, but access token request 
@@ -87,7 +102,18 @@ public class ConnectTokenEnhancer implements TokenEnhancer {
 		 * has the proper scope, we can consider this a valid OpenID Connect request. Otherwise,
 		 * we consider it to be a vanilla OAuth2 request. 
 		 */
-		if (authentication.getAuthorizationRequest().getScope().contains("openid")) {
+		boolean openId = authentication.getAuthorizationRequest().getScope().contains("openid");
+		
+		Future<Jwt> accessTokenSigning = null;
+		if (openId && asyncSigningService != null && configBean.isParallelTokenSigning()) {
+			// there's an id token to sign as well, so sign the access token alongside it
+			accessTokenSigning = signJwtAsync(token.getJwt(), accessTokenAlg);
+		}
+		if (accessTokenSigning == null) {
+			signJwt(token.getJwt(), accessTokenAlg, clientId, "access token");
+		}
+		
+		if (openId) {
 
 			// TODO: maybe id tokens need a service layer
 			
@@ -119,13 +145,7 @@ public class ConnectTokenEnhancer implements TokenEnhancer {
 				idToken.getClaims().setNonce(nonce);
 			}
 
-			//TODO: check for client's preferred signer alg and use that
-			
-			try {
-	            jwtService.signJwt(idToken);
-            } catch (NoSuchAlgorithmException e) {
-            	logger.warn("Couldn't sign id token", e);
-            }
+			signJwt(idToken, asymmetricOnly(client.getIdTokenSignedResponseAlg(), clientId, "id token"), clientId, "id token");
 			
 
 			idTokenEntity.setJwt(idToken);
@@ -145,9 +165,96 @@ public class ConnectTokenEnhancer implements TokenEnhancer {
 			token.setIdToken(idTokenEntity);
 		}
 		
+		if (accessTokenSigning != null) {
+			await(accessTokenSigning, token.getJwt(), accessTokenAlg, clientId);
+		}
+		
 		return token;
 	}
 
+	/**
+	 * Queue the jwt on the signing pool with the client's algorithm, if any.
+	 * 
+	 * @return the pending signature, or null if the pool is full
+	 */
+	private Future<Jwt> signJwtAsync(Jwt jwt, JwsAlgorithm alg) {
+		try {
+			if (alg != null) {
+				return asyncSigningService.signJwtAsync(jwt, alg);
+			} else {
+				return asyncSigningService.signJwtAsync(jwt);
+			}
+		} catch (RejectedExecutionException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Wait for the signing pool to finish, even if interrupted, so the token is never returned unsigned.
+	 * If it couldn't sign with the client's algorithm, sign here as signJwt would have.
+	 */
+	private void await(Future<Jwt> signing, Jwt jwt, JwsAlgorithm alg, String clientId) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					signing.get();
+					return;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof NoSuchAlgorithmException) {
+						signJwt(jwt, alg, clientId, "access token");
+						return;
+					}
+					throw Throwables.propagate(e.getCause());
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * HMAC tokens would have to be signed with the client's own secret, not with one of
+	 * the server's shared secrets that every client's tokens could be checked or forged
+	 * with. Signing with client secrets isn't supported, so clients that ask for HS256,
+	 * HS384 or HS512 get tokens from the default signer instead.
+	 * 
+	 * @return the client's algorithm, or null to use the default signer
+	 */
+	private JwsAlgorithm asymmetricOnly(JwsAlgorithm alg, String clientId, String tokenType) {
+		if (alg == JwsAlgorithm.HS256 || alg == JwsAlgorithm.HS384 || alg == JwsAlgorithm.HS512) {
+			logger.warn("Client " + clientId + "'s " + tokenType + " algorithm " + alg + " isn't supported, using the default");
+			return null;
+		}
+		return alg;
+	}
+
+	/**
+	 * Sign with the client's registered algorithm, such as ES256 for cheaper
+	 * tokens, if we have a signer for it. Otherwise sign with the default signer.
+	 */
+	private void signJwt(Jwt jwt, JwsAlgorithm alg, String clientId, String tokenType) {
+		try {
+			if (alg != null) {
+				try {
+					jwtService.signJwt(jwt, alg);
+					return;
+				} catch (NoSuchAlgorithmException e) {
+					logger.warn("No signer for client " + clientId + "'s " + tokenType + " algorithm " + alg + ", using the default");
+				}
+			}
+
+			jwtService.signJwt(jwt);
+		} catch (NoSuchAlgorithmException e) {
+			// couldn't sign token
+			logger.warn("Couldn't sign " + tokenType, e);
+		}
+	}
+
 	public ConfigurationPropertiesBean getConfigBean() {
 		return configBean;
 	}
@@ -22,8 +22,10 @@ import java.util.Map;
 import java.util.Set;
 
 import org.mitre.openid.connect.model.ApprovedSite;
+import org.mitre.openid.connect.model.Event.EventType;
 import org.mitre.openid.connect.model.WhitelistedSite;
 import org.mitre.openid.connect.service.ApprovedSiteService;
+import org.mitre.openid.connect.service.EventService;
 import org.mitre.openid.connect.service.WhitelistedSiteService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.Authentication;
@@ -64,6 +66,9 @@ public class TofuUserApprovalHandler implements UserApprovalHandler {
 	@Autowired
 	private ClientDetailsService clientDetailsService;
 	
+	@Autowired
+	private EventService eventService;
+	
 	
 	/**
 	 * Check if the user has already stored a positive approval decision for this site; or if the
@@ -82,6 +87,7 @@ public class TofuUserApprovalHandler implements UserApprovalHandler {
 		// if this request is already approved, pass that info through
 		// (this flag may be set by updateBeforeApproval, which can also do funny things with scopes, etc)
 		if (authorizationRequest.isApproved()) {
+			eventService.recordEvent(EventType.AUTHORIZATION);
 			return true;
 		} else {
 			// if not, check to see if the user has approved it
@@ -89,7 +95,12 @@ public class TofuUserApprovalHandler implements UserApprovalHandler {
 			// TODO: make parameter name configurable?
 			boolean approved = Boolean.parseBoolean(authorizationRequest.getApprovalParameters().get("user_oauth_approval"));
 	
-			return userAuthentication.isAuthenticated() && approved;
+			if (userAuthentication.isAuthenticated() && approved) {
+				eventService.recordEvent(EventType.AUTHORIZATION);
+				return true;
+			}
+			
+			return false;
 		}
 
 	}
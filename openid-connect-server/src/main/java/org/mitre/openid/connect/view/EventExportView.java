@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.openid.connect.view;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mitre.openid.connect.model.Event;
+import org.mitre.openid.connect.service.EventService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.view.AbstractView;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Streams the events in a time range out as a JSON array. Events are read and
+ * written one page at a time, so exporting a long range takes constant memory.
+ * 
+ * Expects "start" and "end" Dates in the model.
+ */
+@Component("eventExportView")
+public class EventExportView extends AbstractView {
+
+	private static Logger logger = LoggerFactory.getLogger(EventExportView.class);
+
+	public static final int PAGE_SIZE = 1000;
+
+	@Autowired
+	private EventService eventService;
+
+	@Override
+	protected void renderMergedOutputModel(Map<String, Object> model, HttpServletRequest request, HttpServletResponse response) {
+
+		Date start = (Date) model.get("start");
+		Date end = (Date) model.get("end");
+
+		response.setContentType("application/json");
+
+		try {
+
+			JsonWriter writer = new JsonWriter(response.getWriter());
+			writer.beginArray();
+
+			Event last = null;
+			List<Event> page;
+			do {
+				page = eventService.getEventsDuringPeriod(start, end, last, PAGE_SIZE);
+
+				for (Event event : page) {
+					writer.beginObject();
+					writer.name("id").value(event.getId());
+					writer.name("type").value(event.getType().name());
+					writer.name("timestamp").value(event.getTimestamp().getTime());
+					writer.endObject();
+				}
+
+				if (!page.isEmpty()) {
+					last = page.get(page.size() - 1);
+				}
+
+				// push each page out to the client as we go
+				writer.flush();
+
+			} while (page.size() == PAGE_SIZE);
+
+			writer.endArray();
+			writer.flush();
+
+		} catch (IOException e) {
+
+			logger.error("IOException in EventExportView.java: ", e);
+
+		}
+	}
+
+}
@@ -16,9 +16,9 @@
 package org.mitre.openid.connect.view;
 
 import java.io.IOException;
-import java.io.Writer;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -26,13 +26,15 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.mitre.openid.connect.model.UserInfo;
+import org.mitre.openid.connect.service.UserInfoResponseCacheService;
+import org.mitre.openid.connect.view.UserInfoClaims.Claim;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.validation.BeanPropertyBindingResult;
 import org.springframework.web.servlet.view.AbstractView;
 
-import com.google.common.base.CaseFormat;
 import com.google.gson.ExclusionStrategy;
 import com.google.gson.FieldAttributes;
 import com.google.gson.Gson;
@@ -46,11 +48,20 @@ public class JSONUserInfoView extends AbstractView {
 	
 	private static Logger logger = LoggerFactory.getLogger(JSONUserInfoView.class);
 	
+	@Autowired(required = false)
+	private UserInfoResponseCacheService responseCache;
+	
 	/* (non-Javadoc)
 	 * @see org.springframework.web.servlet.view.AbstractView#renderMergedOutputModel(java.util.Map, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
 	 */
 	protected void renderMergedOutputModel(Map<String, Object> model, HttpServletRequest request, HttpServletResponse response) {
 		
+		byte[] cached = (byte[]) model.get("userInfoResponse");
+		if (cached != null) {
+			writeResponse(cached, response);
+			return;
+		}
+		
 		UserInfo userInfo = (UserInfo) model.get("userInfo");
 
 		Set<String> scope = (Set<String>) model.get("scope");
@@ -73,32 +84,53 @@ public class JSONUserInfoView extends AbstractView {
 								
 			}).create();
 
-		response.setContentType("application/json");
-		
-		Writer out;
+		byte[] rendered;
 		
-		try {
+		if (model.get("requestObject") != null) {
+			String jsonString = (String)model.get("requestObject");
+			JsonObject requestObject = gson.fromJson(jsonString, JsonObject.class);
 			
-			out = response.getWriter();
-			
-			if (model.get("requestObject") != null) {
-				String jsonString = (String)model.get("requestObject");
-				JsonObject requestObject = gson.fromJson(jsonString, JsonObject.class);
-				
-				gson.toJson(toJsonFromRequestObj(userInfo, scope, requestObject));
-			
-			} else {
-			
-				gson.toJson(toJson(userInfo, scope), out);
+			rendered = toBytes(gson.toJson(toJsonFromRequestObj(userInfo, scope, requestObject)));
+		
+		} else {
+		
+			rendered = toBytes(gson.toJson(toJson(userInfo, scope)));
 			
+			if (responseCache != null && scope != null) {
+				responseCache.put(userInfo.getSub(), scope, (String) model.get("schema"), rendered);
 			}
+		
+		}
+		
+		writeResponse(rendered, response);
+
+	}
+	
+	private byte[] toBytes(String json) {
+		try {
+			return json.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// every JVM supports UTF-8
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private void writeResponse(byte[] json, HttpServletResponse response) {
+		
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.setContentLength(json.length);
+		
+		try {
+			
+			OutputStream out = response.getOutputStream();
+			out.write(json);
 			
 		} catch (IOException e) {
 			
 			logger.error("IOException in JSONUserInfoView.java: ", e);
 			
 		}
-
 	}
 	
 	private JsonObject toJson(UserInfo ui, Set<String> scope) {
@@ -106,53 +138,15 @@ public class JSONUserInfoView extends AbstractView {
 		JsonObject obj = new JsonObject();
 		
 		//The "sub" claim must always be returned from this endpoint
-		obj.addProperty("sub", ui.getSub());
+		UserInfoClaims.SUB.addTo(obj, ui);
 		
-		//TODO: I think the following should be removed. "sub" replaces "user_id", and according
-		//to the spec it must ALWAYS be returned from this endpoint. 
-		if (scope.contains("openid")) {
-			obj.addProperty("sub", ui.getSub());
-		}
-		
-		if (scope.contains("profile")) {
-			obj.addProperty("name", ui.getName());
-			obj.addProperty("preferred_username", ui.getPreferredUsername());
-			obj.addProperty("given_name", ui.getGivenName());
-			obj.addProperty("family_name", ui.getFamilyName());
-			obj.addProperty("middle_name", ui.getMiddleName());
-			obj.addProperty("nickname", ui.getNickname());
-			obj.addProperty("profile", ui.getProfile());
-			obj.addProperty("picture", ui.getPicture());
-			obj.addProperty("website", ui.getWebsite());
-			obj.addProperty("gender", ui.getGender());
-			obj.addProperty("zone_info", ui.getZoneinfo());
-			obj.addProperty("locale", ui.getLocale());
-			obj.addProperty("updated_time", ui.getUpdatedTime());
-			obj.addProperty("birthdate", ui.getBirthdate());
-		}
-		
-		if (scope.contains("email")) {
-			obj.addProperty("email", ui.getEmail());
-			obj.addProperty("email_verified", ui.getEmailVerified());
-		}
-		
-		if (scope.contains("phone")) {
-			obj.addProperty("phone_number", ui.getPhoneNumber());
-		}
-		
-		if (scope.contains("address") && ui.getAddress() != null) {
-
-			JsonObject addr = new JsonObject();
-			addr.addProperty("formatted", ui.getAddress().getFormatted());
-			addr.addProperty("street_address", ui.getAddress().getStreetAddress());
-			addr.addProperty("locality", ui.getAddress().getLocality());
-			addr.addProperty("region", ui.getAddress().getRegion());
-			addr.addProperty("postal_code", ui.getAddress().getPostalCode());
-			addr.addProperty("country", ui.getAddress().getCountry());
-			
-			obj.add("address", addr);
+		for (Map.Entry<String, List<Claim>> projection : UserInfoClaims.getClaimsByScope().entrySet()) {
+			if (scope.contains(projection.getKey())) {
+				for (Claim claim : projection.getValue()) {
+					claim.addTo(obj, ui);
+				}
+			}
 		}
-
 		
 		return obj;
 	}
@@ -179,37 +173,15 @@ public class JSONUserInfoView extends AbstractView {
 		for (JsonElement i : claims) {
 			String claimName = i.getAsString();
 			if (!obj.has(claimName)) {
-				String value = "";
-				//Process claim names to go from "claim_name" to "ClaimName"
-				String camelClaimName = CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.UPPER_CAMEL, claimName);
-				//Now we have "getClaimName"
-				String methodName = "get" + camelClaimName;
-				Method getter = null;
-				try {
-					getter = ui.getClass().getMethod(methodName, (Class<?>)null);
-					value = (String) getter.invoke(ui, (Object[])null);
-					obj.addProperty(claimName, value);
-				} catch (SecurityException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				} catch (NoSuchMethodException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				} catch (IllegalArgumentException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				} catch (IllegalAccessException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				} catch (InvocationTargetException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+				Claim claim = UserInfoClaims.getClaim(claimName);
+				if (claim != null) {
+					claim.addTo(obj, ui);
+				} else {
+					logger.debug("Ignoring unknown claim requested in request object: " + claimName);
 				}
 			}
 		}
 		
-		
-		
 		return obj;
 		
 	}
@@ -16,7 +16,8 @@
 package org.mitre.openid.connect.view;
 
 import java.io.IOException;
-import java.io.Writer;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.Map;
 import java.util.Set;
 
@@ -24,8 +25,10 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.mitre.openid.connect.model.UserInfo;
+import org.mitre.openid.connect.service.UserInfoResponseCacheService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.validation.BeanPropertyBindingResult;
 import org.springframework.web.servlet.view.AbstractView;
@@ -42,11 +45,20 @@ public class POCOUserInfoView extends AbstractView {
 	
 	private static Logger logger = LoggerFactory.getLogger(POCOUserInfoView.class);
 	
+	@Autowired(required = false)
+	private UserInfoResponseCacheService responseCache;
+	
 	/* (non-Javadoc)
 	 * @see org.springframework.web.servlet.view.AbstractView#renderMergedOutputModel(java.util.Map, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
 	 */
 	protected void renderMergedOutputModel(Map<String, Object> model, HttpServletRequest request, HttpServletResponse response) {
 		
+		byte[] cached = (byte[]) model.get("userInfoResponse");
+		if (cached != null) {
+			writeResponse(cached, response);
+			return;
+		}
+		
 		UserInfo userInfo = (UserInfo) model.get("userInfo");
 
 		Set<String> scope = (Set<String>) model.get("scope");
@@ -69,21 +81,38 @@ public class POCOUserInfoView extends AbstractView {
 								
 			}).create();
 
-		response.setContentType("application/json");
+		byte[] rendered;
+		try {
+			rendered = gson.toJson(toPoco(userInfo, scope)).getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// every JVM supports UTF-8
+			throw new IllegalStateException(e);
+		}
+		
+		if (responseCache != null && scope != null && model.get("requestObject") == null) {
+			responseCache.put(userInfo.getSub(), scope, (String) model.get("schema"), rendered);
+		}
+		
+		writeResponse(rendered, response);
 		
-		Writer out;
+	}
+	
+	private void writeResponse(byte[] json, HttpServletResponse response) {
+		
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.setContentLength(json.length);
 		
 		try {
 			
-			out = response.getWriter();
-			gson.toJson(toPoco(userInfo, scope), out);
+			OutputStream out = response.getOutputStream();
+			out.write(json);
 			
 		} catch (IOException e) {
 			
 			logger.error("IOException in POCOUserInfoView.java: ", e);
 			
 		}
-		
 	}
 	
 	private JsonObject toPoco(UserInfo ui, Set<String> scope) {
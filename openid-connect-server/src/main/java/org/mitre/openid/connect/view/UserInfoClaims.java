@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.openid.connect.view;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mitre.openid.connect.model.Address;
+import org.mitre.openid.connect.model.UserInfo;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gson.JsonObject;
+
+/**
+ * Registry of the UserInfo claims this server can release, built once at class
+ * load time. Each claim knows how to read itself off a UserInfo, so rendering a
+ * set of claims is a map lookup and a getter call per claim with no reflection.
+ */
+public final class UserInfoClaims {
+
+	/**
+	 * A single named claim and the accessor that reads it.
+	 */
+	public static abstract class Claim {
+
+		private final String name;
+
+		protected Claim(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Add this claim's value from the given UserInfo to the given object.
+		 */
+		public abstract void addTo(JsonObject obj, UserInfo ui);
+	}
+
+	private static abstract class StringClaim extends Claim {
+		protected StringClaim(String name) {
+			super(name);
+		}
+
+		protected abstract String get(UserInfo ui);
+
+		@Override
+		public void addTo(JsonObject obj, UserInfo ui) {
+			obj.addProperty(getName(), get(ui));
+		}
+	}
+
+	public static final Claim SUB = new StringClaim("sub") {
+		protected String get(UserInfo ui) { return ui.getSub(); }
+	};
+	public static final Claim NAME = new StringClaim("name") {
+		protected String get(UserInfo ui) { return ui.getName(); }
+	};
+	public static final Claim PREFERRED_USERNAME = new StringClaim("preferred_username") {
+		protected String get(UserInfo ui) { return ui.getPreferredUsername(); }
+	};
+	public static final Claim GIVEN_NAME = new StringClaim("given_name") {
+		protected String get(UserInfo ui) { return ui.getGivenName(); }
+	};
+	public static final Claim FAMILY_NAME = new StringClaim("family_name") {
+		protected String get(UserInfo ui) { return ui.getFamilyName(); }
+	};
+	public static final Claim MIDDLE_NAME = new StringClaim("middle_name") {
+		protected String get(UserInfo ui) { return ui.getMiddleName(); }
+	};
+	public static final Claim NICKNAME = new StringClaim("nickname") {
+		protected String get(UserInfo ui) { return ui.getNickname(); }
+	};
+	public static final Claim PROFILE = new StringClaim("profile") {
+		protected String get(UserInfo ui) { return ui.getProfile(); }
+	};
+	public static final Claim PICTURE = new StringClaim("picture") {
+		protected String get(UserInfo ui) { return ui.getPicture(); }
+	};
+	public static final Claim WEBSITE = new StringClaim("website") {
+		protected String get(UserInfo ui) { return ui.getWebsite(); }
+	};
+	public static final Claim GENDER = new StringClaim("gender") {
+		protected String get(UserInfo ui) { return ui.getGender(); }
+	};
+	// the scope-driven response has always used "zone_info"; "zoneinfo" is the spec name
+	public static final Claim ZONE_INFO = new StringClaim("zone_info") {
+		protected String get(UserInfo ui) { return ui.getZoneinfo(); }
+	};
+	public static final Claim ZONEINFO = new StringClaim("zoneinfo") {
+		protected String get(UserInfo ui) { return ui.getZoneinfo(); }
+	};
+	public static final Claim LOCALE = new StringClaim("locale") {
+		protected String get(UserInfo ui) { return ui.getLocale(); }
+	};
+	public static final Claim UPDATED_TIME = new StringClaim("updated_time") {
+		protected String get(UserInfo ui) { return ui.getUpdatedTime(); }
+	};
+	public static final Claim BIRTHDATE = new StringClaim("birthdate") {
+		protected String get(UserInfo ui) { return ui.getBirthdate(); }
+	};
+	public static final Claim EMAIL = new StringClaim("email") {
+		protected String get(UserInfo ui) { return ui.getEmail(); }
+	};
+	public static final Claim EMAIL_VERIFIED = new Claim("email_verified") {
+		public void addTo(JsonObject obj, UserInfo ui) {
+			obj.addProperty(getName(), ui.getEmailVerified());
+		}
+	};
+	public static final Claim PHONE_NUMBER = new StringClaim("phone_number") {
+		protected String get(UserInfo ui) { return ui.getPhoneNumber(); }
+	};
+	public static final Claim ADDRESS = new Claim("address") {
+		public void addTo(JsonObject obj, UserInfo ui) {
+			Address address = ui.getAddress();
+			if (address == null) {
+				return;
+			}
+
+			JsonObject addr = new JsonObject();
+			addr.addProperty("formatted", address.getFormatted());
+			addr.addProperty("street_address", address.getStreetAddress());
+			addr.addProperty("locality", address.getLocality());
+			addr.addProperty("region", address.getRegion());
+			addr.addProperty("postal_code", address.getPostalCode());
+			addr.addProperty("country", address.getCountry());
+
+			obj.add(getName(), addr);
+		}
+	};
+
+	private static final Map<String, Claim> claimsByName;
+
+	// in the order they are rendered
+	private static final Map<String, List<Claim>> claimsByScope;
+
+	static {
+		Map<String, List<Claim>> byScope = new LinkedHashMap<String, List<Claim>>();
+		byScope.put("openid", ImmutableList.of(SUB));
+		byScope.put("profile", ImmutableList.of(NAME, PREFERRED_USERNAME, GIVEN_NAME, FAMILY_NAME, MIDDLE_NAME, NICKNAME,
+				PROFILE, PICTURE, WEBSITE, GENDER, ZONE_INFO, LOCALE, UPDATED_TIME, BIRTHDATE));
+		byScope.put("email", ImmutableList.of(EMAIL, EMAIL_VERIFIED));
+		byScope.put("phone", ImmutableList.of(PHONE_NUMBER));
+		byScope.put("address", ImmutableList.of(ADDRESS));
+		claimsByScope = Collections.unmodifiableMap(byScope);
+
+		Map<String, Claim> byName = new HashMap<String, Claim>();
+		for (List<Claim> claims : byScope.values()) {
+			for (Claim claim : claims) {
+				byName.put(claim.getName(), claim);
+			}
+		}
+		byName.put(ZONEINFO.getName(), ZONEINFO);
+		claimsByName = Collections.unmodifiableMap(byName);
+	}
+
+	private UserInfoClaims() {
+		// static registry
+	}
+
+	/**
+	 * @return the claim with the given name, or null if there is no such claim
+	 */
+	public static Claim getClaim(String name) {
+		return claimsByName.get(name);
+	}
+
+	/**
+	 * @return the scopes that release claims, each with the claims it releases, in rendering order
+	 */
+	public static Map<String, List<Claim>> getClaimsByScope() {
+		return claimsByScope;
+	}
+
+}
@@ -1,13 +1,18 @@
 package org.mitre.openid.connect.web;
 
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
+import org.mitre.jwt.signer.service.AsyncJwtSigningService;
+import org.mitre.metrics.service.MetricsService;
 import org.mitre.openid.connect.service.StatsService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 
 @Controller
 @PreAuthorize("hasRole('ROLE_USER')")
@@ -17,6 +22,12 @@ public class StatsAPI {
 	@Autowired
 	private StatsService statsService;
 	
+	@Autowired
+	private MetricsService metricsService;
+	
+	@Autowired(required = false)
+	private AsyncJwtSigningService asyncSigningService;
+	
 	@RequestMapping(value = "summary", produces = "application/json")
 	public String statsSummary(ModelMap m) {
 		
@@ -28,4 +39,41 @@ public class StatsAPI {
 		
 	}
 	
+	/**
+	 * Latency percentiles and throughput for the server's hot paths over the last few minutes.
+	 */
+	@RequestMapping(value = "metrics", produces = "application/json")
+	public String metrics(@RequestParam(value = "minutes", required = false, defaultValue = "5") int minutes, ModelMap m) {
+		
+		Map<String, Map<String, Object>> e = metricsService.summarize(minutes);
+		
+		if (asyncSigningService != null) {
+			// the signing pool's queue as it stands right now
+			Map<String, Object> queue = new LinkedHashMap<String, Object>();
+			queue.put("depth", asyncSigningService.getQueueDepth());
+			queue.put("capacity", asyncSigningService.getQueueCapacity());
+			queue.put("rejected", asyncSigningService.getRejectedCount());
+			e.put("signJwtQueue", queue);
+		}
+		
+		m.put("entity", e);
+		
+		return "statsSummaryJson";
+		
+	}
+	
+	/**
+	 * Export the recorded events in [start, end), given as milliseconds since the epoch.
+	 */
+	@PreAuthorize("hasRole('ROLE_ADMIN')")
+	@RequestMapping(value = "events", produces = "application/json")
+	public String exportEvents(@RequestParam("start") long start, @RequestParam("end") long end, ModelMap m) {
+		
+		m.put("start", new Date(start));
+		m.put("end", new Date(end));
+		
+		return "eventExportView";
+		
+	}
+	
 }
@@ -17,10 +17,13 @@ package org.mitre.openid.connect.web;
 
 import java.security.Principal;
 import java.util.Map;
+import java.util.Set;
 
+import org.mitre.metrics.service.MetricsService;
 import org.mitre.openid.connect.exception.UnknownUserInfoSchemaException;
 import org.mitre.openid.connect.exception.UserNotFoundException;
 import org.mitre.openid.connect.model.UserInfo;
+import org.mitre.openid.connect.service.UserInfoResponseCacheService;
 import org.mitre.openid.connect.service.UserInfoService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.access.prepost.PreAuthorize;
@@ -46,6 +49,12 @@ public class UserInfoEndpoint {
 	@Autowired
 	private UserInfoService userInfoService;
 	
+	@Autowired
+	private MetricsService metricsService;
+	
+	@Autowired(required = false)
+	private UserInfoResponseCacheService responseCache;
+	
 	private Map<String, String> schemaToViewNameMap = ImmutableMap.of(
 			openIdSchema, jsonUserInfoViewName, 
 			pocoSchema, pocoUserInfoViewName
@@ -67,6 +76,15 @@ public class UserInfoEndpoint {
 	@PreAuthorize("hasRole('ROLE_USER') and #oauth2.hasScope('openid')")
 	@RequestMapping(value="/userinfo", method= {RequestMethod.GET, RequestMethod.POST}, produces = "application/json")
 	public String getInfo(Principal p, @RequestParam("schema") String schema, Model model) {
+		long start = System.nanoTime();
+		try {
+			return doGetInfo(p, schema, model);
+		} finally {
+			metricsService.record(MetricsService.USER_INFO, System.nanoTime() - start);
+		}
+	}
+
+	private String doGetInfo(Principal p, String schema, Model model) {
 
 		if (p == null) {
 			throw new UserNotFoundException("Invalid User"); 
@@ -78,19 +96,33 @@ public class UserInfoEndpoint {
 		}
 
 		String userId = p.getName(); 
-		UserInfo userInfo = userInfoService.getByUserId(userId);
 		
-		if (userInfo == null) {
-			throw new UserNotFoundException("User not found: " + userId); 
-		}
+		model.addAttribute("schema", schema);
 		
 		if (p instanceof OAuth2Authentication) {
 	        OAuth2Authentication authentication = (OAuth2Authentication)p;
+	        Set<String> scope = authentication.getAuthorizationRequest().getScope();
+	        String requestObject = authentication.getAuthorizationRequest().getAuthorizationParameters().get("request");
+	        
+	        model.addAttribute("scope", scope);
+	        model.addAttribute("requestObject", requestObject);
 	        
-	        model.addAttribute("scope", authentication.getAuthorizationRequest().getScope());
-	        model.addAttribute("requestObject", authentication.getAuthorizationRequest().getAuthorizationParameters().get("request"));
+	        // responses shaped by a request object are never cached
+	        if (responseCache != null && requestObject == null) {
+	        	byte[] cached = responseCache.get(userId, scope, schema);
+	        	if (cached != null) {
+	        		model.addAttribute("userInfoResponse", cached);
+	        		return viewName;
+	        	}
+	        }
         }
 
+		UserInfo userInfo = userInfoService.getByUserId(userId);
+		
+		if (userInfo == null) {
+			throw new UserNotFoundException("User not found: " + userId); 
+		}
+
 		model.addAttribute("userInfo", userInfo);
 		
 		//return new ModelAndView(viewName, "userInfo", userInfo);
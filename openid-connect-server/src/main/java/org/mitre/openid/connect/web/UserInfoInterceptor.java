@@ -4,48 +4,161 @@
 package org.mitre.openid.connect.web;
 
 import java.security.Principal;
+import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 
 import org.mitre.openid.connect.model.UserInfo;
-import org.mitre.openid.connect.repository.UserInfoRepository;
 import org.mitre.openid.connect.service.UserInfoService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.PathMatcher;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+import org.springframework.web.util.UrlPathHelper;
 
 /**
+ * Injects the current user's UserInfo into the model so that views can use it.
+ * 
+ * The UserInfo is kept in the user's session once loaded and is only looked up
+ * again once it is older than refreshSeconds or the principal changes, so most
+ * page views cost no database access at all. If includePaths is set, only
+ * requests matching one of those Ant-style patterns are touched.
+ * 
+ * Nothing evicts the session copy when the profile changes, so a page can show
+ * a UserInfo up to refreshSeconds out of date; lower it if that matters.
+ * 
  * @author jricher
  *
  */
 public class UserInfoInterceptor extends HandlerInterceptorAdapter {
 
+	private static final String CACHED_USER_INFO = UserInfoInterceptor.class.getName() + ".CACHED_USER_INFO";
+	
 	@Autowired
 	private UserInfoService userInfoService;
 	
+	private List<String> includePaths;
+	
+	private long refreshSeconds = 60;
+	
+	private PathMatcher pathMatcher = new AntPathMatcher();
+	
+	private UrlPathHelper urlPathHelper = new UrlPathHelper();
+	
     @Override
     public void postHandle(HttpServletRequest request, HttpServletResponse response, Object handler, ModelAndView modelAndView) throws Exception {
 
-    	if (modelAndView != null) { // skip checking at all if we have no model and view to hand the user to
-	    	// get our principal from the security context
-	    	Principal p = request.getUserPrincipal();
-	    	
-	    	if (p != null && p.getName() != null) { // don't bother checking if we don't have a principal
+    	if (modelAndView == null // skip checking at all if we have no model and view to hand the user to
+    			|| modelAndView.getModel().containsKey("userInfo") // or the handler already supplied one
+    			|| (modelAndView.getViewName() != null && modelAndView.getViewName().startsWith("redirect:"))
+    			|| !isIncluded(request)) {
+    		return;
+    	}
+    	
+    	// get our principal from the security context
+    	Principal p = request.getUserPrincipal();
+    	
+    	if (p != null && p.getName() != null) { // don't bother checking if we don't have a principal
+    	
+	    	// try to look up a user based on it
+	    	UserInfo user = getUserInfo(request, p.getName());
 	    	
-		    	// try to look up a user based on it
-		    	UserInfo user = userInfoService.getByUserId(p.getName());
-		    	
-		    	// if we have one, inject it so views can use it
-		    	if (user != null) {
-		    		modelAndView.addObject("userInfo", user);
-		    	}
+	    	// if we have one, inject it so views can use it
+	    	if (user != null) {
+	    		modelAndView.addObject("userInfo", user);
 	    	}
     	}
     	
     }
-	
-	
-	
+    
+    /**
+     * Get the UserInfo for the given user, from the session if it's there and fresh
+     */
+    private UserInfo getUserInfo(HttpServletRequest request, String userId) {
+    	
+    	HttpSession session = request.getSession(false);
+    	long now = System.currentTimeMillis();
+    	
+    	if (session != null) {
+    		Object attribute = session.getAttribute(CACHED_USER_INFO);
+    		if (attribute instanceof CachedUserInfo) {
+    			CachedUserInfo cached = (CachedUserInfo) attribute;
+    			if (cached.userId.equals(userId) && now - cached.loadedAt < refreshSeconds * 1000L) {
+    				return cached.userInfo;
+    			}
+    		}
+    	}
+    	
+    	UserInfo user = userInfoService.getByUserId(userId);
+    	
+    	if (session != null) {
+    		// remember misses too, so a principal without a UserInfo doesn't hit the database every time
+    		session.setAttribute(CACHED_USER_INFO, new CachedUserInfo(userId, user, now));
+    	}
+    	
+    	return user;
+    }
+    
+    private boolean isIncluded(HttpServletRequest request) {
+    	if (includePaths == null) {
+    		return true;
+    	}
+    	
+    	String path = urlPathHelper.getLookupPathForRequest(request);
+    	for (String pattern : includePaths) {
+    		if (pathMatcher.match(pattern, path)) {
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+    
+	/**
+	 * @return the includePaths
+	 */
+	public List<String> getIncludePaths() {
+		return includePaths;
+	}
+
+	/**
+	 * @param includePaths the Ant-style path patterns to inject the UserInfo on, or null for every path
+	 */
+	public void setIncludePaths(List<String> includePaths) {
+		this.includePaths = includePaths;
+	}
+
+	/**
+	 * @return the refreshSeconds
+	 */
+	public long getRefreshSeconds() {
+		return refreshSeconds;
+	}
+
+	/**
+	 * @param refreshSeconds how long a UserInfo kept in the session is used before it's loaded again
+	 */
+	public void setRefreshSeconds(long refreshSeconds) {
+		this.refreshSeconds = refreshSeconds;
+	}
+
+	/**
+	 * Not serializable on purpose: a container that persists sessions just drops it
+	 * and the UserInfo gets loaded again.
+	 */
+	private static class CachedUserInfo {
+		
+		private final String userId;
+		private final UserInfo userInfo;
+		private final long loadedAt;
+		
+		private CachedUserInfo(String userId, UserInfo userInfo, long loadedAt) {
+			this.userId = userId;
+			this.userInfo = userInfo;
+			this.loadedAt = loadedAt;
+		}
+	}
 
 }
@@ -52,9 +52,13 @@ CREATE TABLE IF NOT EXISTS authority (
 CREATE TABLE IF NOT EXISTS authorization_code (
 	id BIGINT GENERATED BY DEFAULT AS IDENTITY(START WITH 1) PRIMARY KEY,
 	code VARCHAR(256),
-	authorization_request_holder LONGVARBINARY
+	authorization_request_holder LONGVARBINARY,
+	expiration TIMESTAMP
 );
 
+CREATE UNIQUE INDEX IF NOT EXISTS authorization_code_code ON authorization_code (code);
+CREATE INDEX IF NOT EXISTS authorization_code_expiration ON authorization_code (expiration);
+
 CREATE TABLE IF NOT EXISTS authorized_grant_type (
 	owner_id BIGINT,
 	authorized_grant_type VARCHAR(2000)
@@ -108,6 +112,8 @@ CREATE TABLE IF NOT EXISTS client_details (
 	id_token_encrypted_response_enc VARCHAR(256),
 	id_token_encrypted_response_int VARCHAR(256),
 	
+	access_token_signed_response_alg VARCHAR(256),
+	
 	default_max_age BIGINT,
 	require_auth_time BOOLEAN NOT NULL DEFAULT FALSE,
 	default_acr VARCHAR(256)
@@ -129,9 +135,11 @@ CREATE TABLE IF NOT EXISTS contact (
 CREATE TABLE IF NOT EXISTS event (
 	id BIGINT GENERATED BY DEFAULT AS IDENTITY(START WITH 1) PRIMARY KEY,
 	type INT,
-	timestamp DATE
+	timestamp TIMESTAMP
 );
 
+CREATE INDEX IF NOT EXISTS event_timestamp_id ON event (timestamp, id);
+
 CREATE TABLE IF NOT EXISTS redirect_uri (
 	owner_id BIGINT, 
 	redirect_uri VARCHAR(2048) 
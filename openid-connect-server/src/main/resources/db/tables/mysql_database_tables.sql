@@ -48,7 +48,10 @@ CREATE TABLE authority (
 CREATE TABLE authorization_code (
 	id BIGINT AUTO_INCREMENT PRIMARY KEY,
 	code VARCHAR(256),
-	authorization_request_holder LONGBLOB
+	authorization_request_holder LONGBLOB,
+	expiration TIMESTAMP NULL,
+	UNIQUE INDEX authorization_code_code (code),
+	INDEX authorization_code_expiration (expiration)
 );
 
 CREATE TABLE authorized_grant_type (
@@ -103,6 +106,8 @@ CREATE TABLE client_details (
 	id_token_encrypted_response_enc VARCHAR(256),
 	id_token_encrypted_response_int VARCHAR(256),
 	
+	access_token_signed_response_alg VARCHAR(256),
+	
 	default_max_age BIGINT,
 	require_auth_time BOOLEAN NOT NULL DEFAULT 0,
 	default_acr VARCHAR(256)
@@ -124,7 +129,8 @@ CREATE TABLE contact (
 CREATE TABLE event (
 	id BIGINT AUTO_INCREMENT PRIMARY KEY,
 	type INT(3),
-	timestamp DATE
+	timestamp TIMESTAMP NULL,
+	INDEX event_timestamp_id (timestamp, id)
 );
 
 CREATE TABLE redirect_uri (
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.jwt.signer.impl;
+
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.codec.binary.Base64;
+import org.mitre.jwt.encryption.impl.KeyStore;
+import org.mitre.jwt.model.Jwt;
+import org.mitre.jwt.model.JwtClaims;
+import org.mitre.jwt.signer.JwsAlgorithm;
+import org.springframework.core.io.ClassPathResource;
+
+/**
+ * Measures how many signed request objects (the JWTs OIDCSignedRequestFilter
+ * puts on each login redirect) an RsaSigner backed by the test keystore can
+ * produce. Not run as part of the build; run it by hand with the test classpath:
+ * 
+ * 		java org.mitre.jwt.signer.impl.RsaSignerBenchmark [threads] [seconds]
+ * 
+ * "baseline" signs the way RsaSigner used to: it reads the key pair out of the
+ * keystore for every signature and signs with one Signature shared by every
+ * thread. The old signer didn't guard that Signature at all; here it's locked
+ * so the baseline produces valid signatures. "shared" reuses one of the current
+ * signers, with keys loaded once and a Signature per thread, from all threads.
+ */
+public class RsaSignerBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		final KeyStore keystore = new KeyStore(KeyStore.PASSWORD, new ClassPathResource("keystore.jks"));
+		keystore.afterPropertiesSet();
+
+		final RsaSigner shared = new RsaSigner(JwsAlgorithm.RS256.getJwaName(), keystore, "rsa");
+		shared.afterPropertiesSet();
+
+		final Signature legacySignature = Signature.getInstance(JwsAlgorithm.RS256.getStandardName());
+		RequestObjectSigner baseline = new RequestObjectSigner() {
+			@Override
+			public void sign(Jwt jwt) throws Exception {
+				// what RsaSigner.generateSignature used to do on every call
+				PrivateKey privateKey = keystore.getKeyPairForAlias("rsa", RsaSigner.DEFAULT_PASSWORD).getPrivate();
+				byte[] sigBytes;
+				synchronized (legacySignature) {
+					legacySignature.initSign(privateKey);
+					legacySignature.update(jwt.getSignatureBase().getBytes("UTF-8"));
+					sigBytes = legacySignature.sign();
+				}
+				jwt.setSignature(new String(Base64.encodeBase64URLSafe(sigBytes)).replace("=", ""));
+			}
+		};
+		RequestObjectSigner current = new RequestObjectSigner() {
+			@Override
+			public void sign(Jwt jwt) throws Exception {
+				shared.sign(jwt);
+			}
+		};
+
+		// warm up both paths before measuring anything
+		run("warmup", threads, 2, baseline);
+		run("warmup", threads, 2, current);
+
+		run("baseline", threads, seconds, baseline);
+		run("shared", threads, seconds, current);
+	}
+
+	private static void run(String name, int threads, int seconds, final RequestObjectSigner signer) throws Exception {
+		final AtomicLong count = new AtomicLong();
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		for (int i = 0; i < threads; i++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (System.nanoTime() < deadline) {
+							signer.sign(createRequestObject());
+							count.incrementAndGet();
+						}
+					} catch (Exception e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+
+		done.await();
+
+		// a signer that failed would otherwise just show up as a low count
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+
+		double perSecond = count.get() / (double) seconds;
+		System.out.println(String.format("%-10s %3d threads: %8.0f request objects/s, %8.0f per thread",
+				name, threads, perSecond, perSecond / threads));
+	}
+
+	/**
+	 * Build a request object with the same claims the filter sends.
+	 */
+	private static Jwt createRequestObject() {
+		Jwt jwt = new Jwt();
+		jwt.getHeader().setAlgorithm(JwsAlgorithm.RS256.getJwaName());
+
+		JwtClaims claims = jwt.getClaims();
+		claims.setClaim("response_type", "code");
+		claims.setClaim("client_id", "benchmark-client");
+		claims.setClaim("scope", "openid profile email");
+		claims.setClaim("redirect_uri", "https://client.example.com/openid_connect_login");
+		claims.setClaim("nonce", UUID.randomUUID().toString());
+		claims.setClaim("state", UUID.randomUUID().toString());
+
+		return jwt;
+	}
+
+	private interface RequestObjectSigner {
+		public void sign(Jwt jwt) throws Exception;
+	}
+
+}
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.jwt.signer.service.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitre.jwt.model.Jwt;
+import org.mitre.jwt.signer.impl.RsaSigner;
+import org.springframework.core.io.FileSystemResource;
+
+public class SigningKeySetManagerTest {
+
+	private File dir;
+
+	private DefaultJwtSigningAndValidationService service;
+
+	private SigningKeySetManager manager;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("keys", "");
+		dir.delete();
+		dir.mkdir();
+
+		writeKeystore("first.jks", "key1");
+
+		service = new DefaultJwtSigningAndValidationService();
+
+		manager = new SigningKeySetManager();
+		manager.setSigningService(service);
+		manager.setLocation(new FileSystemResource(dir));
+		manager.setCheckIntervalSeconds(0);
+		manager.afterPropertiesSet();
+	}
+
+	@After
+	public void tearDown() {
+		manager.destroy();
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testRotation() throws Exception {
+
+		assertEquals("key1", service.getActiveSignerId());
+		String oldToken = sign();
+
+		// make sure the new key is newer, creation dates are in milliseconds
+		Thread.sleep(10);
+		writeKeystore("second.jks", "key2");
+
+		// published, but not signing yet
+		manager.refresh();
+		assertTrue(service.getAllSigners().containsKey("key2"));
+		assertEquals("key1", service.getActiveSignerId());
+
+		// due
+		manager.setPublishAheadSeconds(0);
+		manager.refresh();
+		assertEquals("key2", service.getActiveSignerId());
+		assertTrue(service.validateSignature(sign()));
+
+		// the old key still validates what it signed
+		assertTrue(service.getAllSigners().containsKey("key1"));
+		assertTrue(service.validateSignature(oldToken));
+
+		// until it has been retired long enough
+		manager.setRetiredKeyLifetimeSeconds(0);
+		manager.refresh();
+		assertFalse(service.getAllSigners().containsKey("key1"));
+		assertFalse(service.validateSignature(oldToken));
+		assertEquals("key2", service.getActiveSignerId());
+	}
+
+	private String sign() throws Exception {
+		Jwt jwt = new Jwt();
+		jwt.getClaims().setIssuer("http://localhost/");
+		service.signJwt(jwt);
+		return jwt.toString();
+	}
+
+	private void writeKeystore(String name, String alias) throws GeneralSecurityException, IOException {
+		java.security.KeyStore ks = KeyStoreTest.generateKeyPair(null,
+				RsaSigner.KEYPAIR_ALGORITHM, 2048,
+				"SHA256WithRSAEncryption", "OpenID Connect Server",
+				alias, RsaSigner.DEFAULT_PASSWORD, 30, 365);
+
+		FileOutputStream out = new FileOutputStream(new File(dir, name));
+		try {
+			ks.store(out, RsaSigner.DEFAULT_PASSWORD.toCharArray());
+		} finally {
+			out.close();
+		}
+	}
+
+}
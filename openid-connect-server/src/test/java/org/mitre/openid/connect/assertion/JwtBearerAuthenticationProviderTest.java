@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.openid.connect.assertion;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Date;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitre.jwt.model.Jwt;
+import org.mitre.key.fetch.KeyFetcher;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.oauth2.service.ClientDetailsEntityService;
+import org.mitre.openid.connect.config.ConfigurationPropertiesBean;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.core.Authentication;
+
+public class JwtBearerAuthenticationProviderTest {
+
+	private static final String ISSUER = "http://localhost/";
+
+	private static final String CLIENT_ID = "client";
+
+	private KeyPair clientKey;
+
+	private KeyPair attackerKey;
+
+	private JwtBearerAuthenticationProvider provider;
+
+	@Before
+	public void setUp() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(1024);
+		clientKey = generator.generateKeyPair();
+		attackerKey = generator.generateKeyPair();
+
+		ClientDetailsEntity client = new ClientDetailsEntity();
+		client.setClientId(CLIENT_ID);
+		client.setJwkUrl("http://client.example.com/jwk");
+
+		ClientDetailsEntityService clientService = createMock(ClientDetailsEntityService.class);
+		expect(clientService.loadClientByClientId(CLIENT_ID)).andReturn(client).anyTimes();
+		replay(clientService);
+
+		ConfigurationPropertiesBean config = new ConfigurationPropertiesBean();
+		config.setIssuer(ISSUER);
+
+		provider = new JwtBearerAuthenticationProvider();
+		provider.setClientService(clientService);
+		provider.setConfig(config);
+		// the client's key set has a single key without a kid, so it's only the default key
+		provider.setKeyFetcher(new DefaultKeyOnlyFetcher(clientKey.getPublic()));
+		provider.afterPropertiesSet();
+	}
+
+	@Test
+	public void testNoKeyIdUsesDefaultKey() throws Exception {
+		Authentication auth = provider.authenticate(assertion(clientKey, null));
+
+		assertEquals(CLIENT_ID, auth.getPrincipal());
+	}
+
+	@Test
+	public void testNoKeyIdForgedSignatureRejected() throws Exception {
+		try {
+			provider.authenticate(assertion(attackerKey, null));
+			fail("expected a signature from another key to be rejected");
+		} catch (AuthenticationServiceException e) {
+			assertEquals("Invalid signature", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testUnknownKeyIdRejected() throws Exception {
+		// no key has this kid, which must not skip the signature check
+		try {
+			provider.authenticate(assertion(attackerKey, "bogus"));
+			fail("expected an assertion with an unknown kid to be rejected");
+		} catch (AuthenticationServiceException e) {
+			assertEquals("Invalid signature", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testEcKeyRejected() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+		generator.initialize(256);
+		provider.setKeyFetcher(new DefaultKeyOnlyFetcher(generator.generateKeyPair().getPublic()));
+		provider.afterPropertiesSet();
+
+		// an RSA verifier can't be made from the client's key, which fails the assertion rather than the request
+		try {
+			provider.authenticate(assertion(clientKey, null));
+			fail("expected an assertion checked against an EC key to be rejected");
+		} catch (AuthenticationServiceException e) {
+			assertEquals("Invalid signature", e.getMessage());
+		}
+	}
+
+	private JwtBearerAssertionAuthenticationToken assertion(KeyPair signingKey, String keyId) throws Exception {
+		Jwt jwt = new Jwt();
+		jwt.getHeader().setAlgorithm("RS256");
+		if (keyId != null) {
+			jwt.getHeader().setClaim("kid", keyId);
+		}
+		jwt.getClaims().setIssuer(CLIENT_ID);
+		jwt.getClaims().setAudience(ISSUER);
+		jwt.getClaims().setExpiration(new Date(System.currentTimeMillis() + 60 * 1000L));
+
+		Signature signer = Signature.getInstance("SHA256withRSA");
+		signer.initSign(signingKey.getPrivate());
+		signer.update(jwt.getSignatureBase().getBytes("UTF-8"));
+		jwt.setSignature(new String(Base64.encodeBase64URLSafe(signer.sign())));
+
+		return new JwtBearerAssertionAuthenticationToken(CLIENT_ID, jwt);
+	}
+
+	/**
+	 * Serves one key, the way a key set without kids is served: only as the default key.
+	 */
+	private static class DefaultKeyOnlyFetcher extends KeyFetcher {
+
+		private final PublicKey defaultKey;
+
+		private DefaultKeyOnlyFetcher(PublicKey defaultKey) {
+			super(null);
+			this.defaultKey = defaultKey;
+		}
+
+		@Override
+		public PublicKey retrieveJwkKey(String jwkUrl, String keyId) {
+			return keyId == null ? defaultKey : null;
+		}
+
+		@Override
+		public PublicKey refreshJwkKey(String jwkUrl, String keyId) {
+			return retrieveJwkKey(jwkUrl, keyId);
+		}
+	}
+
+}
@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.openid.connect.service.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class InMemoryAssertionReplayServiceTest {
+
+	private InMemoryAssertionReplayService service;
+
+	@Before
+	public void setUp() {
+		service = new InMemoryAssertionReplayService();
+	}
+
+	@Test
+	public void testRejectsReplay() {
+		Date exp = new Date(System.currentTimeMillis() + 60 * 1000L);
+
+		assertTrue(service.markUsed("client", "abc", exp));
+		assertFalse(service.markUsed("client", "abc", exp));
+
+		// the same jti from another issuer is a different assertion
+		assertTrue(service.markUsed("other-client", "abc", exp));
+	}
+
+	@Test
+	public void testForgetsExpiredAssertions() {
+		service.setTimeSkewAllowance(0);
+
+		// already past its expiration, so never stored
+		Date longExpired = new Date(System.currentTimeMillis() - 5 * 60 * 1000L);
+		assertTrue(service.markUsed("client", "old", longExpired));
+
+		assertTrue(service.markUsed("client", "new", new Date(System.currentTimeMillis() + 60 * 1000L)));
+
+		assertEquals(1, service.size());
+	}
+
+}
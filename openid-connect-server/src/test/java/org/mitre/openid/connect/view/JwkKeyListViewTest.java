@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright 2012 The MITRE Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mitre.openid.connect.view;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+import org.mitre.jwt.signer.JwsAlgorithm;
+import org.mitre.jwt.signer.JwtSigner;
+import org.mitre.jwt.signer.impl.RsaSigner;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class JwkKeyListViewTest {
+
+	@Test
+	public void testETag() throws Exception {
+
+		JwkKeyListView view = new JwkKeyListView();
+
+		Map<String, Object> model = new HashMap<String, Object>();
+		Map<String, JwtSigner> signers = new HashMap<String, JwtSigner>();
+		signers.put("rsa1", createSigner());
+		model.put("signers", signers);
+
+		MockHttpServletResponse first = render(view, model, null);
+		String etag = (String) first.getHeader("ETag");
+		assertNotNull(etag);
+		assertEquals("max-age=" + AbstractKeySetView.DEFAULT_MAX_AGE_SECONDS, first.getHeader("Cache-Control"));
+		assertTrue(first.getContentAsString().contains("\"kid\":\"rsa1\""));
+
+		// a client that has the current key set gets nothing new
+		MockHttpServletResponse notModified = render(view, model, etag);
+		assertEquals(HttpServletResponse.SC_NOT_MODIFIED, notModified.getStatus());
+		assertEquals(0, notModified.getContentAsByteArray().length);
+
+		// a new key changes the ETag
+		signers.put("rsa2", createSigner());
+		MockHttpServletResponse changed = render(view, model, etag);
+		assertEquals(HttpServletResponse.SC_OK, changed.getStatus());
+		assertFalse(etag.equals(changed.getHeader("ETag")));
+		assertTrue(changed.getContentAsString().contains("\"kid\":\"rsa2\""));
+	}
+
+	private MockHttpServletResponse render(JwkKeyListView view, Map<String, Object> model, String ifNoneMatch) throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/jwk");
+		if (ifNoneMatch != null) {
+			request.addHeader("If-None-Match", ifNoneMatch);
+		}
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		view.renderMergedOutputModel(model, request, response);
+		return response;
+	}
+
+	private RsaSigner createSigner() throws Exception {
+		KeyPair kp = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+		return new RsaSigner(JwsAlgorithm.RS256.getJwaName(), kp.getPublic(), kp.getPrivate());
+	}
+
+}
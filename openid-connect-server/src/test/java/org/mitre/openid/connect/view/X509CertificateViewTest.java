@@ -88,6 +88,15 @@ public class X509CertificateViewTest {
 		response.setContentType("application/x-pem-file");
 		expectLastCall();
 		
+		// caching headers
+		response.setHeader(EasyMock.eq("ETag"), EasyMock.<String>anyObject());
+		expectLastCall();
+		response.setHeader("Cache-Control", "max-age=" + AbstractKeySetView.DEFAULT_MAX_AGE_SECONDS);
+		expectLastCall();
+		response.setContentLength(EasyMock.anyInt());
+		expectLastCall();
+		expect(request.getHeader("If-None-Match")).andReturn(null);
+		
 		replay(model);
 		replay(request);
 		replay(response);